@@ -0,0 +1,276 @@
+package app.grapheneos.logviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Host benchmarks of text processing hot paths, run on synthetic corpora of increasing size.
+// For each benchmark and size, reports throughput of the input, allocation rate and peak heap
+// usage above the baseline (i.e. above the corpus itself).
+//
+// java -Xmx4g -jar $ANDROID_HOST_OUT/framework/LogViewerBenchmark.jar [--sizes 1,10,100] [--filter regex] [--tsv]
+//
+// Sizes are in MiB. TSV output is meant for tracking results between builds
+class Benchmarks {
+    // the same seed is used on every run, results of different builds are comparable
+    private static final long SEED = 0x4c6f6756;
+    private static final long MIN_WARMUP_NANOS = 1_000_000_000L;
+    private static final long MIN_MEASURE_NANOS = 2_000_000_000L;
+    private static final int MIN_MEASURED_ITERATIONS = 5;
+
+    // same block size and compression as BlobProvider
+    private static final int BLOB_BLOCK_SIZE = 128 * 1024;
+
+    // prevents results of benchmarks from being optimized away
+    static volatile Object sink;
+
+    interface Op {
+        Object run(Corpus c) throws Exception;
+    }
+
+    record Benchmark(String name, Corpora.Kind kind, Op op) {}
+
+    // input forms are created on first use, before measurement
+    static class Corpus {
+        final Corpora.Kind kind;
+        final byte[] bytes;
+        private String text;
+        private LineBuffer lines;
+        private LineBuffer filteredLines;
+
+        Corpus(Corpora.Kind kind, byte[] bytes) {
+            this.kind = kind;
+            this.bytes = bytes;
+        }
+
+        String text() {
+            if (text == null) {
+                text = new String(bytes, UTF_8);
+            }
+            return text;
+        }
+
+        LineBuffer lines() {
+            if (lines == null) {
+                lines = LineBuffer.wrap(bytes);
+            }
+            return lines;
+        }
+
+        // as produced by LogcatActivity
+        LineBuffer logcatLines() throws IOException {
+            if (filteredLines == null) {
+                filteredLines = readLogcat(bytes);
+            }
+            return filteredLines;
+        }
+    }
+
+    static List<Benchmark> createBenchmarks() {
+        var l = new ArrayList<Benchmark>();
+        l.add(new Benchmark("logcat.read", Corpora.Kind.LOGCAT, c -> readLogcat(c.bytes)));
+        // same as LogcatActivity.capture() with collapsing of repeated lines
+        l.add(new Benchmark("logcat.readCollapsed", Corpora.Kind.LOGCAT, c -> {
+            var repeated = new RepeatedLines.Collector();
+            var b = new LineBuffer.Builder(0, (buf, start, end) ->
+                    repeated.filterLine(buf, start, LogcatLine.removeUtcOffset(buf, start, end)));
+            b.readFrom(new ByteArrayInputStream(c.bytes));
+            return b.build();
+        }));
+        l.add(new Benchmark("logcat.levels", Corpora.Kind.LOGCAT, c -> {
+            LineBuffer lines = c.logcatLines();
+            int errors = 0;
+            for (int i = 0, n = lines.size(); i < n; ++i) {
+                if (LogcatLine.getLevel(lines, i) == 'E') {
+                    ++errors;
+                }
+            }
+            return errors;
+        }));
+        l.add(new Benchmark("logcat.stats", Corpora.Kind.LOGCAT, c -> {
+            LineBuffer lines = c.logcatLines();
+            var stats = new LogStats();
+            stats.add(lines, 0, lines.size());
+            return stats.lines;
+        }));
+        // the same scan as the one that is done by ClipboardBuilder
+        l.add(new Benchmark("logcat.clipboardScore", Corpora.Kind.LOGCAT, c -> {
+            LineBuffer lines = c.logcatLines();
+            long res = 0;
+            for (int i = 0, n = lines.size(); i < n; ++i) {
+                res += lines.getLineByteLength(i);
+                if (lines.indexOf(i, "FATAL EXCEPTION") >= 0 || lines.indexOf(i, "Caused by: ") >= 0) {
+                    res += 10;
+                }
+            }
+            return res;
+        }));
+        l.add(new Benchmark("lines.decode", Corpora.Kind.LOGCAT, c -> {
+            LineBuffer lines = c.logcatLines();
+            long len = 0;
+            for (int i = 0, n = lines.size(); i < n; ++i) {
+                len += lines.get(i).length();
+            }
+            return len;
+        }));
+        l.add(new Benchmark("splitLines", Corpora.Kind.LOGCAT, c -> StringUtils.splitLines(c.text())));
+        // same as SnapshotSaver
+        l.add(new Benchmark("snapshot.gzip", Corpora.Kind.LOGCAT, c -> {
+            var os = new CountingOutputStream();
+            try (var gzos = new GZIPOutputStream(os, 64 * 1024)) {
+                c.logcatLines().writeTo(gzos);
+            }
+            return os.count;
+        }));
+        l.add(new Benchmark("blob.gzipRoundTrip", Corpora.Kind.LOGCAT, c -> gzipBlocksRoundTrip(c.bytes)));
+        l.add(new Benchmark("lines.compressRoundTrip", Corpora.Kind.LOGCAT, c -> {
+            LineBuffer lines = LineBuffer.wrap(c.bytes);
+            lines.compress();
+            var os = new CountingOutputStream();
+            lines.writeTo(os);
+            return os.count;
+        }));
+        l.add(new Benchmark("tombstone.parse", Corpora.Kind.TOMBSTONE, c -> TombstoneParser.parse(c.lines())));
+        l.add(new Benchmark("nativeCrash.extract", Corpora.Kind.TOMBSTONE, c -> NativeCrashSummary.extract(c.text())));
+        l.add(new Benchmark("anr.parse", Corpora.Kind.ANR, c -> AnrTraceParser.parse(c.lines(), "com.example.app")));
+        return l;
+    }
+
+    static LineBuffer readLogcat(byte[] bytes) throws IOException {
+        var b = new LineBuffer.Builder(0, LogcatLine::removeUtcOffset);
+        b.readFrom(new ByteArrayInputStream(bytes));
+        return b.build();
+    }
+
+    private static long gzipBlocksRoundTrip(byte[] bytes) throws IOException {
+        long res = 0;
+        byte[] buf = new byte[BLOB_BLOCK_SIZE];
+        for (int off = 0; off < bytes.length; off += BLOB_BLOCK_SIZE) {
+            int len = Math.min(BLOB_BLOCK_SIZE, bytes.length - off);
+            var bos = new ByteArrayOutputStream(len / 4);
+            try (var s = new GZIPOutputStream(bos)) {
+                s.write(bytes, off, len);
+            }
+            try (var s = new GZIPInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+                res += s.readNBytes(buf, 0, len);
+            }
+        }
+        return res;
+    }
+
+    static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    record Result(String benchmark, int sizeMiB, int iterations, double nanosPerOp,
+                  double throughputMiBs, double allocMiBPerOp, double allocRateMiBs, double peakHeapMiB) {}
+
+    static Result measure(Benchmark b, Corpus c, int sizeMiB) throws Exception {
+        // create input forms and warm up the JIT
+        long start = System.nanoTime();
+        int warmup = 0;
+        while (warmup < 2 || System.nanoTime() - start < MIN_WARMUP_NANOS) {
+            sink = b.op.run(c);
+            ++warmup;
+        }
+        sink = null;
+
+        long baseline = HeapUsage.getUsedAfterGc();
+        HeapUsage.resetPeak();
+
+        long allocStart = HeapUsage.getAllocatedBytes();
+        start = System.nanoTime();
+        long elapsed;
+        int iterations = 0;
+        do {
+            sink = b.op.run(c);
+            ++iterations;
+            elapsed = System.nanoTime() - start;
+        } while (iterations < MIN_MEASURED_ITERATIONS || elapsed < MIN_MEASURE_NANOS);
+        long allocated = HeapUsage.getAllocatedBytes() - allocStart;
+        long peak = HeapUsage.getPeak();
+        sink = null;
+
+        double nanosPerOp = (double) elapsed / iterations;
+        double mib = 1 << 20;
+        return new Result(b.name, sizeMiB, iterations, nanosPerOp,
+                c.bytes.length / mib / (nanosPerOp / 1e9),
+                allocated / mib / iterations,
+                allocated / mib / (elapsed / 1e9),
+                Math.max(0, peak - baseline) / mib);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = { 1, 10, 100 };
+        Pattern filter = null;
+        boolean tsv = false;
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--sizes" -> {
+                    String[] parts = args[++i].split(",");
+                    sizes = new int[parts.length];
+                    for (int j = 0; j < parts.length; ++j) {
+                        sizes[j] = Integer.parseInt(parts[j].trim());
+                    }
+                }
+                case "--filter" -> filter = Pattern.compile(args[++i]);
+                case "--tsv" -> tsv = true;
+                default -> {
+                    System.err.println("usage: [--sizes 1,10,100] [--filter regex] [--tsv]");
+                    System.exit(1);
+                }
+            }
+        }
+
+        List<Benchmark> benchmarks = createBenchmarks();
+        if (tsv) {
+            System.out.println("benchmark\tsize_mib\titerations\tms_per_op\tmib_per_s\talloc_mib_per_op"
+                    + "\talloc_mib_per_s\tpeak_heap_mib");
+        } else {
+            System.out.printf(Locale.ROOT, "%-26s %8s %10s %10s %12s %12s %10s%n", "benchmark", "MiB",
+                    "ms/op", "MiB/s", "alloc MiB/op", "alloc MiB/s", "peak MiB");
+        }
+        for (int size : sizes) {
+            // corpora of the current size only, larger ones don't fit into the heap together
+            Map<Corpora.Kind, Corpus> corpora = new EnumMap<>(Corpora.Kind.class);
+            for (Benchmark b : benchmarks) {
+                if (filter != null && !filter.matcher(b.name).find()) {
+                    continue;
+                }
+                Corpus c = corpora.computeIfAbsent(b.kind,
+                        k -> new Corpus(k, Corpora.generate(k, size << 20, SEED)));
+                Result r = measure(b, c, size);
+                if (tsv) {
+                    System.out.printf(Locale.ROOT, "%s\t%d\t%d\t%.3f\t%.1f\t%.2f\t%.1f\t%.1f%n",
+                            r.benchmark, r.sizeMiB, r.iterations, r.nanosPerOp / 1e6, r.throughputMiBs,
+                            r.allocMiBPerOp, r.allocRateMiBs, r.peakHeapMiB);
+                } else {
+                    System.out.printf(Locale.ROOT, "%-26s %8d %10.3f %10.1f %12.2f %12.1f %10.1f%n",
+                            r.benchmark, r.sizeMiB, r.nanosPerOp / 1e6, r.throughputMiBs,
+                            r.allocMiBPerOp, r.allocRateMiBs, r.peakHeapMiB);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package app.grapheneos.logviewer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.SplittableRandom;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Deterministic synthetic inputs in the formats that the app consumes. Same seed and size produce
+// the same bytes on every run, which keeps results comparable between builds
+class Corpora {
+    enum Kind {
+        // "logcat -v UTC,printable,uid,descriptive" output, with " +0000" still present
+        LOGCAT,
+        // text tombstone, also used as crashInfo.stackTrace of native crashes
+        TOMBSTONE,
+        // "/data/anr" trace with multiple processes
+        ANR,
+        // error report message with Java stack traces, it's received gzipped by ErrorReportActivity
+        ERROR_REPORT,
+    }
+
+    static byte[] generate(Kind kind, int size, long seed) {
+        var g = new Generator(size, seed);
+        switch (kind) {
+            case LOGCAT -> g.logcat();
+            case TOMBSTONE -> g.tombstone();
+            case ANR -> g.anr();
+            case ERROR_REPORT -> g.errorReport();
+        }
+        return g.toBytes();
+    }
+
+    static byte[] gzip(byte[] bytes) {
+        var bos = new ByteArrayOutputStream(bytes.length / 4);
+        try (var s = new GZIPOutputStream(bos, 64 * 1024)) {
+            s.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    private static final String[] TAGS = {
+            "ActivityManager", "WindowManager", "PackageManager", "AndroidRuntime", "libc",
+            "DEBUG", "chromium", "NetworkMonitor", "InputDispatcher", "vold", "ConnectivityService",
+    };
+    private static final String[] WORDS = {
+            "start", "proc", "for", "activity", "service", "broadcast", "timeout", "failed", "uid",
+            "user", "window", "focus", "binder", "transaction", "state", "changed", "to", "from",
+            "display", "Ошибка", "連線", "0x7f3a9c", "null", "true", "package", "com.example.app",
+    };
+    private static final String LEVELS = "VVDDDDIIIIIIWWWEEF";
+
+    private static class Generator {
+        private final StringBuilder b;
+        private final int size;
+        private final SplittableRandom r;
+
+        Generator(int size, long seed) {
+            this.b = new StringBuilder(size + 4096);
+            this.size = size;
+            this.r = new SplittableRandom(seed);
+        }
+
+        byte[] toBytes() {
+            return b.toString().getBytes(UTF_8);
+        }
+
+        // approximate, non-ASCII words are rare
+        private boolean isFull() {
+            return b.length() >= size;
+        }
+
+        private void words(int min, int max) {
+            for (int i = 0, n = min + r.nextInt(max - min + 1); i < n; ++i) {
+                if (i != 0) {
+                    b.append(' ');
+                }
+                b.append(WORDS[r.nextInt(WORDS.length)]);
+            }
+        }
+
+        private void hex(long v, int width) {
+            String s = Long.toHexString(v);
+            for (int i = s.length(); i < width; ++i) {
+                b.append('0');
+            }
+            b.append(s);
+        }
+
+        void logcat() {
+            String[] buffers = { "main", "system", "crash", "events" };
+            int bufferIdx = 0;
+            long timeMs = 0;
+            while (!isFull()) {
+                if (r.nextInt(20_000) == 0 || timeMs == 0) {
+                    b.append("--------- beginning of ").append(buffers[bufferIdx++ % buffers.length]).append('\n');
+                }
+                timeMs += r.nextInt(50);
+                int pid = 100 + r.nextInt(30_000);
+                int tid = r.nextInt(4) == 0 ? pid : pid + r.nextInt(200);
+                String uid = r.nextBoolean() ? "system" : "u0_a" + (10 + r.nextInt(300));
+                char level = LEVELS.charAt(r.nextInt(LEVELS.length()));
+                String tag = TAGS[r.nextInt(TAGS.length)];
+                if (r.nextInt(5_000) == 0) {
+                    fatalException(timeMs, uid, pid);
+                    continue;
+                }
+                logcatPrefix(timeMs, uid, pid, tid, level, tag);
+                words(2, 14);
+                b.append('\n');
+            }
+        }
+
+        private void logcatPrefix(long timeMs, String uid, int pid, int tid, char level, String tag) {
+            long s = timeMs / 1000;
+            b.append("10-19 ");
+            two((int) (s / 3600 % 24)).append(':');
+            two((int) (s / 60 % 60)).append(':');
+            two((int) (s % 60)).append('.');
+            long ms = timeMs % 1000;
+            b.append(ms < 100 ? (ms < 10 ? "00" : "0") : "").append(ms);
+            b.append(" +0000 ");
+            pad(uid, 8).append(' ');
+            pad(Integer.toString(pid), 5).append(' ');
+            pad(Integer.toString(tid), 5).append(' ');
+            b.append(level).append(' ');
+            b.append(tag);
+            for (int i = tag.length(); i < 8; ++i) {
+                b.append(' ');
+            }
+            b.append(": ");
+        }
+
+        private StringBuilder two(int v) {
+            return b.append(v < 10 ? "0" : "").append(v);
+        }
+
+        private StringBuilder pad(String s, int width) {
+            for (int i = s.length(); i < width; ++i) {
+                b.append(' ');
+            }
+            return b.append(s);
+        }
+
+        private void fatalException(long timeMs, String uid, int pid) {
+            logcatPrefix(timeMs, uid, pid, pid, 'E', "AndroidRuntime");
+            b.append("FATAL EXCEPTION: main\n");
+            logcatPrefix(timeMs, uid, pid, pid, 'E', "AndroidRuntime");
+            b.append("Process: com.example.app, PID: ").append(pid).append('\n');
+            for (int cause = 0; cause < 2; ++cause) {
+                logcatPrefix(timeMs, uid, pid, pid, 'E', "AndroidRuntime");
+                b.append(cause == 0 ? "" : "Caused by: ").append("java.lang.IllegalStateException: ");
+                words(2, 6);
+                b.append('\n');
+                for (int i = 0, n = 5 + r.nextInt(25); i < n; ++i) {
+                    logcatPrefix(timeMs, uid, pid, pid, 'E', "AndroidRuntime");
+                    b.append("\tat com.example.app.Class").append(r.nextInt(100)).append(".method")
+                            .append(r.nextInt(20)).append("(Class.java:").append(r.nextInt(900)).append(")\n");
+                }
+            }
+        }
+
+        void tombstone() {
+            int pid = 1000 + r.nextInt(20_000);
+            b.append("*** *** *** *** *** *** *** *** *** *** *** *** *** *** *** ***\n");
+            b.append("Build fingerprint: 'google/husky/husky:16/BP2A.250805.005/2025080500:user/release-keys'\n");
+            b.append("Revision: 'MP1.0'\n");
+            b.append("ABI: 'arm64'\n");
+            b.append("Timestamp: 2026-10-19 12:00:00.000000000+0000\n");
+            b.append("Process uptime: 42s\n");
+            b.append("Cmdline: com.example.app\n");
+            threadHeader(pid, pid, "main");
+            b.append("uid: 10123\n");
+            b.append("tagged_addr_ctrl: 0000000000000001 (PR_TAGGED_ADDR_ENABLE)\n");
+            b.append("signal 6 (SIGABRT), code -1 (SI_QUEUE), fault addr --------\n");
+            b.append("Abort message: '");
+            words(3, 10);
+            b.append("'\n");
+            registers();
+            backtrace(8 + r.nextInt(30));
+            for (String reg : new String[] { "x0", "x1", "x19", "sp", "pc" }) {
+                b.append("\nmemory near ").append(reg).append(":\n");
+                memoryDump(16);
+            }
+
+            // other threads take up the bulk, huge tombstones have thousands of them
+            int tid = pid;
+            // memory map and log tail take up the rest of the size
+            int threadsSize = size * 3 / 4;
+            while (b.length() < threadsSize) {
+                b.append("--- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---\n");
+                tid += 1 + r.nextInt(3);
+                threadHeader(pid, tid, "Thread-" + (tid - pid));
+                b.append("uid: 10123\n");
+                registers();
+                backtrace(3 + r.nextInt(20));
+                b.append('\n');
+            }
+
+            int mapEntries = Math.max(1, (size - b.length()) / 2 / 100);
+            b.append("\nmemory map (").append(mapEntries).append(" entries):\n");
+            long addr = 0x5a_0000_0000L;
+            for (int i = 0; i < mapEntries && !isFull(); ++i) {
+                b.append("    ");
+                hex(addr, 12);
+                b.append('-');
+                addr += 4096L * (1 + r.nextInt(256));
+                hex(addr - 1, 12);
+                b.append(" r-xp ");
+                hex(r.nextInt(1 << 20), 8);
+                b.append("  ").append(4096 * (1 + r.nextInt(256))).append("  /system/lib64/lib")
+                        .append(WORDS[r.nextInt(WORDS.length)]).append(".so (BuildId: ");
+                hex(r.nextLong() & Long.MAX_VALUE, 16);
+                b.append(")\n");
+            }
+
+            b.append("\nopen files:\n");
+            for (int fd = 0; fd < 64; ++fd) {
+                b.append("    fd ").append(fd).append(": /dev/ashmem (unowned)\n");
+            }
+
+            b.append("\n--------- tail end of log main\n");
+            long timeMs = 0;
+            while (!isFull()) {
+                timeMs += r.nextInt(50);
+                logcatPrefix(timeMs, "u0_a123", pid, pid + r.nextInt(50),
+                        LEVELS.charAt(r.nextInt(LEVELS.length())), TAGS[r.nextInt(TAGS.length)]);
+                words(2, 14);
+                b.append('\n');
+            }
+        }
+
+        private void threadHeader(int pid, int tid, String name) {
+            b.append("pid: ").append(pid).append(", tid: ").append(tid).append(", name: ").append(name)
+                    .append("  >>> com.example.app <<<\n");
+        }
+
+        private void registers() {
+            for (int i = 0; i < 32; i += 4) {
+                for (int j = i; j < i + 4; ++j) {
+                    b.append(j == i ? "    x" : "  x").append(j).append(j < 10 ? "  " : " ");
+                    hex(r.nextLong() & 0xffff_ffff_ffffL, 16);
+                }
+                b.append('\n');
+            }
+            b.append("    lr  ");
+            hex(r.nextLong() & 0xffff_ffff_ffffL, 16);
+            b.append("  sp  ");
+            hex(r.nextLong() & 0xffff_ffff_ffffL, 16);
+            b.append("  pc  ");
+            hex(r.nextLong() & 0xffff_ffff_ffffL, 16);
+            b.append('\n');
+        }
+
+        private void backtrace(int frames) {
+            b.append("\nbacktrace:\n");
+            for (int i = 0; i < frames; ++i) {
+                b.append("      #").append(i < 10 ? "0" : "").append(i).append(" pc ");
+                hex(r.nextInt(1 << 24), 16);
+                b.append("  /apex/com.android.runtime/lib64/bionic/libc.so (")
+                        .append(WORDS[r.nextInt(WORDS.length)]).append('+').append(r.nextInt(1000))
+                        .append(") (BuildId: ");
+                hex(r.nextLong() & Long.MAX_VALUE, 16);
+                b.append(")\n");
+            }
+        }
+
+        private void memoryDump(int lines) {
+            long addr = r.nextLong() & 0xffff_ffff_fff0L;
+            for (int i = 0; i < lines; ++i, addr += 16) {
+                b.append("    ");
+                hex(addr, 16);
+                b.append(' ');
+                hex(r.nextLong() & Long.MAX_VALUE, 16);
+                b.append(' ');
+                hex(r.nextLong() & Long.MAX_VALUE, 16);
+                b.append("  ................\n");
+            }
+        }
+
+        void anr() {
+            b.append("Subject: Input dispatching timed out (Application does not have a focused window)\n");
+            b.append("RssHwmKb: 123456\nRssKb: 120000\n\n");
+            int pid = 1000 + r.nextInt(20_000);
+            boolean first = true;
+            while (!isFull()) {
+                b.append("\n----- pid ").append(pid).append(" at 2026-10-19 12:00:00.000000000+0000 -----\n");
+                b.append("Cmd line: ").append(first ? "com.example.app" : "system_server").append('\n');
+                b.append("Build fingerprint: 'google/husky/husky:16/BP2A.250805.005/2025080500:user/release-keys'\n");
+                b.append("ABI: 'arm64'\nBuild type: optimized\n\n");
+                // large processes have hundreds of threads
+                int threads = first ? 200 : 20 + r.nextInt(400);
+                for (int t = 1; t <= threads && !isFull(); ++t) {
+                    String name = t == 1 ? "main" : "Thread-" + t;
+                    b.append('"').append(name).append("\" prio=5 tid=").append(t)
+                            .append(t == 1 ? " Blocked\n" : " Waiting\n");
+                    b.append("  | group=\"main\" sCount=1 ucsCount=0 flags=1 obj=0x72f0a8d0 self=0xb400007a\n");
+                    b.append("  | sysTid=").append(pid + t).append(" nice=0 cgrp=top-app sched=0/0 handle=0x7b\n");
+                    b.append("  | state=S schedstat=( 12345 6789 10 ) utm=1 stm=0 core=3 HZ=100\n");
+                    for (int i = 0, n = 3 + r.nextInt(25); i < n; ++i) {
+                        b.append("  at com.example.app.Class").append(r.nextInt(100)).append(".method")
+                                .append(r.nextInt(20)).append("(Class.java:").append(r.nextInt(900)).append(")\n");
+                        if (r.nextInt(8) == 0) {
+                            b.append("  - waiting to lock <0x0a1b2c3d> (a java.lang.Object) held by thread ")
+                                    .append(r.nextInt(threads) + 1).append('\n');
+                        }
+                    }
+                    b.append('\n');
+                }
+                b.append("----- end ").append(pid).append(" -----\n");
+                pid += 1 + r.nextInt(500);
+                first = false;
+            }
+        }
+
+        // Chains of exceptions with causes and suppressed exceptions, like the ones that are
+        // reported for system_server and for crashes in other processes. Build fingerprint isn't
+        // included, ErrorReportActivity searches the whole message for it
+        void errorReport() {
+            b.append("Process: com.example.app\nPID: 12345\nFlags: 0x38c83e44\n\n");
+            while (!isFull()) {
+                for (int cause = 0, causes = 1 + r.nextInt(4); cause < causes; ++cause) {
+                    if (cause != 0) {
+                        b.append(r.nextInt(4) == 0 ? "\tSuppressed: " : "Caused by: ");
+                    }
+                    b.append("java.lang.").append(r.nextBoolean() ? "IllegalStateException" : "RuntimeException")
+                            .append(": ");
+                    words(2, 8);
+                    b.append('\n');
+                    for (int i = 0, n = 5 + r.nextInt(40); i < n; ++i) {
+                        b.append("\tat com.example.app.Class").append(r.nextInt(100)).append(".method")
+                                .append(r.nextInt(20)).append("(Class.java:").append(r.nextInt(900)).append(")\n");
+                    }
+                    if (cause != 0) {
+                        b.append("\t... ").append(1 + r.nextInt(30)).append(" more\n");
+                    }
+                }
+                b.append('\n');
+            }
+        }
+    }
+}
\ No newline at end of file
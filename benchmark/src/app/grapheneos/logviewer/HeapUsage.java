@@ -0,0 +1,50 @@
+package app.grapheneos.logviewer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+// Heap usage of the JVM and allocations of the current thread, shared by Benchmarks and ScaleCheck
+class HeapUsage {
+    static long getAllocatedBytes() {
+        var bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static long getUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    // used heap after a full GC, the baseline for getPeak()
+    static long getUsedAfterGc() {
+        System.gc();
+        return getUsed();
+    }
+
+    static void resetPeak() {
+        for (MemoryPoolMXBean p : getHeapPools()) {
+            p.resetPeakUsage();
+        }
+    }
+
+    // sum of per-pool peaks since resetPeak(), an upper bound of the actual peak
+    static long getPeak() {
+        long res = 0;
+        for (MemoryPoolMXBean p : getHeapPools()) {
+            res += p.getPeakUsage().getUsed();
+        }
+        return res;
+    }
+
+    private static List<MemoryPoolMXBean> getHeapPools() {
+        var res = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (p.getType() == MemoryType.HEAP) {
+                res.add(p);
+            }
+        }
+        return res;
+    }
+}
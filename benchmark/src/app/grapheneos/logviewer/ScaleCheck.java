@@ -0,0 +1,206 @@
+package app.grapheneos.logviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Scale regression checks: runs the host-buildable parts of ViewModel construction on inputs of
+// the sizes that are seen on devices in bad states and fails if a time or peak heap ceiling is
+// exceeded. Exit status is non-zero if any check fails.
+//
+// java -Xmx4g -cp $ANDROID_HOST_OUT/framework/LogViewerBenchmark.jar app.grapheneos.logviewer.ScaleCheck
+//         [--filter regex] [--time-factor 2.0]
+//
+// Time ceilings are set for a developer workstation, --time-factor scales them for slower hosts.
+// Peak heap is the growth of the heap above the input during a single run, including garbage
+class ScaleCheck {
+    private static final long SEED = 0x5363616c;
+    private static final int RUNS = 3;
+    private static final double MIB = 1 << 20;
+
+    interface Input {
+        Object create();
+    }
+
+    interface Op {
+        Object run(Object input) throws Exception;
+    }
+
+    // peak heap ceiling is peakPerInputByte * input size + 16 MiB
+    record Check(String name, Input input, long inputSize, Op op, long maxMillis, double peakPerInputByte) {}
+
+    record Result(Check check, long millis, long peakBytes) {
+        long maxPeakBytes() {
+            return (long) (check.peakPerInputByte * check.inputSize) + (16 << 20);
+        }
+    }
+
+    static List<Check> createChecks() {
+        var l = new ArrayList<Check>();
+
+        // all 4 logd buffers at 16 MiB, read from the logcat pipe like LogcatActivity does
+        int logcatSize = 64 << 20;
+        l.add(new Check("logcat.read", () -> Corpora.generate(Corpora.Kind.LOGCAT, logcatSize, SEED),
+                logcatSize, input -> {
+                    var b = new LineBuffer.Builder(0, LogcatLine::removeUtcOffset);
+                    b.readFrom(new PipeInputStream((byte[]) input));
+                    return b.build();
+                }, 1_000, 2.5));
+
+        // ViewModel of a stopped activity, see BaseActivity.onStop()
+        l.add(new Check("logcat.compress", () -> Corpora.generate(Corpora.Kind.LOGCAT, logcatSize, SEED),
+                logcatSize, input -> {
+                    LineBuffer lines = LineBuffer.wrap((byte[]) input);
+                    lines.compress();
+                    return lines;
+                }, 4_000, 1));
+
+        // EXTRA_GZIPPED_MESSAGE of ErrorReportActivity
+        int errorReportSize = 16 << 20;
+        l.add(new Check("errorReport.gzipped",
+                () -> Corpora.gzip(Corpora.generate(Corpora.Kind.ERROR_REPORT, errorReportSize, SEED)),
+                errorReportSize, input -> {
+                    LineBuffer msg = LineBuffer.readGzip((byte[]) input);
+                    if (msg.contains("google/husky/husky:16/")) {
+                        throw new IllegalStateException();
+                    }
+                    return msg;
+                }, 500, 1.5));
+
+        // text tombstone with about 10k threads
+        int tombstoneSize = 32 << 20;
+        l.add(new Check("tombstone.text", () -> Corpora.generate(Corpora.Kind.TOMBSTONE, tombstoneSize, SEED),
+                tombstoneSize, input -> {
+                    LineBuffer body = LineBuffer.wrap((byte[]) input);
+                    List<Section> sections = TombstoneParser.parse(body);
+                    if (sections == null || sections.size() < 10_000) {
+                        throw new IllegalStateException("unexpected section count");
+                    }
+                    return sections;
+                }, 500, 0.5));
+
+        // crashInfo.stackTrace of a native crash
+        l.add(new Check("tombstone.nativeCrash",
+                () -> new String(Corpora.generate(Corpora.Kind.TOMBSTONE, tombstoneSize, SEED), UTF_8),
+                tombstoneSize, input -> {
+                    LineBuffer summary = NativeCrashSummary.extract((String) input);
+                    if (summary == null) {
+                        throw new IllegalStateException("native crash wasn't detected");
+                    }
+                    return summary;
+                }, 750, 5));
+
+        // ANR trace file, streamed from the file like ErrorReportActivity does. All processes are
+        // rendered, as if the user has expanded each of them
+        int anrSize = 50 << 20;
+        l.add(new Check("anr.trace", () -> writeTempFile(Corpora.generate(Corpora.Kind.ANR, anrSize, SEED)),
+                anrSize, input -> {
+                    LineBuffer body = AnrTraceParser.readTracesFile((String) input, 0).build();
+                    AnrTraceParser.AnrTraces traces = AnrTraceParser.parse(body, "com.example.app");
+                    if (traces.mainThread() == null) {
+                        throw new IllegalStateException("main thread wasn't found");
+                    }
+                    long lines = 0;
+                    for (Section s : traces.sections()) {
+                        if (s.isLazy()) {
+                            lines += s.getRenderedLines().size();
+                        }
+                    }
+                    return lines;
+                }, 1_500, 1.5));
+        return l;
+    }
+
+    private static String writeTempFile(byte[] bytes) {
+        try {
+            Path p = Files.createTempFile("ScaleCheck", null);
+            p.toFile().deleteOnExit();
+            Files.write(p, bytes);
+            return p.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // reads are limited to the pipe capacity
+    private static class PipeInputStream extends FilterInputStream {
+        PipeInputStream(byte[] bytes) {
+            super(new ByteArrayInputStream(bytes));
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 64 * 1024));
+        }
+    }
+
+    static Result run(Check c) throws Exception {
+        Object input = c.input.create();
+        // warms up the JIT
+        Benchmarks.sink = c.op.run(input);
+        Benchmarks.sink = null;
+
+        long minMillis = Long.MAX_VALUE;
+        long minPeak = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; ++i) {
+            long baseline = HeapUsage.getUsedAfterGc();
+            HeapUsage.resetPeak();
+            long start = System.nanoTime();
+            Benchmarks.sink = c.op.run(input);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            long peak = HeapUsage.getPeak() - baseline;
+            Benchmarks.sink = null;
+            // minimums are the least noisy, regressions show up in all runs
+            minMillis = Math.min(minMillis, millis);
+            minPeak = Math.min(minPeak, Math.max(0, peak));
+        }
+        return new Result(c, minMillis, minPeak);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Pattern filter = null;
+        double timeFactor = 1.0;
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--filter" -> filter = Pattern.compile(args[++i]);
+                case "--time-factor" -> timeFactor = Double.parseDouble(args[++i]);
+                default -> {
+                    System.err.println("usage: [--filter regex] [--time-factor 2.0]");
+                    System.exit(1);
+                }
+            }
+        }
+
+        System.out.printf(Locale.ROOT, "%-24s %8s %10s %10s %10s %10s  %s%n", "check", "MiB",
+                "ms", "max ms", "peak MiB", "max MiB", "result");
+        int failed = 0;
+        for (Check c : createChecks()) {
+            if (filter != null && !filter.matcher(c.name).find()) {
+                continue;
+            }
+            Result r = run(c);
+            long maxMillis = (long) (c.maxMillis * timeFactor);
+            boolean ok = r.millis <= maxMillis && r.peakBytes <= r.maxPeakBytes();
+            if (!ok) {
+                ++failed;
+            }
+            System.out.printf(Locale.ROOT, "%-24s %8d %10d %10d %10.1f %10.1f  %s%n", c.name,
+                    c.inputSize >> 20, r.millis, maxMillis, r.peakBytes / MIB, r.maxPeakBytes() / MIB,
+                    ok ? "ok" : "FAILED");
+        }
+        if (failed != 0) {
+            System.out.println(failed + " checks failed");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// Indexes ANR traces by process ("----- pid N at ... -----" blocks) and by thread in a single pass
+// over its lines. All processes except the one that is reported are collapsed, in the reported
+// process only the main thread is expanded
+class AnrTraceParser {
+    private static final String PROCESS_START_PREFIX = "----- pid ";
+    private static final String WAITING_CHANNELS_PREFIX = "----- Waiting Channels: pid ";
+    private static final String PROCESS_END_PREFIX = "----- end ";
+    private static final String CMD_LINE_PREFIX = "Cmd line: ";
+
+    // mainThread is null if the reported process has no "main" thread, e.g. if its trace was cut
+    record AnrTraces(List<Section> sections, @Nullable Section reportedProcess, @Nullable Section mainThread) {}
+
+    // Streams the traces file, which can be tens of MiB, into a builder that is sized for it and
+    // for extraSize more bytes that the caller appends after it
+    static LineBuffer.Builder readTracesFile(String path, int extraSize) throws IOException {
+        Path p = Paths.get(path);
+        var b = new LineBuffer.Builder((int) Math.min(Files.size(p) + extraSize, 1 << 30));
+        try (InputStream s = Files.newInputStream(p)) {
+            b.readFrom(s);
+        }
+        return b;
+    }
+
+    private static class ProcessBuilder {
+        final int start;
+        final String pid;
+        final boolean isWaitingChannels;
+        @Nullable String cmdLine;
+        boolean ended;
+
+        final ArrayList<Section> threads = new ArrayList<>();
+        int threadStart = -1;
+        String threadTitle;
+
+        ProcessBuilder(int start, String pid, boolean isWaitingChannels) {
+            this.start = start;
+            this.pid = pid;
+            this.isWaitingChannels = isWaitingChannels;
+        }
+
+        void closeThread(int end) {
+            if (threadStart >= 0) {
+                threads.add(new Section(threadTitle, threadStart, end, false));
+                threadStart = -1;
+            }
+        }
+
+        Section build(int end) {
+            closeThread(end);
+            if (isWaitingChannels) {
+                return new Section("Waiting Channels: pid " + pid, start, end, false);
+            }
+            String title = (cmdLine != null ? cmdLine + ' ' : "")
+                    + "(pid " + pid + ", " + threads.size() + " threads)";
+            if (threads.isEmpty()) {
+                return new Section(title, start, end, false);
+            }
+            return new Section(title, start, end, false, threads);
+        }
+    }
+
+    static AnrTraces parse(LineBuffer lines, @Nullable String processName) {
+        var sections = new ArrayList<Section>();
+        var processCmdLines = new ArrayList<String>();
+        final int lineCount = lines.size();
+
+        ProcessBuilder process = null;
+        int chunkStart = 0;
+
+        for (int line = 0; line < lineCount; ++line) {
+            boolean isProcessStart = lines.startsWith(line, PROCESS_START_PREFIX);
+            boolean isWaitingChannels = !isProcessStart
+                    && lines.startsWith(line, WAITING_CHANNELS_PREFIX);
+            if (process != null && (isProcessStart || isWaitingChannels
+                    || (process.ended && lines.getLineByteLength(line) != 0))) {
+                sections.add(process.build(line));
+                processCmdLines.add(process.cmdLine);
+                process = null;
+                chunkStart = line;
+            }
+
+            if (isProcessStart || isWaitingChannels) {
+                if (line != chunkStart) {
+                    sections.add(createChunk(lines, chunkStart, line));
+                    processCmdLines.add(null);
+                }
+                String prefix = isProcessStart ? PROCESS_START_PREFIX : WAITING_CHANNELS_PREFIX;
+                String s = lines.get(line);
+                int pidEnd = s.indexOf(' ', prefix.length());
+                if (pidEnd < 0) {
+                    pidEnd = s.length();
+                }
+                process = new ProcessBuilder(line, s.substring(prefix.length(), pidEnd),
+                        isWaitingChannels);
+            } else if (process != null && !process.ended && !process.isWaitingChannels) {
+                if (lines.startsWith(line, "\"")) {
+                    process.closeThread(line);
+                    process.threadStart = line;
+                    process.threadTitle = lines.get(line);
+                } else if (process.cmdLine == null && process.threadStart < 0
+                        && lines.startsWith(line, CMD_LINE_PREFIX)) {
+                    process.cmdLine = lines.get(line).substring(CMD_LINE_PREFIX.length());
+                } else if (lines.startsWith(line, PROCESS_END_PREFIX)) {
+                    process.ended = true;
+                }
+            } else if (process != null && lines.startsWith(line, PROCESS_END_PREFIX)) {
+                process.ended = true;
+            }
+        }
+
+        if (process != null) {
+            sections.add(process.build(lineCount));
+            processCmdLines.add(process.cmdLine);
+        } else if (chunkStart < lineCount) {
+            sections.add(createChunk(lines, chunkStart, lineCount));
+            processCmdLines.add(null);
+        }
+
+        Section reportedProcess = null;
+        for (int i = 0; i < sections.size(); ++i) {
+            Section s = sections.get(i);
+            if (s.children == null) {
+                continue;
+            }
+            if (reportedProcess == null) {
+                // fallback to the first process, it's usually the one that is not responding
+                reportedProcess = s;
+            }
+            if (processName != null && processName.equals(processCmdLines.get(i))) {
+                reportedProcess = s;
+                break;
+            }
+        }
+
+        Section mainThread = null;
+        if (reportedProcess != null) {
+            reportedProcess.expanded = true;
+            for (Section t : reportedProcess.children) {
+                if (t.title.startsWith("\"main\"")) {
+                    mainThread = t;
+                    break;
+                }
+            }
+            if (mainThread != null) {
+                mainThread.expanded = true;
+            }
+        }
+        return new AnrTraces(sections, reportedProcess, mainThread);
+    }
+
+    // text between process blocks, e.g. ANR subject or AnrInfo dump
+    private static Section createChunk(LineBuffer lines, int start, int end) {
+        String title = "";
+        for (int line = start; line < end; ++line) {
+            String s = lines.get(line);
+            if (!s.isBlank()) {
+                title = s.trim();
+                break;
+            }
+        }
+        return new Section(title, start, end, true);
+    }
+}
@@ -8,9 +8,10 @@ import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.ParcelUuid;
+import android.os.SystemProperties;
 import android.text.Editable;
 import android.util.DisplayMetrics;
-import android.util.LruCache;
+import android.util.Log;
 import android.util.TypedValue;
 import android.view.Gravity;
 import android.view.Menu;
@@ -19,48 +20,140 @@ import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
+import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
 
 import static android.view.ViewGroup.LayoutParams.MATCH_PARENT;
-import static app.grapheneos.logviewer.Utils.splitLines;
+import static android.view.ViewGroup.LayoutParams.WRAP_CONTENT;
+import static app.grapheneos.logviewer.StringUtils.splitLines;
 import static java.lang.Math.max;
 import static java.lang.Math.min;
 import static java.util.Collections.emptyList;
 
 public abstract class BaseActivity extends Activity {
-    // Activity instanceId, used to locate viewModel
-    private ParcelUuid instanceId;
+    private static final String TAG = BaseActivity.class.getSimpleName();
+
+    // Activity instanceId, used to locate viewModel. It's set before createViewModel() is called
+    ParcelUuid instanceId;
     protected ViewModel viewModel;
 
     @Nullable
     abstract ViewModel createViewModel();
 
-    private static final LruCache<ParcelUuid, ViewModel> viewModels = new LruCache<>(100 * (1 << 20)) {
-        @Override
-        protected int sizeOf(ParcelUuid key, ViewModel value) {
-            int multiplier = 2; // at most 2 bytes per char
-            return (value.header.length() + value.body.length() + value.description.length()) * multiplier;
+    // Stages of ViewModel creation and of the first draw of its list. Subclasses add their stages
+    // in createViewModel()
+    PipelineTrace loadTrace;
+
+    // ViewModels are retained across activity recreation until they are evicted by MemoryBudget.
+    // ViewModels of started activities are pinned, their bodies are on screen
+    private static final HashMap<ParcelUuid, ViewModel> viewModels = new HashMap<>();
+
+    @Nullable
+    private static ViewModel getCachedViewModel(ParcelUuid id) {
+        ViewModel vm;
+        synchronized (viewModels) {
+            vm = viewModels.get(id);
+        }
+        if (vm != null && vm.memoryHandle != null) {
+            MemoryBudget.touch(vm.memoryHandle);
+        }
+        return vm;
+    }
+
+    // Registers vm with MemoryBudget if it isn't registered yet or if it was evicted. Evicted
+    // ViewModels are moved to ViewModelDiskCache, they stay in viewModels until they are written
+    // to not recreate them if their activity is recreated in the meantime
+    private static void cacheViewModel(Context ctx, ParcelUuid id, ViewModel vm, boolean pinned) {
+        MemoryBudget.Handle h;
+        synchronized (viewModels) {
+            viewModels.put(id, vm);
+            h = vm.memoryHandle;
+        }
+        if (h != null && MemoryBudget.setPinned(h, pinned)) {
+            return;
+        }
+        Context appCtx = ctx.getApplicationContext();
+        h = MemoryBudget.register(MemoryBudget.Tier.DATA, "ViewModel " + vm.title,
+                vm.getMemoryUsage(), pinned, () -> storeViewModel(appCtx, id, vm, true));
+        synchronized (viewModels) {
+            vm.memoryHandle = h;
         }
-    };
+    }
+
+    private static void storeViewModel(Context appCtx, ParcelUuid id, ViewModel vm, boolean evicted) {
+        if (vm.storedOnDisk) {
+            if (evicted) {
+                removeEvictedViewModel(id, vm);
+            }
+            return;
+        }
+        IoScheduler.io.execute(() -> {
+            ViewModelDiskCache.write(appCtx, id, vm);
+            if (evicted) {
+                removeEvictedViewModel(id, vm);
+            }
+        });
+    }
+
+    private static void removeEvictedViewModel(ParcelUuid id, ViewModel vm) {
+        synchronized (viewModels) {
+            MemoryBudget.Handle h = vm.memoryHandle;
+            // registered again if its activity was recreated or started after the eviction
+            if (h == null || !MemoryBudget.isRegistered(h)) {
+                viewModels.remove(id, vm);
+            }
+        }
+    }
+
+    private static void removeCachedViewModel(Context ctx, ParcelUuid id) {
+        ViewModel vm;
+        synchronized (viewModels) {
+            vm = viewModels.remove(id);
+        }
+        if (vm != null && vm.memoryHandle != null) {
+            MemoryBudget.unregister(vm.memoryHandle);
+        }
+        Context appCtx = ctx.getApplicationContext();
+        IoScheduler.io.execute(() -> ViewModelDiskCache.delete(appCtx, id));
+    }
+
+    private static boolean diskCacheTrimmed;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        PipelineTrace trace = PipelineTrace.begin(getClass().getSimpleName());
+        loadTrace = trace;
+
         ParcelUuid instanceId;
         ViewModel vm = null;
         if (savedInstanceState != null) {
             instanceId = savedInstanceState.getParcelable(KEY_INSTANCE_ID, ParcelUuid.class);
-            vm = viewModels.get(instanceId);
+            vm = getCachedViewModel(instanceId);
+            if (vm == null) {
+                // ViewModel was evicted or the process was killed while the activity was stopped
+                trace.beginStage("disk cache read");
+                vm = ViewModelDiskCache.read(this, instanceId);
+                if (vm != null) {
+                    trace.endStage(vm.body.getByteLength(), vm.body.size());
+                }
+            }
         } else {
             instanceId = new ParcelUuid(UUID.randomUUID());
         }
@@ -72,8 +165,10 @@ public abstract class BaseActivity extends Activity {
         }
 
         if (vm != null) {
-            viewModels.put(instanceId, vm);
+            cacheViewModel(this, instanceId, vm, false);
         } else {
+            trace.setError("no ViewModel");
+            trace.finish();
             finishAndRemoveTask();
             return;
         }
@@ -84,7 +179,9 @@ public abstract class BaseActivity extends Activity {
         final Context ctx = this;
 
         this.listAdapter = new AListAdapter();
+        trace.beginStage("list items");
         updateListItems();
+        trace.endStage(0, listItems.size());
         {
             // RecyclerView doesn't support programmatic instantion properly, e.g. scrollbar would
             // be broken
@@ -95,8 +192,14 @@ public abstract class BaseActivity extends Activity {
             // needed for state restoration
             v.setId(1);
         }
-        if (savedInstanceState == null && shouldScrollToBottom()) {
-            scrollToBottom();
+        if (savedInstanceState == null) {
+            int initialSectionPos = vm.initialSection != null ? listItems.indexOf(vm.initialSection) : -1;
+            if (initialSectionPos >= 0) {
+                ((LinearLayoutManager) listView.getLayoutManager())
+                        .scrollToPositionWithOffset(initialSectionPos, 0);
+            } else if (shouldScrollToBottom()) {
+                scrollToBottom();
+            }
         }
 
         // pinch-to-zoom for list items
@@ -157,7 +260,7 @@ public abstract class BaseActivity extends Activity {
         } else {
             var b = new Button(ctx);
             b.setText(R.string.action_share);
-            b.setOnClickListener(v -> onActionShare());
+            b.setOnClickListener(v -> onActionShare(false));
             btnLayout.addView(b);
         }
         for (BottomButton bb : createExtraBottomButtons()) {
@@ -165,6 +268,16 @@ public abstract class BaseActivity extends Activity {
             b.setText(bb.text);
             b.setOnClickListener(bb.action);
             btnLayout.addView(b);
+            BooleanSupplier availability = bb.availability;
+            if (availability != null) {
+                b.setVisibility(View.GONE);
+                CompletableFuture.supplyAsync(availability::getAsBoolean, IoScheduler.io)
+                        .thenAcceptAsync(available -> {
+                            if (available) {
+                                b.setVisibility(View.VISIBLE);
+                            }
+                        }, getMainExecutor());
+            }
         }
         {
             var l = new LinearLayout(ctx);
@@ -174,31 +287,188 @@ public abstract class BaseActivity extends Activity {
             l.addView(btnLayout);
             int pad = dpToPx(16);
             l.setPadding(pad, pad, pad, pad);
-            setContentView(l);
+            if (SystemProperties.getBoolean(PROP_TRACE_OVERLAY, false)) {
+                var root = new FrameLayout(ctx);
+                root.addView(l);
+                traceOverlay = createTraceOverlay();
+                root.addView(traceOverlay, new FrameLayout.LayoutParams(WRAP_CONTENT, WRAP_CONTENT,
+                        Gravity.TOP | Gravity.END));
+                setContentView(root);
+            } else {
+                setContentView(l);
+            }
+        }
+
+        CompletableFuture<Void> pendingContent = vm.pendingContent;
+        if (pendingContent != null) {
+            contentPending = true;
+            pendingContent.whenCompleteAsync((res, e) -> onPendingContentLoaded(pendingContent, e),
+                    getMainExecutor());
+        }
+
+        // binding of list items includes decoding of their lines
+        trace.beginStage("first draw");
+        boundItemCount = 0;
+        listView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                listView.getViewTreeObserver().removeOnPreDrawListener(this);
+                trace.endStage(0, boundItemCount);
+                firstDrawDone = true;
+                if (contentPending) {
+                    trace.beginStage("pending content");
+                }
+                maybeReportFullyDrawn();
+                return true;
+            }
+        });
+
+        if (vm.task != null) {
+            taskProgressDialog = TaskProgressDialog.attach(this, vm.task);
         }
     }
 
     private static final String KEY_INSTANCE_ID = "instance_id";
 
+    private boolean firstDrawDone;
+    private boolean contentPending;
+
+    private void onPendingContentLoaded(CompletableFuture<Void> pendingContent, @Nullable Throwable e) {
+        contentPending = false;
+        ViewModel vm = viewModel;
+        if (e != null) {
+            Log.e(TAG, "", e);
+        }
+        if (vm.pendingContent == pendingContent) {
+            vm.pendingContent = null;
+        }
+        if (isDestroyed()) {
+            return;
+        }
+        if (e == null) {
+            setTitle(vm.title);
+            updateListItems();
+        }
+        maybeReportFullyDrawn();
+    }
+
+    // Called when the first frame is drawn and when pending content is loaded. Work that isn't
+    // needed for the first frame is started afterwards
+    private void maybeReportFullyDrawn() {
+        if (!firstDrawDone || contentPending) {
+            return;
+        }
+        reportFullyDrawn();
+        loadTrace.finish();
+
+        if (!diskCacheTrimmed) {
+            diskCacheTrimmed = true;
+            // after the ViewModelDiskCache read in onCreate(), to not race with it
+            Context appCtx = getApplicationContext();
+            IoScheduler.io.execute(() -> ViewModelDiskCache.trim(appCtx));
+        }
+    }
+
+    // adb shell setprop debug.logviewer.trace_overlay 1
+    private static final String PROP_TRACE_OVERLAY = "debug.logviewer.trace_overlay";
+    private static final int TRACE_OVERLAY_RUNS = 3;
+
+    @Nullable
+    private TextView traceOverlay;
+    private final Runnable traceOverlayUpdater = () -> runOnUiThread(this::updateTraceOverlay);
+    private int boundItemCount;
+
+    private TextView createTraceOverlay() {
+        var v = new TextView(this);
+        v.setTypeface(Typeface.MONOSPACE);
+        v.setTextSize(8f);
+        v.setTextColor(0xff_ff_ff_ff);
+        v.setBackgroundColor(0xb0_00_00_00);
+        int pad = dpToPx(4);
+        v.setPadding(pad, pad, pad, pad);
+        return v;
+    }
+
+    private void updateTraceOverlay() {
+        TextView v = traceOverlay;
+        if (v == null) {
+            return;
+        }
+        var sb = new StringBuilder();
+        for (PipelineTrace t : PipelineTrace.getRecentRuns(TRACE_OVERLAY_RUNS)) {
+            sb.append(t.format(""));
+        }
+        v.setText(sb.toString().trim());
+    }
+
+    // adb shell dumpsys activity app.grapheneos.logviewer
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        PipelineTrace.dump(writer);
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         outState.putParcelable(KEY_INSTANCE_ID, instanceId);
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (viewModel != null) {
+            cacheViewModel(this, instanceId, viewModel, true);
+        }
+        if (traceOverlay != null) {
+            PipelineTrace.addListener(traceOverlayUpdater);
+            updateTraceOverlay();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        PipelineTrace.removeListener(traceOverlayUpdater);
+        MemoryBudget.Handle h = viewModel != null ? viewModel.memoryHandle : null;
+        if (h != null) {
+            MemoryBudget.setPinned(h, false);
+        }
+        // process might be killed while the activity is in the background
+        if (viewModel != null && !isFinishing() && !isChangingConfigurations()) {
+            ViewModel vm = viewModel;
+            storeViewModel(getApplicationContext(), instanceId, vm, false);
+            // Body of an activity that isn't shown is kept compressed. When the activity is shown
+            // again, only the blocks that contain visible lines are inflated
+            IoScheduler.cpu.execute(() -> {
+                vm.compress();
+                vm.updateMemoryUsage();
+            });
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
 
+        if (taskProgressDialog != null) {
+            taskProgressDialog.detach();
+            taskProgressDialog = null;
+        }
+        if (isFinishing() && viewModel != null && viewModel.task != null) {
+            viewModel.task.cancel();
+        }
+
         if (isFinishing()) {
             ParcelUuid id = this.instanceId;
             if (id != null) {
-                viewModels.remove(id);
+                removeCachedViewModel(this, id);
             }
         }
     }
 
-    private final ArrayList<String> listItems = new ArrayList<>();
+    // contains body lines and titles of body sections (Section instances)
+    private final ArrayList<Object> listItems = new ArrayList<>();
     private AListAdapter listAdapter;
     private RecyclerView listView;
 
@@ -206,7 +476,7 @@ public abstract class BaseActivity extends Activity {
     private ScaleGestureDetector listScaleGestureDetector;
 
     void updateListItems() {
-        ArrayList<String> l = listItems;
+        ArrayList<Object> l = listItems;
         l.clear();
 
         ViewModel m = viewModel;
@@ -215,7 +485,17 @@ public abstract class BaseActivity extends Activity {
         if (!headerLines.isEmpty()) {
             l.add("");
         }
-        l.addAll(m.createBodyLines());
+        List<Section> sections = m.sections;
+        if (sections != null) {
+            for (Section s : sections) {
+                l.add(s);
+                if (s.expanded) {
+                    addSectionRows(l, s);
+                }
+            }
+        } else {
+            l.addAll(m.createBodyRows());
+        }
 
         String desc = m.description;
         if (!desc.isBlank()) {
@@ -229,6 +509,51 @@ public abstract class BaseActivity extends Activity {
         listView.scrollToPosition(listItems.size() - 1);
     }
 
+    // rows of expanded section, excluding its title
+    private void addSectionRows(List<Object> dst, Section s) {
+        List<Section> children = s.children;
+        if (children == null) {
+            dst.addAll(viewModel.createSectionLines(s));
+            return;
+        }
+        dst.addAll(viewModel.createSectionHeadLines(s));
+        for (Section c : children) {
+            dst.add(c);
+            if (c.expanded) {
+                addSectionRows(dst, c);
+            }
+        }
+    }
+
+    private static int countSectionRows(Section s) {
+        List<Section> children = s.children;
+        if (children == null) {
+            return s.lineCount;
+        }
+        int res = s.headLineCount;
+        for (Section c : children) {
+            res += 1 + (c.expanded ? countSectionRows(c) : 0);
+        }
+        return res;
+    }
+
+    private void toggleSection(int pos) {
+        Section s = (Section) listItems.get(pos);
+        ArrayList<Object> l = listItems;
+        if (s.expanded) {
+            int count = countSectionRows(s);
+            l.subList(pos + 1, pos + 1 + count).clear();
+            listAdapter.notifyItemRangeRemoved(pos + 1, count);
+        } else {
+            var rows = new ArrayList<Object>();
+            addSectionRows(rows, s);
+            l.addAll(pos + 1, rows);
+            listAdapter.notifyItemRangeInserted(pos + 1, rows.size());
+        }
+        s.expanded = !s.expanded;
+        listAdapter.notifyItemChanged(pos);
+    }
+
     class AListAdapter extends RecyclerView.Adapter<AListAdapter.VHolder> {
         static class VHolder extends RecyclerView.ViewHolder {
             final TextView textView;
@@ -239,23 +564,52 @@ public abstract class BaseActivity extends Activity {
             }
         }
 
+        static final int VIEW_TYPE_LINE = 0;
+        static final int VIEW_TYPE_SECTION_TITLE = 1;
+
+        @Override
+        public int getItemViewType(int pos) {
+            return listItems.get(pos) instanceof Section ? VIEW_TYPE_SECTION_TITLE : VIEW_TYPE_LINE;
+        }
+
         @Override
         public VHolder onCreateViewHolder(ViewGroup parent, int viewType) {
             Context ctx = parent.getContext();
             var v = new TextView(ctx);
-            v.setTypeface(Typeface.MONOSPACE);
+            boolean isSectionTitle = viewType == VIEW_TYPE_SECTION_TITLE;
+            v.setTypeface(Typeface.MONOSPACE, isSectionTitle ? Typeface.BOLD : Typeface.NORMAL);
             boolean isNight = ctx.getResources().getConfiguration().isNightModeActive();
             // default color is too light
             int color = isNight ?  0xff_d0_d0_d0 : 0xff_00_00_00;
             v.setTextColor(color);
-            return new VHolder(v);
+            var holder = new VHolder(v);
+            if (isSectionTitle) {
+                v.setOnClickListener(view -> {
+                    int pos = holder.getBindingAdapterPosition();
+                    if (pos != RecyclerView.NO_POSITION) {
+                        toggleSection(pos);
+                    }
+                });
+            }
+            return holder;
         }
 
         @Override
         public void onBindViewHolder(VHolder holder, int pos) {
+            ++boundItemCount;
             TextView v = holder.textView;
             v.setTextSize(fontSizeSp);
-            v.setText(prepareLineForDisplay(listItems.get(pos)));
+            Object item = listItems.get(pos);
+            if (item instanceof Section s) {
+                char marker = s.expanded ? '▾' : '▸';
+                // parent sections include the number of child sections in their title
+                String text = s.lineCount >= 0 && s.children == null ?
+                        getString(R.string.section_title, marker, s.title, s.lineCount) :
+                        getString(R.string.section_title_not_rendered, marker, s.title);
+                v.setText("  ".repeat(s.depth) + text);
+            } else {
+                v.setText(prepareLineForDisplay((String) item));
+            }
         }
 
         @Override
@@ -270,15 +624,23 @@ public abstract class BaseActivity extends Activity {
         return super.dispatchTouchEvent(ev);
     }
 
-    void onActionShare() {
+    void onActionShare(boolean gzip) {
         ViewModel.Snapshot s = ViewModel.Snapshot.create(viewModel);
-        Uri uri = BlobProvider.getUri(s.fileName, s.textBytes);
+        Uri uri = BlobProvider.getUri(s.fileName, s);
+        String fileName = s.fileName;
+        String mimeType = ViewModel.Snapshot.MIME_TYPE;
+        if (gzip) {
+            // blob is stored gzipped, this variant is served without recompression
+            uri = BlobProvider.getGzipUri(uri);
+            fileName += ".gz";
+            mimeType = BlobProvider.GZIP_MIME_TYPE;
+        }
         var i = new Intent(Intent.ACTION_SEND);
-        i.putExtra(Intent.EXTRA_SUBJECT, s.fileName);
-        i.setType(ViewModel.Snapshot.MIME_TYPE);
+        i.putExtra(Intent.EXTRA_SUBJECT, fileName);
+        i.setType(mimeType);
         i.putExtra(Intent.EXTRA_STREAM, uri);
         i.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-        startActivity(Intent.createChooser(i, s.fileName));
+        startActivity(Intent.createChooser(i, fileName));
     }
 
     int dpToPx(int dp) {
@@ -313,10 +675,18 @@ public abstract class BaseActivity extends Activity {
     static class BottomButton {
         final CharSequence text;
         final View.OnClickListener action;
+        // checked in the background, button is hidden until it's known to be available
+        @Nullable
+        final BooleanSupplier availability;
 
         BottomButton(CharSequence text, View.OnClickListener action) {
+            this(text, action, null);
+        }
+
+        BottomButton(CharSequence text, View.OnClickListener action, @Nullable BooleanSupplier availability) {
             this.text = text;
             this.action = action;
+            this.availability = availability;
         }
     }
 
@@ -325,6 +695,7 @@ public abstract class BaseActivity extends Activity {
     }
 
     private MenuItem miShare;
+    private MenuItem miShareGzip;
     private MenuItem miSave;
     private MenuItem miSetDescription;
 
@@ -333,6 +704,7 @@ public abstract class BaseActivity extends Activity {
         if (shouldShowReportButton()) {
             miShare = menu.add(R.string.action_share);
         }
+        miShareGzip = menu.add(R.string.action_share_gzip);
         if (viewModel.showCopyButton) { // false when "Copy" button is replace with "Save" button
             miSave = menu.add(R.string.action_save);
         }
@@ -350,7 +722,11 @@ public abstract class BaseActivity extends Activity {
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (miShare == item) {
-            onActionShare();
+            onActionShare(false);
+            return true;
+        }
+        if (miShareGzip == item) {
+            onActionShare(true);
             return true;
         }
         if (miSave == item) {
@@ -362,6 +738,7 @@ public abstract class BaseActivity extends Activity {
                     viewModel.description, null, (Editable res) -> {
                 String s = res.toString().trim();
                 viewModel.description = s;
+                viewModel.storedOnDisk = false;
                 miSetDescription.setTitle(getDescriptionActionTitle());
                 updateListItems();
                 scrollToBottom();
@@ -371,6 +748,21 @@ public abstract class BaseActivity extends Activity {
         return false;
     }
 
+    @Nullable
+    private TaskProgressDialog taskProgressDialog;
+
+    void startTask(IoScheduler.Task task) {
+        viewModel.task = task;
+        taskProgressDialog = TaskProgressDialog.attach(this, task);
+    }
+
+    void onTaskFinished(IoScheduler.Task task) {
+        if (viewModel.task == task) {
+            viewModel.task = null;
+        }
+        taskProgressDialog = null;
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == SnapshotSaver.ACTIVITY_REQUEST_CODE) {
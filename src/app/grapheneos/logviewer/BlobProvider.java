@@ -3,12 +3,19 @@ package app.grapheneos.logviewer;
 import android.annotation.Nullable;
 import android.content.ContentProvider;
 import android.content.ContentResolver;
+import android.content.ClipDescription;
 import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
 import android.os.SharedMemory;
+import android.os.storage.StorageManager;
 import android.provider.OpenableColumns;
 import android.system.ErrnoException;
 import android.system.OsConstants;
@@ -17,10 +24,21 @@ import android.util.LruCache;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -34,62 +52,305 @@ public class BlobProvider extends ContentProvider {
         return true;
     }
 
+    // Provider is created at process startup and lives as long as the process, which makes it the
+    // receiver of memory pressure callbacks for all components
+    @Override
+    public void onTrimMemory(int level) {
+        long budget = MemoryBudget.BUDGET;
+        long maxCost;
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            maxCost = 0;
+        } else if (level >= TRIM_MEMORY_MODERATE) {
+            maxCost = budget / 4;
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            maxCost = budget / 2;
+        } else {
+            // UI_HIDDEN and RUNNING_* levels: only caches are dropped
+            maxCost = budget;
+        }
+        long prevTotalCost = MemoryBudget.getTotalCost();
+        int evicted = MemoryBudget.trim(maxCost);
+        Log.d(TAG, "onTrimMemory " + level + ": evicted " + evicted + " handles, "
+                + prevTotalCost + " -> " + MemoryBudget.getTotalCost() + " bytes");
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    // adb shell dumpsys activity provider app.grapheneos.logviewer/.BlobProvider
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        MemoryBudget.dump(pw);
+        PipelineTrace.dump(pw);
+    }
+
+    // Blob is split into blocks of this size that are gzipped independently and in parallel.
+    // Concatenation of the blocks is a valid multi-member gzip stream. Since uncompressed size of
+    // blocks is fixed, the block that contains a given offset is found without a lookup
+    static final int BLOCK_SIZE = 128 * 1024;
+
     static class Entry {
         final Uri uri;
-        // blob is gzipped to reduce memory usage
-        final byte[] gzBytes;
         final int size;
+        // blob is gzipped to reduce memory usage
+        final List<CompletableFuture<byte[]>> gzBlocks;
+        // cost of the entry is an estimate until all blocks are compressed
+        MemoryBudget.Handle memoryHandle;
 
-        public Entry(Uri uri, byte[] gzBytes, int size) {
+        // blocks are completed by BlockWriter
+        Entry(Uri uri, int size) {
             this.uri = uri;
-            this.gzBytes = gzBytes;
             this.size = size;
+            int blockCount = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            var blocks = new ArrayList<CompletableFuture<byte[]>>(blockCount);
+            for (int i = 0; i < blockCount; ++i) {
+                blocks.add(new CompletableFuture<>());
+            }
+            gzBlocks = blocks;
+        }
+
+        int getBlockCount() {
+            return gzBlocks.size();
+        }
+
+        // waits for the block to be compressed
+        byte[] getGzBlock(int idx) throws IOException {
+            try {
+                return gzBlocks.get(idx).get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+
+        // -1 until all blocks are compressed, doesn't wait for them
+        long getGzSize() {
+            long res = 0;
+            for (CompletableFuture<byte[]> b : gzBlocks) {
+                if (!b.isDone() || b.isCompletedExceptionally()) {
+                    return -1;
+                }
+                res += b.join().length;
+            }
+            return res;
+        }
+
+        int getBlockLength(int idx) {
+            return Math.min(BLOCK_SIZE, size - idx * BLOCK_SIZE);
+        }
+
+        // decompresses the block into dst, returns its length
+        int readBlock(int idx, byte[] dst) throws IOException {
+            int len = getBlockLength(idx);
+            try (var s = new GZIPInputStream(new ByteArrayInputStream(getGzBlock(idx)))) {
+                if (s.readNBytes(dst, 0, len) != len) {
+                    throw new EOFException();
+                }
+            }
+            return len;
+        }
+
+        private static byte[] gzip(byte[] bytes, int off, int len) {
+            var bos = new ByteArrayOutputStream(len / 4);
+            try (var s = new GZIPOutputStream(bos)) {
+                s.write(bytes, off, len);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bos.toByteArray();
         }
     }
 
-    private static final LruCache<Uri, Entry> entries = new LruCache<>(40 * (1 << 20)) { // 40 MiB
-        @Override
-        protected int sizeOf(Uri key, Entry value) {
-            return value.gzBytes.length;
+    // entries are evicted by MemoryBudget
+    private static final HashMap<Uri, Entry> entries = new HashMap<>();
+
+    private static void removeEntry(Entry entry) {
+        synchronized (entries) {
+            entries.remove(entry.uri, entry);
         }
-    };
+        releaseCachedMemory(entry);
+    }
 
-    // Uri will be valid until our process is stopped or until the backing entry is evicted by new entries
-    public static Uri getUri(String blobName, byte[] bytes) {
+    // Entries that are larger than this are served through a proxy fd that decompresses only the
+    // blocks that are read, unless a mappable fd is requested
+    private static final int MAX_SHARED_MEMORY_SIZE = 1 << 20; // 1 MiB
+    // Uri query parameter for receivers that need an fd that is backed by memory, e.g. for mmap()
+    static final String QUERY_PARAM_MAPPABLE = "mappable";
+
+    private static final Object sharedMemoryLock = new Object();
+    // Decompressed copy of the most recently opened mappable entry, reused by repeated opens (e.g.
+    // when receiver reads the Uri more than once). Only one is kept to limit ashmem usage
+    @Nullable
+    private static Entry cachedMemoryEntry;
+    @Nullable
+    private static SharedMemory cachedMemory;
+    @Nullable
+    private static MemoryBudget.Handle cachedMemoryHandle;
+
+    static final String GZIP_MIME_TYPE = "application/gzip";
+    private static final String QUERY_PARAM_GZIP = "gzip";
+
+    // Uri of the gzipped variant of the blob, it's served without recompression
+    static Uri getGzipUri(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(QUERY_PARAM_GZIP, "1").build();
+    }
+
+    private static boolean isGzipUri(Uri uri) {
+        return uri.getBooleanQueryParameter(QUERY_PARAM_GZIP, false);
+    }
+
+    // Uri will be valid until our process is stopped or until the backing entry is evicted by MemoryBudget
+    public static Uri getUri(String blobName, BlobSource source) {
         var b = new Uri.Builder();
         b.scheme(ContentResolver.SCHEME_CONTENT);
         b.authority(BlobProvider.class.getName());
         b.path(blobName);
         Uri uri = b.build();
 
-        var bos = new ByteArrayOutputStream(bytes.length);
-        try (var s = new GZIPOutputStream(bos)) {
-            s.write(bytes);
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
-        }
-
-        var entry = new Entry(uri, bos.toByteArray(), bytes.length);
+        // source is written and compressed in the background, readers wait for the blocks that
+        // they need
+        var entry = new Entry(uri, Math.toIntExact(source.getByteLength()));
+        Entry prev;
         synchronized (entries) {
-            entries.put(uri, entry);
+            prev = entries.put(uri, entry);
+        }
+        if (prev != null) {
+            MemoryBudget.unregister(prev.memoryHandle);
+            releaseCachedMemory(prev);
         }
+        // logs usually compress much better than that
+        long estimatedCost = entry.size / 4;
+        entry.memoryHandle = MemoryBudget.register(MemoryBudget.Tier.DATA, "blob " + uri.getLastPathSegment(),
+                estimatedCost, () -> removeEntry(entry));
+        PipelineTrace trace = PipelineTrace.begin("blob " + blobName);
+        trace.beginStage("queued");
+        IoScheduler.io.execute(() -> {
+            // includes waiting for compression of the previous blocks
+            trace.beginStage("write");
+            var w = new BlockWriter(entry);
+            try {
+                source.writeTo(w);
+                w.finish();
+                trace.endStage(entry.size, 0);
+                trace.beginStage("compression tail");
+            } catch (IOException|RuntimeException e) {
+                Log.e(TAG, "", e);
+                trace.setError(e.toString());
+                for (CompletableFuture<byte[]> f : entry.gzBlocks) {
+                    f.completeExceptionally(e);
+                }
+            }
+        });
+        CompletableFuture.allOf(entry.gzBlocks.toArray(new CompletableFuture[0]))
+                .whenComplete((res, e) -> {
+                    if (e == null) {
+                        onEntryCompressed(entry, trace);
+                    }
+                    trace.finish();
+                });
         return uri;
     }
 
+    interface BlobSource {
+        long getByteLength();
+
+        // called on a background thread
+        void writeTo(OutputStream os) throws IOException;
+    }
+
+    // Splits written data into blocks and submits them for compression. The number of blocks that
+    // wait for compression is bounded, memory usage doesn't depend on the size of blob
+    private static class BlockWriter extends OutputStream {
+        private static final int MAX_PENDING_BLOCKS = 2 * Runtime.getRuntime().availableProcessors();
+
+        private final Entry entry;
+        private final Semaphore pendingBlocks = new Semaphore(MAX_PENDING_BLOCKS);
+        @Nullable
+        private byte[] buf;
+        private int bufLen;
+        private int blockIdx;
+
+        BlockWriter(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (buf == null) {
+                    if (blockIdx == entry.getBlockCount()) {
+                        throw new IOException("blob is larger than " + entry.size + " bytes");
+                    }
+                    buf = new byte[entry.getBlockLength(blockIdx)];
+                }
+                int n = Math.min(len, buf.length - bufLen);
+                System.arraycopy(b, off, buf, bufLen, n);
+                bufLen += n;
+                off += n;
+                len -= n;
+                if (bufLen == buf.length) {
+                    submitBlock();
+                }
+            }
+        }
+
+        private void submitBlock() throws IOException {
+            try {
+                pendingBlocks.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            byte[] block = buf;
+            CompletableFuture<byte[]> f = entry.gzBlocks.get(blockIdx);
+            IoScheduler.cpu.execute(() -> {
+                try {
+                    f.complete(Entry.gzip(block, 0, block.length));
+                } catch (RuntimeException e) {
+                    f.completeExceptionally(e);
+                } finally {
+                    pendingBlocks.release();
+                }
+            });
+            buf = null;
+            bufLen = 0;
+            ++blockIdx;
+        }
+
+        void finish() throws IOException {
+            if (blockIdx != entry.getBlockCount()) {
+                throw new IOException("blob is smaller than " + entry.size + " bytes");
+            }
+        }
+    }
+
+    private static void onEntryCompressed(Entry entry, PipelineTrace trace) {
+        int gzSize = 0;
+        for (CompletableFuture<byte[]> b : entry.gzBlocks) {
+            gzSize += b.join().length;
+        }
+        trace.endStage(gzSize, 0);
+        MemoryBudget.setCost(entry.memoryHandle, gzSize);
+    }
+
     @Nullable
     private static Entry getEntryForUri(Uri uri) {
+        Uri key = uri.buildUpon().clearQuery().build();
+        Entry entry;
         synchronized (entries) {
-            return entries.get(uri);
+            entry = entries.get(key);
         }
-    }
-
-    private static byte[] getEntryBytes(Entry e) {
-        try (var s = new GZIPInputStream(new ByteArrayInputStream(e.gzBytes))) {
-            return s.readAllBytes();
-        } catch (IOException ex) {
-            Log.e(TAG, "", ex);
-            throw new IllegalStateException();
+        if (entry != null) {
+            MemoryBudget.touch(entry.memoryHandle);
         }
+        return entry;
     }
 
     @Override
@@ -99,22 +360,291 @@ public class BlobProvider extends ContentProvider {
         if (entry == null) {
             throw new FileNotFoundException();
         }
-        byte[] bytes = getEntryBytes(entry);
-        try (SharedMemory mem = SharedMemory.create(null, bytes.length)) {
+        PipelineTrace trace = PipelineTrace.begin("openFile " + uri.getLastPathSegment());
+        if (isGzipUri(uri)) {
+            return openPipe(entry, true, trace);
+        }
+        // SharedMemory can't be empty
+        if (entry.size != 0 && (entry.size <= MAX_SHARED_MEMORY_SIZE
+                || uri.getBooleanQueryParameter(QUERY_PARAM_MAPPABLE, false))) {
+            trace.beginStage("shared memory");
+            try {
+                ParcelFileDescriptor res = openSharedMemory(entry);
+                // short if the mapping of this entry is cached
+                trace.endStage(entry.size, 0);
+                return res;
+            } finally {
+                trace.finish();
+            }
+        }
+        try {
+            trace.beginStage("proxy fd");
+            ParcelFileDescriptor res = getContext().getSystemService(StorageManager.class)
+                    .openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY,
+                            new BlockReader(entry), getProxyHandler());
+            trace.finish();
+            return res;
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+            trace.setError(e.toString());
+            return openPipe(entry, false, trace);
+        }
+    }
+
+    // Stored gzip blocks are served as is to receivers that accept application/gzip
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        if (!isGzipUri(uri) && !ClipDescription.compareMimeTypes(getType(uri), mimeTypeFilter)
+                && ClipDescription.compareMimeTypes(GZIP_MIME_TYPE, mimeTypeFilter)) {
+            Log.d(TAG, "openTypedAssetFile uri " + uri + ", mimeTypeFilter " + mimeTypeFilter
+                    + ", caller " + getCallingPackage());
+            Entry entry = getEntryForUri(uri);
+            if (entry == null) {
+                throw new FileNotFoundException();
+            }
+            PipelineTrace trace = PipelineTrace.begin("openTypedAssetFile " + uri.getLastPathSegment());
+            return new AssetFileDescriptor(openPipe(entry, true, trace), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+        return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+    }
+
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        if (getEntryForUri(uri) == null) {
+            return null;
+        }
+        var res = new ArrayList<String>(2);
+        String type = getType(uri);
+        if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+            res.add(type);
+        }
+        if (!GZIP_MIME_TYPE.equals(type) && ClipDescription.compareMimeTypes(GZIP_MIME_TYPE, mimeTypeFilter)) {
+            res.add(GZIP_MIME_TYPE);
+        }
+        return res.isEmpty() ? null : res.toArray(new String[0]);
+    }
+
+    // Serves reads at arbitrary offsets by decompressing only the blocks that cover them. Reads
+    // of a proxy fd are small (at most 128 KiB), recently used blocks are cached in
+    // decompressedBlocks
+    private static class BlockReader extends ProxyFileDescriptorCallback {
+        private final Entry entry;
+
+        BlockReader(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public long onGetSize() {
+            return entry.size;
+        }
+
+        @Override
+        public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+            int end = (int) Math.min(entry.size, offset + size);
+            int pos = (int) Math.min(entry.size, offset);
+            int res = 0;
+            while (pos < end) {
+                int idx = pos / BLOCK_SIZE;
+                byte[] block;
+                try {
+                    block = getDecompressedBlock(entry, idx);
+                } catch (IOException e) {
+                    Log.e(TAG, "", e);
+                    throw new ErrnoException("onRead", OsConstants.EIO);
+                }
+                int blockOffset = pos - idx * BLOCK_SIZE;
+                int n = Math.min(block.length - blockOffset, end - pos);
+                System.arraycopy(block, blockOffset, data, res, n);
+                res += n;
+                pos += n;
+            }
+            return res;
+        }
+
+        @Override
+        public void onRelease() {}
+    }
+
+    private record BlockKey(Entry entry, int idx) {}
+
+    private static final LruCache<BlockKey, byte[]> decompressedBlocks = new LruCache<>(8 * BLOCK_SIZE) {
+        @Override
+        protected int sizeOf(BlockKey key, byte[] value) {
+            return value.length;
+        }
+    };
+    private static final MemoryBudget.CacheHandle decompressedBlocksHandle = new MemoryBudget.CacheHandle(
+            "decompressed blob blocks", BlobProvider::evictDecompressedBlocks);
+
+    private static byte[] getDecompressedBlock(Entry entry, int idx) throws IOException {
+        var key = new BlockKey(entry, idx);
+        byte[] b = decompressedBlocks.get(key);
+        if (b == null) {
+            b = new byte[entry.getBlockLength(idx)];
+            entry.readBlock(idx, b);
+            decompressedBlocks.put(key, b);
+            decompressedBlocksHandle.setCost(decompressedBlocks.size());
+        }
+        return b;
+    }
+
+    private static synchronized void evictDecompressedBlocks() {
+        decompressedBlocks.evictAll();
+    }
+
+    @Nullable
+    private static Handler proxyHandler;
+
+    // proxy fd callbacks are invoked on this thread
+    private static synchronized Handler getProxyHandler() {
+        if (proxyHandler == null) {
+            var t = new HandlerThread("BlobProvider proxy fd");
+            t.start();
+            proxyHandler = new Handler(t.getLooper());
+        }
+        return proxyHandler;
+    }
+
+    // Used for the gzip variant and as a fallback for the case when proxy fd can't be created.
+    // Receiver can start reading right away, entry is decompressed block by block as it's being read
+    private static ParcelFileDescriptor openPipe(Entry entry, boolean gzip, PipelineTrace trace)
+            throws FileNotFoundException {
+        ParcelFileDescriptor[] pipe;
+        try {
+            // reliable pipe lets the receiver distinguish a write error from the end of data
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+            trace.setError(e.toString());
+            trace.finish();
+            throw new FileNotFoundException();
+        }
+        ParcelFileDescriptor writeSide = pipe[1];
+        trace.beginStage("queued");
+        IoScheduler.pipe.execute(() -> {
+            // includes the time that is spent waiting for the receiver
+            trace.beginStage(gzip ? "gzip pipe write" : "pipe write");
+            var os = new ParcelFileDescriptor.AutoCloseOutputStream(writeSide);
+            long written = 0;
+            try {
+                byte[] buf = gzip ? null : new byte[BLOCK_SIZE];
+                for (int i = 0, n = entry.getBlockCount(); i < n; ++i) {
+                    if (gzip) {
+                        byte[] b = entry.getGzBlock(i);
+                        os.write(b);
+                        written += b.length;
+                    } else {
+                        int len = entry.readBlock(i, buf);
+                        os.write(buf, 0, len);
+                        written += len;
+                    }
+                }
+                os.close();
+            } catch (IOException e) {
+                // most likely the receiver has closed the pipe
+                Log.d(TAG, "", e);
+                trace.setError(e.toString());
+                try {
+                    writeSide.closeWithError(e.toString());
+                } catch (IOException e2) {
+                    Log.d(TAG, "", e2);
+                }
+            }
+            trace.endStage(written, 0);
+            trace.finish();
+        });
+        return pipe[0];
+    }
+
+    private static ParcelFileDescriptor openSharedMemory(Entry entry) throws FileNotFoundException {
+        ParcelFileDescriptor res;
+        boolean created = false;
+        synchronized (sharedMemoryLock) {
+            try {
+                if (cachedMemoryEntry != entry) {
+                    SharedMemory mem = createSharedMemory(entry);
+                    if (cachedMemory != null) {
+                        cachedMemory.close();
+                        unregisterCachedMemory();
+                    }
+                    cachedMemory = mem;
+                    cachedMemoryEntry = entry;
+                    created = true;
+                }
+                res = cachedMemory.getFdDup();
+            } catch (IOException|ErrnoException e) {
+                Log.d(TAG, "", e);
+                throw new FileNotFoundException();
+            }
+        }
+        if (created) {
+            // registered without holding sharedMemoryLock, evictors of other owners that are run
+            // by MemoryBudget may need it, e.g. to release this memory when its entry is evicted.
+            // ashmem isn't part of the Java heap, but it's memory of our process all the same
+            MemoryBudget.Handle h = MemoryBudget.register(MemoryBudget.Tier.CACHE,
+                    "shared memory " + entry.uri.getLastPathSegment(), entry.size,
+                    () -> releaseCachedMemory(entry));
+            boolean isStale;
+            synchronized (sharedMemoryLock) {
+                // memory may have been released or replaced in the meantime
+                isStale = cachedMemoryEntry != entry || cachedMemoryHandle != null;
+                if (!isStale) {
+                    cachedMemoryHandle = h;
+                }
+            }
+            if (isStale) {
+                MemoryBudget.unregister(h);
+            }
+        }
+        return res;
+    }
+
+    // handle is null while the memory is being registered by openSharedMemory()
+    private static void unregisterCachedMemory() {
+        if (cachedMemoryHandle != null) {
+            MemoryBudget.unregister(cachedMemoryHandle);
+            cachedMemoryHandle = null;
+        }
+    }
+
+    // decompresses straight into the mapping, without an intermediate array of the full size
+    private static SharedMemory createSharedMemory(Entry entry) throws IOException, ErrnoException {
+        SharedMemory mem = SharedMemory.create(null, entry.size);
+        try {
             ByteBuffer bb = mem.mapReadWrite();
-            bb.put(bytes);
-            SharedMemory.unmap(bb);
+            try {
+                byte[] buf = new byte[BLOCK_SIZE];
+                for (int i = 0, n = entry.getBlockCount(); i < n; ++i) {
+                    bb.put(buf, 0, entry.readBlock(i, buf));
+                }
+            } finally {
+                SharedMemory.unmap(bb);
+            }
             mem.setProtect(OsConstants.PROT_READ);
-            return mem.getFdDup();
-        } catch (IOException|ErrnoException e) {
-            Log.d(TAG, "", e);
-            throw new FileNotFoundException();
+            return mem;
+        } catch (IOException|ErrnoException|RuntimeException e) {
+            mem.close();
+            throw e;
+        }
+    }
+
+    private static void releaseCachedMemory(Entry entry) {
+        synchronized (sharedMemoryLock) {
+            if (cachedMemoryEntry == entry) {
+                cachedMemory.close();
+                unregisterCachedMemory();
+                cachedMemory = null;
+                cachedMemoryEntry = null;
+            }
         }
     }
 
     @Override
     public String getType(Uri uri) {
-        return "application/octet-stream";
+        return isGzipUri(uri) ? GZIP_MIME_TYPE : "application/octet-stream";
     }
 
     @Override
@@ -130,14 +660,24 @@ public class BlobProvider extends ContentProvider {
                   OpenableColumns.SIZE,
             };
         }
+        boolean gzip = isGzipUri(uri);
         var c = new MatrixCursor(projection);
         Object[] row = new Object[projection.length];
         for (int i = 0; i < projection.length; ++i) {
             String column = projection[i];
             if (OpenableColumns.DISPLAY_NAME.equals(column)) {
-                row[i] = uri.getLastPathSegment();
+                row[i] = gzip ? uri.getLastPathSegment() + ".gz" : uri.getLastPathSegment();
             } else if (OpenableColumns.SIZE.equals(column)) {
-                row[i] = Long.valueOf(entry.size);
+                if (gzip) {
+                    // receivers query the size right after the share intent, blocking it until
+                    // the whole blob is compressed would delay them. Size is unknown until then
+                    long gzSize = entry.getGzSize();
+                    if (gzSize >= 0) {
+                        row[i] = Long.valueOf(gzSize);
+                    }
+                } else {
+                    row[i] = Long.valueOf(entry.size);
+                }
             }
         }
         c.addRow(row);
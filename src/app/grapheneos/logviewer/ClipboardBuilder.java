@@ -0,0 +1,218 @@
+package app.grapheneos.logviewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Packs ViewModel text into the clipboard size limit. If the body doesn't fit, blocks around
+// important lines (fatal errors, exception causes, errors) are kept together with the most recent
+// lines, and elided ranges are replaced with markers that contain their line counts. Line sizes are
+// taken from the line index, lines are decoded only if they are copied
+class ClipboardBuilder {
+    // avoid bumping into binder transaction size limits
+    private static final int MAX_SIZE = 200_000;
+    // context that is kept around important lines, stack traces follow the lines that start them
+    private static final int CONTEXT_LINES_BEFORE = 5;
+    private static final int CONTEXT_LINES_AFTER = 40;
+    // share of the budget that is reserved for the most recent lines
+    private static final int TAIL_BUDGET_DIVISOR = 4;
+    private static final String ELIDED_MARKER_FORMAT = "[[%d lines elided]]";
+    private static final int MAX_ELIDED_MARKER_SIZE = ELIDED_MARKER_FORMAT.length() + 10 + 1;
+
+    record Result(String text, boolean truncated) {}
+
+    private static class Block {
+        final int start;
+        int end;
+        int score;
+
+        Block(int start, int end, int score) {
+            this.start = start;
+            this.end = end;
+            this.score = score;
+        }
+    }
+
+    static Result build(ViewModel vm, BaseActivity ctx) {
+        List<String> headerLines = vm.createHeaderLines();
+        String description = vm.description;
+
+        int fixedSize = 100 + description.getBytes(UTF_8).length;
+        for (String s : headerLines) {
+            fixedSize += s.getBytes(UTF_8).length + 1;
+        }
+
+        List<ViewModel.LineRange> ranges = vm.createBodyRanges();
+        int lineCount = 0;
+        for (ViewModel.LineRange r : ranges) {
+            lineCount += r.getLineCount();
+        }
+
+        // lineOffsets[i] is the size of lines [0, i), including their '\n' terminators
+        long[] lineOffsets = new long[lineCount + 1];
+        var blocks = new ArrayList<Block>();
+        {
+            int idx = 0;
+            // runs of repeated lines are rendered one at a time
+            for (ViewModel.LineRange r : ranges) {
+                ViewModel.LineRange e = r.expand();
+                LineBuffer lines = e.lines();
+                for (int line = e.start(); line < e.end(); ++line, ++idx) {
+                    lineOffsets[idx + 1] = lineOffsets[idx] + lines.getLineByteLength(line) + 1;
+                    int score = score(lines, line);
+                    if (score == 0) {
+                        continue;
+                    }
+                    int start = Math.max(0, idx - CONTEXT_LINES_BEFORE);
+                    int end = Math.min(lineCount, idx + CONTEXT_LINES_AFTER + 1);
+                    Block last = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+                    if (last != null && start <= last.end) {
+                        last.end = end;
+                        last.score += score;
+                    } else {
+                        blocks.add(new Block(start, end, score));
+                    }
+                }
+            }
+        }
+
+        long budget = MAX_SIZE - fixedSize;
+        boolean[] selected = new boolean[lineCount];
+        boolean truncated = lineOffsets[lineCount] > budget;
+        if (truncated) {
+            select(lineOffsets, blocks, budget, selected);
+        } else {
+            Arrays.fill(selected, true);
+        }
+
+        var sb = new StringBuilder((int) Math.min(MAX_SIZE, lineOffsets[lineCount] + fixedSize));
+        sb.append("```\n");
+
+        for (String s : headerLines) {
+            sb.append(s);
+            sb.append('\n');
+        }
+
+        if (headerLines.size() > 1) {
+            sb.append('\n');
+        }
+
+        int idx = 0;
+        int elided = 0;
+        for (ViewModel.LineRange r : ranges) {
+            int rangeEnd = idx + r.getLineCount();
+            if (!anySelected(selected, idx, rangeEnd)) {
+                elided += rangeEnd - idx;
+                idx = rangeEnd;
+                continue;
+            }
+            ViewModel.LineRange e = r.expand();
+            LineBuffer lines = e.lines();
+            for (int line = e.start(); line < e.end(); ++line, ++idx) {
+                if (!selected[idx]) {
+                    ++elided;
+                    continue;
+                }
+                if (elided != 0) {
+                    sb.append(String.format(ELIDED_MARKER_FORMAT, elided)).append('\n');
+                    elided = 0;
+                }
+                sb.append(ctx.prepareLineForCopy(lines.get(line)));
+                sb.append('\n');
+            }
+        }
+        if (elided != 0) {
+            sb.append(String.format(ELIDED_MARKER_FORMAT, elided)).append('\n');
+        }
+
+        if (!description.isBlank()) {
+            sb.append("\ndescription: ");
+            sb.append(description);
+            sb.append('\n');
+        }
+
+        sb.append("```\n");
+
+        return new Result(sb.toString(), truncated);
+    }
+
+    private static int score(LineBuffer lines, int line) {
+        if (lines.indexOf(line, "FATAL EXCEPTION") >= 0 || lines.indexOf(line, "Caused by: ") >= 0) {
+            return 10;
+        }
+        return switch (LogcatLine.getLevel(lines, line)) {
+            case 'F', 'A' -> 8;
+            case 'E' -> 2;
+            default -> 0;
+        };
+    }
+
+    // Marks lines that fit into the budget: the most recent lines within the reserved share of
+    // the budget, then blocks in the order of score per byte, then older lines before the tail.
+    // Each selected range may be preceded by an elided marker, its size is accounted for
+    private static void select(long[] lineOffsets, List<Block> blocks, long budget,
+                               boolean[] selected) {
+        int lineCount = selected.length;
+        long used = MAX_ELIDED_MARKER_SIZE;
+
+        int tailStart = lineCount;
+        long tailBudget = budget / TAIL_BUDGET_DIVISOR;
+        while (tailStart > 0 && used + lineSize(lineOffsets, tailStart - 1) <= tailBudget) {
+            --tailStart;
+            used += lineSize(lineOffsets, tailStart);
+        }
+
+        var candidates = new ArrayList<Block>(blocks.size());
+        for (Block b : blocks) {
+            if (b.start < tailStart) {
+                candidates.add(new Block(b.start, Math.min(b.end, tailStart), b.score));
+            }
+        }
+        candidates.sort((a, b) -> Double.compare(density(lineOffsets, b), density(lineOffsets, a)));
+        for (Block b : candidates) {
+            long cost = lineOffsets[b.end] - lineOffsets[b.start] + MAX_ELIDED_MARKER_SIZE;
+            if (used + cost <= budget) {
+                used += cost;
+                for (int i = b.start; i < b.end; ++i) {
+                    selected[i] = true;
+                }
+            }
+        }
+
+        for (int i = tailStart; i < lineCount; ++i) {
+            selected[i] = true;
+        }
+        // extend the tail into the remaining budget, lines of blocks have been paid for already
+        while (tailStart > 0) {
+            int line = tailStart - 1;
+            if (!selected[line]) {
+                long size = lineSize(lineOffsets, line);
+                if (used + size > budget) {
+                    break;
+                }
+                used += size;
+                selected[line] = true;
+            }
+            tailStart = line;
+        }
+    }
+
+    private static boolean anySelected(boolean[] selected, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            if (selected[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long lineSize(long[] lineOffsets, int line) {
+        return lineOffsets[line + 1] - lineOffsets[line];
+    }
+
+    private static double density(long[] lineOffsets, Block b) {
+        return b.score / (double) (lineOffsets[b.end] - lineOffsets[b.start] + MAX_ELIDED_MARKER_SIZE);
+    }
+}
@@ -0,0 +1,180 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Text that is split at line boundaries into blocks of at least BLOCK_SIZE bytes that are deflated
+// independently. Each line is contained in a single block. Recently used blocks are kept inflated
+// in a small cache that is shared by all instances, bulk reads bypass it
+class CompressedText {
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private final byte[][] blocks;
+    // blockCount + 1 entries, offsets of blocks in the uncompressed text
+    private final int[] blockStarts;
+
+    private CompressedText(byte[][] blocks, int[] blockStarts) {
+        this.blocks = blocks;
+        this.blockStarts = blockStarts;
+    }
+
+    static CompressedText compress(byte[] bytes, int length) {
+        var blocks = new ArrayList<byte[]>(length / BLOCK_SIZE + 1);
+        var starts = new int[length / BLOCK_SIZE + 2];
+        int blockCount = 0;
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            byte[] buf = new byte[BLOCK_SIZE];
+            var bos = new ByteArrayOutputStream(BLOCK_SIZE);
+            int pos = 0;
+            while (pos < length) {
+                int end = Math.min(length, pos + BLOCK_SIZE);
+                // extend the block to the end of its last line
+                while (end < length && bytes[end - 1] != '\n') {
+                    ++end;
+                }
+                if (blockCount + 1 == starts.length) {
+                    starts = Arrays.copyOf(starts, starts.length * 2);
+                }
+                starts[blockCount++] = pos;
+
+                deflater.reset();
+                deflater.setInput(bytes, pos, end - pos);
+                deflater.finish();
+                bos.reset();
+                while (!deflater.finished()) {
+                    bos.write(buf, 0, deflater.deflate(buf));
+                }
+                blocks.add(bos.toByteArray());
+                pos = end;
+            }
+        } finally {
+            deflater.end();
+        }
+        starts[blockCount] = length;
+        return new CompressedText(blocks.toArray(new byte[0][]), Arrays.copyOf(starts, blockCount + 1));
+    }
+
+    int getBlockCount() {
+        return blocks.length;
+    }
+
+    long getMemoryUsage() {
+        long res = 4L * blockStarts.length;
+        for (byte[] b : blocks) {
+            res += b.length;
+        }
+        return res;
+    }
+
+    // index of the block that contains the given offset of the text
+    int findBlock(int pos) {
+        int idx = Arrays.binarySearch(blockStarts, 0, blocks.length, pos);
+        return idx >= 0 ? idx : -idx - 2;
+    }
+
+    int getBlockStart(int idx) {
+        return blockStarts[idx];
+    }
+
+    // returned array must not be modified
+    byte[] getBlock(int idx) {
+        var key = new BlockKey(this, idx);
+        byte[] b = getInflatedBlock(key);
+        if (b == null) {
+            b = new byte[blockStarts[idx + 1] - blockStarts[idx]];
+            inflateBlock(idx, b);
+            putInflatedBlock(key, b);
+        }
+        return b;
+    }
+
+    // writes text range [start, end)
+    void writeTo(OutputStream os, int start, int end) throws IOException {
+        byte[] buf = null;
+        for (int idx = findBlock(start); start < end; ++idx) {
+            int blockStart = blockStarts[idx];
+            int blockLen = blockStarts[idx + 1] - blockStart;
+            byte[] b = getInflatedBlock(new BlockKey(this, idx));
+            if (b == null) {
+                if (buf == null || buf.length < blockLen) {
+                    buf = new byte[Math.max(blockLen, BLOCK_SIZE)];
+                }
+                inflateBlock(idx, buf);
+                b = buf;
+            }
+            int n = Math.min(end, blockStart + blockLen) - start;
+            os.write(b, start - blockStart, n);
+            start += n;
+        }
+    }
+
+    private void inflateBlock(int idx, byte[] dst) {
+        int len = blockStarts[idx + 1] - blockStarts[idx];
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(blocks[idx]);
+            int n = 0;
+            while (n < len && !inflater.finished()) {
+                n += inflater.inflate(dst, n, len - n);
+            }
+            if (n != len) {
+                throw new IllegalStateException("block " + idx + ": inflated " + n + " of " + len + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private record BlockKey(CompressedText text, int idx) {}
+
+    // enough for the lines that are visible on screen and for their neighbours
+    private static final int MAX_INFLATED_BLOCKS_SIZE = 16 * BLOCK_SIZE;
+    // in access order, guarded by the class lock. android.util.LruCache isn't used to keep this
+    // class buildable for the host
+    private static final LinkedHashMap<BlockKey, byte[]> inflatedBlocks = new LinkedHashMap<>(16, 0.75f, true);
+    private static int inflatedBlocksSize;
+    private static final MemoryBudget.CacheHandle inflatedBlocksHandle = new MemoryBudget.CacheHandle(
+            "inflated line buffer blocks", CompressedText::evictInflatedBlocks);
+
+    @Nullable
+    private static synchronized byte[] getInflatedBlock(BlockKey key) {
+        return inflatedBlocks.get(key);
+    }
+
+    private static void putInflatedBlock(BlockKey key, byte[] block) {
+        long cost;
+        synchronized (CompressedText.class) {
+            byte[] prev = inflatedBlocks.put(key, block);
+            inflatedBlocksSize += block.length - (prev != null ? prev.length : 0);
+            Iterator<byte[]> it = inflatedBlocks.values().iterator();
+            while (inflatedBlocksSize > MAX_INFLATED_BLOCKS_SIZE && it.hasNext()) {
+                byte[] b = it.next();
+                if (b != block) {
+                    it.remove();
+                    inflatedBlocksSize -= b.length;
+                }
+            }
+            cost = inflatedBlocksSize;
+        }
+        // outside of the class lock, see CacheHandle
+        inflatedBlocksHandle.setCost(cost);
+    }
+
+    private static synchronized void evictInflatedBlocks() {
+        inflatedBlocks.clear();
+        inflatedBlocksSize = 0;
+    }
+}
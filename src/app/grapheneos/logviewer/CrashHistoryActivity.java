@@ -0,0 +1,87 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+import android.content.Context;
+import android.content.Intent;
+import android.view.Menu;
+import android.view.MenuItem;
+
+import java.text.DateFormat;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+// Crashes that were recorded by CrashHistoryStore, of a single app if EXTRA_PACKAGE_NAME is set.
+// Each signature is a section that is rendered from the stored body when it's expanded
+public class CrashHistoryActivity extends BaseActivity {
+    @Nullable
+    @Override
+    ViewModel createViewModel() {
+        String pkgName = getIntent().getStringExtra(Intent.EXTRA_PACKAGE_NAME);
+        Context appCtx = getApplicationContext();
+        List<CrashHistoryStore.Entry> entries = CrashHistoryStore.getEntries(appCtx, pkgName);
+
+        DateFormat df = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+        var sections = new ArrayList<Section>(entries.size());
+        int totalCount = 0;
+        for (CrashHistoryStore.Entry e : entries) {
+            totalCount += e.count();
+            String title = getString(R.string.crash_history_entry_title, e.count(),
+                    df.format(new Date(e.lastSeen())), e.type(),
+                    pkgName == null && e.packageName() != null ? e.packageName() + ": " + e.title() : e.title());
+            sections.add(new Section(title, () -> renderEntry(appCtx, e)));
+        }
+
+        var header = new ArrayList<String>();
+        header.add("type: crash history");
+        if (pkgName != null) {
+            header.add("packageName: " + pkgName);
+        }
+        header.add("signatures: " + entries.size());
+        header.add("occurrences: " + totalCount);
+
+        String title = pkgName != null ?
+                getString(R.string.crash_history_title_app, Utils.loadAppLabel(this, pkgName)) :
+                getString(R.string.crash_history_title);
+        return new ViewModel(pkgName, title, String.join("\n", header), LineBuffer.EMPTY, sections);
+    }
+
+    private static String renderEntry(Context ctx, CrashHistoryStore.Entry e) {
+        var sb = new StringBuilder();
+        if (e.packageName() != null) {
+            sb.append("packageName: ").append(e.packageName()).append('\n');
+        }
+        sb.append("count: ").append(e.count()).append('\n');
+        sb.append("firstSeen: ").append(Instant.ofEpochMilli(e.firstSeen())).append('\n');
+        sb.append("lastSeen: ").append(Instant.ofEpochMilli(e.lastSeen())).append('\n');
+        sb.append("signature:\n");
+        for (String s : StringUtils.splitLines(e.signature())) {
+            sb.append("    ").append(s).append('\n');
+        }
+        sb.append('\n');
+        String body = CrashHistoryStore.readBody(ctx, e);
+        sb.append(body != null ? body : "[body is unavailable]\n");
+        return sb.toString();
+    }
+
+    private MenuItem miClear;
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+        miClear = menu.add(R.string.crash_history_clear);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item == miClear) {
+            Context appCtx = getApplicationContext();
+            IoScheduler.io.execute(() -> CrashHistoryStore.clear(appCtx));
+            finishAndRemoveTask();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+}
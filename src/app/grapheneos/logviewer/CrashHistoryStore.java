@@ -0,0 +1,240 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// History of crashes and ANRs, deduplicated by CrashSignature. Each signature has an occurrence
+// count, first and last seen times and the body of its first occurrence, which is shown by
+// CrashHistoryActivity without reading the original report or tombstone again.
+//
+// Index file contains all entries and is rewritten on each update, it's loaded into a hash map on
+// first use. Bodies are stored in separate gzip files that are named by the entry key. Least
+// recently seen entries are removed when MAX_ENTRIES is exceeded
+class CrashHistoryStore {
+    private static final String TAG = CrashHistoryStore.class.getSimpleName();
+
+    private static final String DIR_NAME = "crash_history";
+    private static final String INDEX_FILE_NAME = "index";
+    private static final String BODY_SUFFIX = ".gz";
+    private static final int MAGIC = 0x4c564348; // "LVCH"
+    private static final int VERSION = 1;
+    private static final int MAX_ENTRIES = 200;
+    // bodies are truncated to this size, e.g. text tombstones and ANR traces may be much larger
+    private static final int MAX_BODY_SIZE = 256 * 1024;
+
+    // key is derived from the signature hash and the package name, same crash in different apps,
+    // e.g. in a framework library, is recorded separately for each of them
+    record Entry(long key, @Nullable String packageName, String type, String title, String signature,
+                 int count, long firstSeen, long lastSeen, String lastReportId) {}
+
+    // keyed by Entry.key, guarded by the class lock, null until the index is read
+    @Nullable
+    private static HashMap<Long, Entry> entries;
+
+    private static File getDir(Context ctx) {
+        return new File(ctx.getFilesDir(), DIR_NAME);
+    }
+
+    private static File getBodyFile(File dir, long key) {
+        return new File(dir, Long.toHexString(key) + BODY_SUFFIX);
+    }
+
+    // Records an occurrence of the crash and returns its updated entry. Lines [start, end) of body
+    // are stored if it's the first occurrence. Repeated calls with the same reportId, e.g. when
+    // ViewModel of the report is recreated, are counted once. Called on a background thread
+    static synchronized Entry record(Context ctx, @Nullable String packageName, String type,
+                                     CrashSignature sig, LineBuffer body, int start, int end, String reportId) {
+        HashMap<Long, Entry> map = getEntries(ctx);
+        File dir = getDir(ctx);
+        long now = System.currentTimeMillis();
+        long key = sig.hash() * 31 + Objects.hashCode(packageName);
+        Entry prev = map.get(key);
+        Entry e;
+        // signatures with colliding keys replace each other
+        if (prev != null && prev.signature.equals(sig.text()) && Objects.equals(prev.packageName, packageName)) {
+            if (prev.lastReportId.equals(reportId)) {
+                return prev;
+            }
+            e = new Entry(key, packageName, type, prev.title, prev.signature, prev.count + 1,
+                    prev.firstSeen, now, reportId);
+        } else {
+            e = new Entry(key, packageName, type, sig.title(), sig.text(), 1, now, now, reportId);
+            try {
+                dir.mkdir();
+                writeBody(getBodyFile(dir, key), body, start, end);
+            } catch (IOException ex) {
+                Log.e(TAG, "", ex);
+            }
+        }
+        map.put(key, e);
+        trim(dir, map);
+        try {
+            writeIndex(dir, map);
+        } catch (IOException ex) {
+            Log.e(TAG, "", ex);
+        }
+        return e;
+    }
+
+    // most recently seen entry is first, packageName is ignored if it's null
+    static synchronized List<Entry> getEntries(Context ctx, @Nullable String packageName) {
+        var res = new ArrayList<Entry>();
+        for (Entry e : getEntries(ctx).values()) {
+            if (packageName == null || packageName.equals(e.packageName)) {
+                res.add(e);
+            }
+        }
+        res.sort(Comparator.comparingLong(Entry::lastSeen).reversed());
+        return res;
+    }
+
+    @Nullable
+    static String readBody(Context ctx, Entry e) {
+        File file = getBodyFile(getDir(ctx), e.key);
+        try (var is = new GZIPInputStream(new FileInputStream(file), 64 * 1024)) {
+            return new String(is.readAllBytes(), UTF_8);
+        } catch (IOException ex) {
+            Log.e(TAG, "", ex);
+            return null;
+        }
+    }
+
+    static synchronized void clear(Context ctx) {
+        File[] files = getDir(ctx).listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        entries = new HashMap<>();
+    }
+
+    private static HashMap<Long, Entry> getEntries(Context ctx) {
+        HashMap<Long, Entry> map = entries;
+        if (map == null) {
+            map = readIndex(getDir(ctx));
+            entries = map;
+        }
+        return map;
+    }
+
+    private static void trim(File dir, HashMap<Long, Entry> map) {
+        if (map.size() <= MAX_ENTRIES) {
+            return;
+        }
+        var l = new ArrayList<>(map.values());
+        l.sort(Comparator.comparingLong(Entry::lastSeen));
+        for (int i = 0, n = l.size() - MAX_ENTRIES; i < n; ++i) {
+            Entry e = l.get(i);
+            map.remove(e.key);
+            getBodyFile(dir, e.key).delete();
+        }
+    }
+
+    private static void writeBody(File file, LineBuffer body, int start, int end) throws IOException {
+        // fast compression, same as in ViewModelDiskCache
+        try (var os = new GZIPOutputStream(new FileOutputStream(file), 64 * 1024) {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        }) {
+            int size = 0;
+            for (int i = start; i < end; ++i) {
+                size += body.getByteLength(i, i + 1);
+                if (size > MAX_BODY_SIZE) {
+                    os.write(("[truncated, " + (end - i) + " more lines]\n").getBytes(UTF_8));
+                    break;
+                }
+                body.writeTo(os, i, i + 1);
+            }
+        }
+    }
+
+    private static HashMap<Long, Entry> readIndex(File dir) {
+        var map = new HashMap<Long, Entry>();
+        var file = new File(dir, INDEX_FILE_NAME);
+        if (!file.isFile()) {
+            return map;
+        }
+        try (var is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                throw new IOException("unknown format of " + file);
+            }
+            for (int i = 0, n = is.readInt(); i < n; ++i) {
+                var e = new Entry(is.readLong(), readString(is), readString(is), readString(is),
+                        readString(is), is.readInt(), is.readLong(), is.readLong(), readString(is));
+                map.put(e.key, e);
+            }
+        } catch (IOException|RuntimeException e) {
+            Log.e(TAG, "", e);
+            map.clear();
+        }
+        return map;
+    }
+
+    private static void writeIndex(File dir, HashMap<Long, Entry> map) throws IOException {
+        dir.mkdir();
+        var file = new File(dir, INDEX_FILE_NAME);
+        var tmp = new File(dir, INDEX_FILE_NAME + ".tmp");
+        try (var os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeInt(map.size());
+            for (Entry e : map.values()) {
+                os.writeLong(e.key);
+                writeString(os, e.packageName);
+                writeString(os, e.type);
+                writeString(os, e.title);
+                writeString(os, e.signature);
+                os.writeInt(e.count);
+                os.writeLong(e.firstSeen);
+                os.writeLong(e.lastSeen);
+                writeString(os, e.lastReportId);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("unable to rename " + tmp + " to " + file);
+        }
+    }
+
+    private static void writeString(DataOutputStream os, @Nullable String s) throws IOException {
+        if (s == null) {
+            os.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(UTF_8);
+        os.writeInt(b.length);
+        os.write(b);
+    }
+
+    @Nullable
+    private static String readString(DataInputStream is) throws IOException {
+        int len = is.readInt();
+        if (len < 0) {
+            return null;
+        }
+        var b = new byte[len];
+        is.readFully(b);
+        return new String(b, UTF_8);
+    }
+}
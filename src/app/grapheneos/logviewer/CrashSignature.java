@@ -0,0 +1,210 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+// Normalized signature of a crash, reports that have the same signature are considered to be
+// repeats of the same crash. Parts that differ between occurrences of the same crash are removed:
+// exception messages, line numbers, fault and absolute addresses, numbers of synthetic classes.
+//
+// Java crash: class of the root cause exception and its top JAVA_FRAMES frames. Wrapping
+// exceptions are skipped, e.g. "Unable to start activity" would otherwise merge all crashes in
+// activity callbacks of the app.
+// Native crash: signal and its code and the top NATIVE_FRAMES frames of the backtrace as
+// library!function, or as library+pc for frames without symbols, pc is relative to the library.
+// ANR: top JAVA_FRAMES frames of the main thread
+record CrashSignature(String title, String text, long hash) {
+    private static final int JAVA_FRAMES = 5;
+    private static final int NATIVE_FRAMES = 8;
+
+    private static final String CAUSED_BY_PREFIX = "Caused by: ";
+    private static final String SIGNAL_PREFIX = "signal ";
+    private static final String BACKTRACE_PREFIX = "backtrace:";
+
+    // "$1", "$$ExternalSyntheticLambda3", "$lambda$onCreate$0"
+    private static final Pattern SYNTHETIC_NUMBER = Pattern.compile("(\\$|Lambda)\\d+");
+
+    static CrashSignature create(String title, List<String> parts) {
+        String text = String.join("\n", parts);
+        return new CrashSignature(title, text, hash(text));
+    }
+
+    @Nullable
+    static CrashSignature compute(LineBuffer body) {
+        CrashSignature res = computeNative(body);
+        return res != null ? res : computeJava(body);
+    }
+
+    @Nullable
+    static CrashSignature computeNative(LineBuffer body) {
+        String signal = null;
+        int backtraceStart = -1;
+        for (int i = 0, n = body.size(); i < n; ++i) {
+            if (signal == null && body.startsWith(i, SIGNAL_PREFIX)) {
+                // "signal 11 (SIGSEGV), code 1 (SEGV_MAPERR), fault addr 0x0"
+                signal = body.get(i);
+                int faultAddr = signal.indexOf(", fault addr");
+                if (faultAddr >= 0) {
+                    signal = signal.substring(0, faultAddr);
+                }
+            } else if (body.startsWith(i, BACKTRACE_PREFIX)) {
+                backtraceStart = i + 1;
+                break;
+            }
+        }
+        if (signal == null || backtraceStart < 0) {
+            return null;
+        }
+        var parts = new ArrayList<String>();
+        parts.add(signal);
+        for (int i = backtraceStart, n = body.size(); i < n && parts.size() <= NATIVE_FRAMES; ++i) {
+            String frame = normalizeNativeFrame(body.get(i));
+            if (frame == null) {
+                // end of the backtrace of the crashing thread
+                break;
+            }
+            parts.add(frame);
+        }
+        String title = parts.size() > 1 ? signal + " in " + parts.get(1) : signal;
+        return create(title, parts);
+    }
+
+    // "      #00 pc 000000000005b9ec  /apex/com.android.runtime/lib64/bionic/libc.so (abort+164) (BuildId: 0d1e...)"
+    @Nullable
+    static String normalizeNativeFrame(String line) {
+        String s = line.trim();
+        if (!s.startsWith("#")) {
+            return null;
+        }
+        String[] tokens = s.split("\\s+", 5);
+        if (tokens.length < 4 || !"pc".equals(tokens[1])) {
+            return null;
+        }
+        String pc = tokens[2];
+        String lib = tokens[3];
+        String function = null;
+        if (tokens.length == 5) {
+            String rest = tokens[4];
+            if (rest.startsWith("(") && !rest.startsWith("(BuildId: ")) {
+                int end = rest.indexOf(')');
+                if (end > 0) {
+                    function = rest.substring(1, end);
+                    int offset = function.lastIndexOf('+');
+                    if (offset > 0) {
+                        function = function.substring(0, offset);
+                    }
+                }
+            }
+        }
+        // path of an app library includes the randomized install directory
+        int slash = lib.lastIndexOf('/');
+        if (slash >= 0 && lib.startsWith("/data/app/")) {
+            lib = lib.substring(slash + 1);
+        }
+        if (function != null) {
+            return lib + '!' + function;
+        }
+        int pcStart = 0;
+        while (pcStart < pc.length() - 1 && pc.charAt(pcStart) == '0') {
+            ++pcStart;
+        }
+        return lib + "+0x" + pc.substring(pcStart);
+    }
+
+    @Nullable
+    static CrashSignature computeJava(LineBuffer body) {
+        // header line of the last exception that has frames, i.e. of the root cause
+        int exceptionLine = -1;
+        int n = body.size();
+        boolean prevIsFrame = n > 0 && isJavaFrame(body, 0);
+        for (int i = 1; i < n; ++i) {
+            boolean isFrame = isJavaFrame(body, i);
+            // only header lines are decoded
+            if (isFrame && !prevIsFrame && (exceptionLine < 0
+                    || body.get(i - 1).trim().startsWith(CAUSED_BY_PREFIX))) {
+                exceptionLine = i - 1;
+            }
+            prevIsFrame = isFrame;
+        }
+        if (exceptionLine < 0) {
+            return null;
+        }
+        String exception = body.get(exceptionLine).trim();
+        if (exception.startsWith(CAUSED_BY_PREFIX)) {
+            exception = exception.substring(CAUSED_BY_PREFIX.length());
+        }
+        // message is removed, it often contains ids and addresses
+        int msgStart = exception.indexOf(':');
+        if (msgStart >= 0) {
+            exception = exception.substring(0, msgStart);
+        }
+        var parts = new ArrayList<String>();
+        parts.add(exception);
+        addJavaFrames(body, exceptionLine + 1, body.size(), parts);
+        String title = parts.size() > 1 ? exception + " at " + parts.get(1) : exception;
+        return create(title, parts);
+    }
+
+    // signature of the main thread stack of an ANR, lines [start, end) of body
+    @Nullable
+    static CrashSignature computeAnr(LineBuffer body, int start, int end) {
+        var parts = new ArrayList<String>();
+        parts.add("ANR");
+        int firstFrame = start;
+        while (firstFrame < end && !isJavaFrame(body, firstFrame)) {
+            ++firstFrame;
+        }
+        addJavaFrames(body, firstFrame, end, parts);
+        if (parts.size() == 1) {
+            return null;
+        }
+        return create("ANR at " + parts.get(1), parts);
+    }
+
+    private static void addJavaFrames(LineBuffer body, int start, int end, List<String> dst) {
+        int max = dst.size() + JAVA_FRAMES;
+        for (int i = start; i < end && dst.size() < max; ++i) {
+            if (!isJavaFrame(body, i)) {
+                break;
+            }
+            dst.add(normalizeJavaFrame(body.get(i)));
+        }
+    }
+
+    // "\tat com.example.Foo$1.run(Foo.java:12)" in stack traces, "  at ..." in ANR traces. Bytes of
+    // the line are checked without decoding it, bodies can be MiBs of lines that aren't frames
+    private static boolean isJavaFrame(LineBuffer body, int line) {
+        int len = body.getLineByteLength(line);
+        int i = 0;
+        for (; i < len; ++i) {
+            byte b = body.byteAt(line, i);
+            if (b != ' ' && b != '\t') {
+                break;
+            }
+        }
+        return len - i >= 3 && body.byteAt(line, i) == 'a' && body.byteAt(line, i + 1) == 't'
+                && body.byteAt(line, i + 2) == ' ';
+    }
+
+    static String normalizeJavaFrame(String line) {
+        String s = line.strip().substring("at ".length());
+        int paren = s.indexOf('(');
+        if (paren >= 0) {
+            s = s.substring(0, paren);
+        }
+        return SYNTHETIC_NUMBER.matcher(s).replaceAll("$1N");
+    }
+
+    // 64-bit FNV-1a, signatures are also compared by text, hash is only the index key
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, n = s.length(); i < n; ++i) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
@@ -2,29 +2,34 @@ package app.grapheneos.logviewer;
 
 import android.annotation.Nullable;
 import android.app.ApplicationErrorReport;
+import android.content.Context;
 import android.content.Intent;
 import android.ext.LogViewerApp;
 import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
-import android.util.StringBuilderPrinter;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class ErrorReportActivity extends BaseActivity {
     private static final String TAG = ErrorReportActivity.class.getSimpleName();
 
+    // null if ViewModel wasn't created by this instance or if it's not recorded
+    @Nullable
+    private CompletableFuture<CrashHistoryStore.Entry> historyEntry;
+
     @Override
     ViewModel createViewModel() {
         Intent intent = getIntent();
@@ -47,50 +52,83 @@ public class ErrorReportActivity extends BaseActivity {
             return null;
         }
 
-        byte[] msgBytes;
-        if (extras.getBoolean(LogViewerApp.EXTRA_PREFER_TEXT_TOMBSTONE)) {
-            msgBytes = getTextTombstoneBytes();
+        String sourcePkg = extras.getString(LogViewerApp.EXTRA_SOURCE_PACKAGE);
+        boolean isTextTombstone = extras.getBoolean(LogViewerApp.EXTRA_PREFER_TEXT_TOMBSTONE);
+        Context appCtx = getApplicationContext();
+        // "More info" is shown for a report that was already handled
+        if (!isTextTombstone) {
+            if (sourcePkg != null) {
+                // for the "Show log" button
+                LogPrefetcher.prefetch(this, sourcePkg);
+            }
+            IoScheduler.io.execute(() -> LogArchive.onErrorReport(appCtx));
+        }
+        String title = extras.getString(Intent.EXTRA_TITLE);
+        CompletableFuture<String> appTitle = null;
+        if (title == null) {
+            appTitle = lookup(() -> createTitle(appCtx, sourcePkg));
+        }
+
+        PipelineTrace trace = loadTrace;
+        LineBuffer msg;
+        if (isTextTombstone) {
+            trace.beginStage("text tombstone read");
+            byte[] msgBytes = getTextTombstoneBytes();
             if (msgBytes == null) {
                 Utils.showToast(this, getText(R.string.toast_unable_to_show_more_info));
                 return null;
             }
+            msg = LineBuffer.wrap(msgBytes);
         } else {
             byte[] msgGz = extras.getByteArray(LogViewerApp.EXTRA_GZIPPED_MESSAGE);
             if (msgGz == null) {
                 return null;
             }
-            try (var s = new GZIPInputStream(new ByteArrayInputStream(msgGz))) {
-                msgBytes = s.readAllBytes();
+            trace.beginStage("message decompress");
+            try {
+                // decoded incrementally straight into the line index
+                msg = LineBuffer.readGzip(msgGz);
             } catch (IOException e) {
                 Log.d(TAG, "", e);
+                trace.setError(e.toString());
                 return null;
             }
         }
+        trace.endStage(msg.getByteLength(), msg.size());
 
-        String msg = new String(msgBytes, UTF_8);
-        String body;
-        {
-            var sb = new StringBuilder(msg.length() + 200);
-            String type = extras.getString(LogViewerApp.EXTRA_ERROR_TYPE, "crash");
-            sb.append("type: ").append(type).append('\n');
-            if (!msg.contains(Build.FINGERPRINT)) {
-                sb.append("osVersion: ").append(Build.FINGERPRINT).append('\n');
-            }
-            if (msg.charAt(0) != '\n' && !msg.startsWith("osVersion: ")) {
-                sb.append('\n');
-            }
-            sb.append(msg);
-            body = sb.toString();
+        var header = new ArrayList<String>();
+        header.add("type: " + extras.getString(LogViewerApp.EXTRA_ERROR_TYPE, "crash"));
+        if (!msg.contains(Build.FINGERPRINT)) {
+            header.add("osVersion: " + Build.FINGERPRINT);
         }
-        String sourcePkg = extras.getString(LogViewerApp.EXTRA_SOURCE_PACKAGE);
 
-        String title = extras.getString(Intent.EXTRA_TITLE);
-        if (title == null) {
-            title = sourcePkg != null ?
-                    getString(R.string.error_report_title, Utils.loadAppLabel(this, sourcePkg)) : "";
+        List<Section> sections = null;
+        if (isTextTombstone) {
+            trace.beginStage("tombstone parse");
+            sections = TombstoneParser.parse(msg);
+            trace.endStage(0, sections != null ? sections.size() : 0);
         }
-
-        return new ViewModel(sourcePkg, title, "", body);
+        String headerStr = String.join("\n", header);
+        if (isTextTombstone) {
+            // "More info" of a report that was already recorded
+            if (title == null) {
+                var vm = new ViewModel(sourcePkg, createPlaceholderTitle(sourcePkg), headerStr, msg, sections);
+                vm.pendingContent = appTitle.thenAccept(t -> vm.setLookedUpContent(t, headerStr));
+                return vm;
+            }
+            return new ViewModel(sourcePkg, title, headerStr, msg, sections);
+        }
+        String type = extras.getString(LogViewerApp.EXTRA_ERROR_TYPE, "crash");
+        String reportId = instanceId.toString();
+        CompletableFuture<CrashHistoryStore.Entry> history = lookupHistory(() ->
+                recordCrash(appCtx, sourcePkg, type, msg, null, reportId));
+        historyEntry = history;
+        CompletableFuture<String> finalTitle = appTitle != null ? appTitle : CompletableFuture.completedFuture(title);
+        var vm = new ViewModel(sourcePkg, title != null ? title : createPlaceholderTitle(sourcePkg),
+                headerStr, msg, sections);
+        vm.pendingContent = CompletableFuture.allOf(finalTitle, history).thenRun(() ->
+                vm.setLookedUpContent(finalTitle.join(), addHistoryHeader(headerStr, history.join())));
+        return vm;
     }
 
     @Nullable
@@ -99,45 +137,169 @@ public class ErrorReportActivity extends BaseActivity {
         if (aer == null) {
             return null;
         }
-        String body;
+        // started before the body is read to overlap with it
+        String sourcePkg = aer.packageName;
+        Context appCtx = getApplicationContext();
+        CompletableFuture<String> flags = lookup(() -> Utils.getFlags(appCtx));
+        CompletableFuture<String> installer = lookup(() -> sourcePkg != null ?
+                Utils.getInstallingPackage(appCtx, sourcePkg) : null);
+        CompletableFuture<String> title = lookup(() -> createTitle(appCtx, sourcePkg));
         boolean useTextTombstone = i.getBooleanExtra(LogViewerApp.EXTRA_PREFER_TEXT_TOMBSTONE, false);
+        // "More info" is shown for a report that was already handled
+        if (!useTextTombstone) {
+            if (sourcePkg != null) {
+                // for the "Show log" button
+                LogPrefetcher.prefetch(appCtx, sourcePkg);
+            }
+            IoScheduler.io.execute(() -> LogArchive.onErrorReport(appCtx));
+        }
+
+        PipelineTrace trace = loadTrace;
+        LineBuffer body;
+        List<Section> sections = null;
         if (useTextTombstone) {
+            trace.beginStage("text tombstone read");
             byte[] bytes = getTextTombstoneBytes();
-            if (bytes == null) {
-                Utils.showToast(this, getText(R.string.toast_unable_to_show_more_info));
-                return null;
+            if (bytes != null) {
+                body = LineBuffer.wrap(bytes);
+                trace.endStage(bytes.length, body.size());
+                trace.beginStage("tombstone parse");
+                sections = TombstoneParser.parse(body);
+            } else {
+                trace.beginStage("proto tombstone read");
+                ProtoTombstone pt = readProtoTombstone(aer);
+                if (pt == null) {
+                    Utils.showToast(this, getText(R.string.toast_unable_to_show_more_info));
+                    return null;
+                }
+                trace.beginStage("proto tombstone render");
+                try {
+                    body = LineBuffer.of(pt.renderSummary());
+                } catch (IOException e) {
+                    Log.e(TAG, "", e);
+                    Utils.showToast(this, getText(R.string.toast_unable_to_show_more_info));
+                    return null;
+                }
+                sections = pt.createSections(body);
             }
-            body = new String(bytes, UTF_8);
         } else {
+            trace.beginStage("report body");
             body = createAerBody(aer);
+            if (body == null) {
+                Log.e(TAG, "invalid ApplicationErrorReport");
+                return null;
+            }
         }
-        if (body == null) {
-            Log.e(TAG, "invalid ApplicationErrorReport");
-            return null;
+        trace.endStage(body.getByteLength(), body.size());
+        Section initialSection = null;
+        Section anrMainThread = null;
+        if (aer.type == ApplicationErrorReport.TYPE_ANR) {
+            trace.beginStage("ANR trace parse");
+            // traces of other processes are loaded on demand
+            AnrTraceParser.AnrTraces traces = AnrTraceParser.parse(body, aer.processName);
+            sections = traces.sections();
+            anrMainThread = traces.mainThread();
+            // scrolls to the start of the reported process if its main thread wasn't found
+            initialSection = anrMainThread != null ? anrMainThread : traces.reportedProcess();
+            trace.endStage(0, sections.size());
         }
-        String sourcePkg = aer.packageName;
-        String title = createTitle(sourcePkg);
-        String header = createAerHeader(aer,
-                // text tombstone includes OS version string already
-                !useTextTombstone);
+        // "More info" is shown for a report that was already recorded
+        CompletableFuture<CrashHistoryStore.Entry> history;
+        if (useTextTombstone) {
+            history = CompletableFuture.completedFuture(null);
+        } else {
+            String type = aerTypeToString(aer.type);
+            Section mainThread = anrMainThread;
+            String reportId = instanceId.toString();
+            LineBuffer reportBody = body;
+            history = lookupHistory(() -> recordCrash(appCtx, sourcePkg, type, reportBody, mainThread, reportId));
+            historyEntry = history;
+        }
+        // text tombstone includes OS version string already
+        boolean includeOsVersion = !useTextTombstone;
         String headerExt = i.getStringExtra(Intent.EXTRA_TEXT);
-        if (headerExt != null) {
-            header += '\n' + headerExt;
+        // first frame is drawn without the fields that are still being looked up
+        var vm = new ViewModel(sourcePkg, createPlaceholderTitle(sourcePkg),
+                createAerHeader(aer, includeOsVersion, null, null, headerExt), body, sections);
+        vm.initialSection = initialSection;
+        vm.pendingContent = CompletableFuture.allOf(flags, installer, title, history).thenRun(() ->
+                vm.setLookedUpContent(title.join(), addHistoryHeader(
+                        createAerHeader(aer, includeOsVersion, flags.join(), installer.join(), headerExt),
+                        history.join())));
+        return vm;
+    }
+
+    // ANR is recorded by the stack of its main thread, lines of other threads and processes differ
+    // between occurrences
+    @Nullable
+    private static CrashHistoryStore.Entry recordCrash(Context ctx, @Nullable String sourcePkg, String type,
+                                                       LineBuffer body, @Nullable Section anrMainThread,
+                                                       String reportId) {
+        CrashSignature sig;
+        int start = 0;
+        int end = body.size();
+        if (anrMainThread != null) {
+            start = anrMainThread.start;
+            end = anrMainThread.end;
+            sig = CrashSignature.computeAnr(body, start, end);
+        } else if (type.equals("ANR")) {
+            // main thread wasn't found
+            sig = null;
+        } else {
+            sig = CrashSignature.compute(body);
+        }
+        if (sig == null) {
+            return null;
+        }
+        return CrashHistoryStore.record(ctx, sourcePkg, type, sig, body, start, end, reportId);
+    }
+
+    private static String addHistoryHeader(String header, @Nullable CrashHistoryStore.Entry e) {
+        if (e == null || e.count() < 2) {
+            return header;
         }
-        return new ViewModel(sourcePkg, title, header, body);
+        return header + "\nseenCount: " + e.count() + "\nfirstSeen: " + Instant.ofEpochMilli(e.firstSeen());
     }
 
-    private String createTitle(String sourcePkg) {
-        return sourcePkg != null ? getString(R.string.error_report_title, Utils.loadAppLabel(this, sourcePkg)) : "";
+    // Lookups that need IPC, e.g. to PackageManager, are slow in a cold process. They are run
+    // concurrently with each other and with reading of the body
+    private static <T> CompletableFuture<T> lookup(Supplier<T> s) {
+        return CompletableFuture.supplyAsync(s, IoScheduler.io);
     }
 
-    private String createAerHeader(ApplicationErrorReport r, boolean includeOsVersion) {
+    // failure to record the crash completes with null, it's in the same pending content as the
+    // title and header lookups and would drop them otherwise
+    private static CompletableFuture<CrashHistoryStore.Entry> lookupHistory(Supplier<CrashHistoryStore.Entry> s) {
+        return lookup(s).handle((e, t) -> {
+            if (t != null) {
+                Log.e(TAG, "", t);
+                return null;
+            }
+            return e;
+        });
+    }
+
+    private static String createTitle(Context ctx, @Nullable String sourcePkg) {
+        return sourcePkg != null ?
+                ctx.getString(R.string.error_report_title, Utils.loadAppLabel(ctx, sourcePkg)) : "";
+    }
+
+    // shown until the app label is loaded
+    private String createPlaceholderTitle(@Nullable String sourcePkg) {
+        return sourcePkg != null ? getString(R.string.error_report_title, sourcePkg) : "";
+    }
+
+    private static String createAerHeader(ApplicationErrorReport r, boolean includeOsVersion,
+                                          @Nullable String flags, @Nullable String installer,
+                                          @Nullable String headerExt) {
         ArrayList<String> l = new ArrayList<>();
         l.add("type: " + aerTypeToString(r.type));
         if (includeOsVersion) {
             l.add("osVersion: " + Build.FINGERPRINT);
         }
-        Utils.maybeAddFlags(this, l);
+        if (flags != null) {
+            l.add("flags: " + flags);
+        }
         l.add("package: " + r.packageName + ':' + r.packageVersion);
         l.add("process: " + r.processName);
         if (r.type == ApplicationErrorReport.TYPE_CRASH && r.crashInfo.processUptimeMs > 0) {
@@ -145,54 +307,25 @@ public class ErrorReportActivity extends BaseActivity {
                             + " + " + r.crashInfo.processStartupLatencyMs + " ms");
         }
 
-        String sourcePkg = r.packageName;
-        if (sourcePkg != null) {
-            String installer = Utils.getInstallingPackage(this, sourcePkg);
-            if (installer != null) {
-                l.add("installer: " + installer);
-            }
+        if (installer != null) {
+            l.add("installer: " + installer);
+        }
+        if (headerExt != null) {
+            l.add(headerExt);
         }
-
         return String.join("\n", l);
     }
 
     @Nullable
-    private static String createAerBody(ApplicationErrorReport r) {
+    private static LineBuffer createAerBody(ApplicationErrorReport r) {
         if (r.type == ApplicationErrorReport.TYPE_CRASH) {
             String stackTrace = r.crashInfo.stackTrace;
-            int nativeCrashMarkerIdx = stackTrace.indexOf("\nProcess uptime: ");
-            if (nativeCrashMarkerIdx > 0) {
-                // This is a native crash, filter out most of the header lines to make the report easier to read
-                var sb = new StringBuilder();
-                String[] prefixes = { "signal ", "Abort message: " };
-                boolean backtraceStarted = false;
-                for (String line : stackTrace.substring(nativeCrashMarkerIdx).split("\n")) {
-                    if (backtraceStarted) {
-                        sb.append(line);
-                        sb.append('\n');
-                    }
-                    for (String prefix : prefixes) {
-                        if (line.startsWith(prefix)) {
-                            sb.append(line);
-                            sb.append('\n');
-                        }
-                    }
-                    if (line.startsWith("backtrace:")) {
-                        sb.append('\n');
-                        sb.append(line);
-                        sb.append('\n');
-                        backtraceStarted = true;
-                    }
-                }
-                return sb.toString();
-            } else {
-                return stackTrace;
-            }
+            // If this is a native crash, filter out most of the header lines to make the report easier to read
+            LineBuffer nativeCrashSummary = NativeCrashSummary.extract(stackTrace);
+            return nativeCrashSummary != null ? nativeCrashSummary : LineBuffer.of(stackTrace);
         }
 
-        var sb = new StringBuilder();
-        var printer = new StringBuilderPrinter(sb);
-
+        LineBuffer.Builder b = null;
         switch (r.type) {
             case ApplicationErrorReport.TYPE_ANR -> {
                 ApplicationErrorReport.AnrInfo i = r.anrInfo;
@@ -201,33 +334,40 @@ public class ErrorReportActivity extends BaseActivity {
                 }
                 String tracesFile = i.tracesFilePath;
                 if (tracesFile != null) {
-                    String s = Utils.readFileAsString(tracesFile);
-                    if (s != null) {
-                        printer.println(s);
+                    try {
+                        b = AnrTraceParser.readTracesFile(tracesFile, 4096);
+                        b.write('\n');
+                    } catch (IOException e) {
+                        Log.e(TAG, "", e);
                     }
                 }
-                printer.println("\nAnrInfo dump:");
-                i.dump(printer, "");
+                if (b == null) {
+                    b = new LineBuffer.Builder(0);
+                }
+                b.appendLine("\nAnrInfo dump:");
+                i.dump(b::appendLine, "");
             }
             case ApplicationErrorReport.TYPE_BATTERY -> {
                 ApplicationErrorReport.BatteryInfo i = r.batteryInfo;
                 if (i == null) {
                     return null;
                 }
-                i.dump(printer, "");
+                b = new LineBuffer.Builder(0);
+                i.dump(b::appendLine, "");
             }
             case ApplicationErrorReport.TYPE_RUNNING_SERVICE -> {
                 ApplicationErrorReport.RunningServiceInfo i = r.runningServiceInfo;
                 if (i == null) {
                     return null;
                 }
-                i.dump(printer, "");
+                b = new LineBuffer.Builder(0);
+                i.dump(b::appendLine, "");
             }
             default -> {
                 return null;
             }
         }
-        return sb.toString();
+        return b.build();
     }
 
     private static String aerTypeToString(int type) {
@@ -281,14 +421,65 @@ public class ErrorReportActivity extends BaseActivity {
 
     @Nullable
     public static TimestampedFile getTextTombstoneFileFromAer(ApplicationErrorReport aer) {
-        if (aer.type != ApplicationErrorReport.TYPE_CRASH) {
-            return null;
-        }
-
         // crashInfo.stackTrace is filled out by NativeCrashListener in system_server before
         // tombstoned writes tombstone to storage. Header of stackTrace string and header of text
         // tombstone file are the same, so extract it to search for the matching text tombstone file.
 
+        String stackTrace = getNativeCrashStackTrace(aer);
+        if (stackTrace == null) {
+            return null;
+        }
+        String timestampPrefix = "\nTimestamp: ";
+        int timestampIdx = stackTrace.indexOf(timestampPrefix);
+        if (timestampIdx < 0) {
+            return null;
+        }
+        int timestampEnd = stackTrace.indexOf('\n', timestampIdx + timestampPrefix.length());
+        if (timestampEnd < 0) {
+            return null;
+        }
+
+        byte[] header = stackTrace.substring(0, timestampEnd).getBytes(UTF_8);
+
+        return TombstoneUtils.findTombstoneByHeader(header);
+    }
+
+    @Nullable
+    public static TimestampedFile getProtoTombstoneFileFromAer(ApplicationErrorReport aer) {
+        // protobuf tombstone is matched by the same timestamp that ends the text tombstone header,
+        // and by pid and tid of the crashing thread
+        String stackTrace = getNativeCrashStackTrace(aer);
+        if (stackTrace == null) {
+            return null;
+        }
+        String timestamp = getHeaderValue(stackTrace, "Timestamp: ");
+        String pidLine = getHeaderValue(stackTrace, "pid: ");
+        if (timestamp == null || pidLine == null) {
+            return null;
+        }
+        // "1234, tid: 1250, name: RenderThread  >>> com.example <<<"
+        int pidEnd = pidLine.indexOf(',');
+        String tidPrefix = ", tid: ";
+        int tidEnd = pidLine.indexOf(',', pidEnd + 1);
+        if (pidEnd < 0 || tidEnd < 0 || !pidLine.startsWith(tidPrefix, pidEnd)) {
+            return null;
+        }
+        int pid;
+        int tid;
+        try {
+            pid = Integer.parseInt(pidLine, 0, pidEnd, 10);
+            tid = Integer.parseInt(pidLine, pidEnd + tidPrefix.length(), tidEnd, 10);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return TombstoneUtils.findProtoTombstone(timestamp, pid, tid);
+    }
+
+    @Nullable
+    private static String getNativeCrashStackTrace(ApplicationErrorReport aer) {
+        if (aer.type != ApplicationErrorReport.TYPE_CRASH) {
+            return null;
+        }
         ApplicationErrorReport.CrashInfo crashInfo = aer.crashInfo;
         if (crashInfo == null) {
             return null;
@@ -300,19 +491,50 @@ public class ErrorReportActivity extends BaseActivity {
         if (!stackTrace.startsWith("*** *** *** *** *** *** *** *** *** *** *** *** *** *** *** ***")) {
             return null;
         }
-        String timestampPrefix = "\nTimestamp: ";
-        int timestampIdx = stackTrace.indexOf(timestampPrefix);
-        if (timestampIdx < 0) {
+        return stackTrace;
+    }
+
+    @Nullable
+    private static String getHeaderValue(String stackTrace, String prefix) {
+        int idx = stackTrace.indexOf('\n' + prefix);
+        if (idx < 0) {
             return null;
         }
-        int timestampEnd = stackTrace.indexOf('\n', timestampIdx + timestampPrefix.length());
-        if (timestampEnd < 0) {
+        int start = idx + 1 + prefix.length();
+        int end = stackTrace.indexOf('\n', start);
+        if (end < 0) {
             return null;
         }
+        return stackTrace.substring(start, end);
+    }
 
-        byte[] header = stackTrace.substring(0, timestampEnd).getBytes(UTF_8);
+    @Nullable
+    private TimestampedFile getProtoTombstoneFile() {
+        var aer = getIntent().getParcelableExtra(Intent.EXTRA_BUG_REPORT, ApplicationErrorReport.class);
+        if (aer == null) {
+            return null;
+        }
+        return getProtoTombstoneFileFromAer(aer);
+    }
 
-        return TombstoneUtils.findTombstoneByHeader(header);
+    @Nullable
+    private static ProtoTombstone readProtoTombstone(ApplicationErrorReport aer) {
+        TimestampedFile tfile = getProtoTombstoneFileFromAer(aer);
+        if (tfile == null) {
+            return null;
+        }
+        File file = tfile.file();
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            if (file.lastModified() != tfile.lastModified()) {
+                // a race condition: file was modified since last check
+                return null;
+            }
+            return ProtoTombstone.parse(bytes);
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+            return null;
+        }
     }
 
     @Nullable
@@ -341,13 +563,14 @@ public class ErrorReportActivity extends BaseActivity {
     @Override
     List<BottomButton> createExtraBottomButtons() {
         var list = new ArrayList<BottomButton>(7);
-        if (!getIntent().getBooleanExtra(LogViewerApp.EXTRA_PREFER_TEXT_TOMBSTONE, false)
-                && getTextTombstoneFile() != null) {
+        if (!getIntent().getBooleanExtra(LogViewerApp.EXTRA_PREFER_TEXT_TOMBSTONE, false)) {
             var bb = new BottomButton(getText(R.string.action_more_info), v -> {
                 var i = new Intent(getIntent());
                 i.putExtra(LogViewerApp.EXTRA_PREFER_TEXT_TOMBSTONE, true);
                 startActivity(i);
-            });
+            },
+            // tombstone directory is scanned, it's not done before the first frame
+            () -> getTextTombstoneFile() != null || getProtoTombstoneFile() != null);
             list.add(bb);
         }
         String sourcePkg = viewModel.sourcePackage;
@@ -358,6 +581,27 @@ public class ErrorReportActivity extends BaseActivity {
                 startActivity(i);
             });
             list.add(bb);
+
+            Context appCtx = getApplicationContext();
+            CompletableFuture<CrashHistoryStore.Entry> history = historyEntry;
+            var historyButton = new BottomButton(getText(R.string.action_crash_history), v -> {
+                var i = new Intent(this, CrashHistoryActivity.class);
+                i.putExtra(Intent.EXTRA_PACKAGE_NAME, sourcePkg);
+                startActivity(i);
+            },
+            () -> {
+                if (history != null) {
+                    // recording was queued on the same executor before this check, it doesn't
+                    // wait for a free thread
+                    history.join();
+                }
+                int count = 0;
+                for (CrashHistoryStore.Entry e : CrashHistoryStore.getEntries(appCtx, sourcePkg)) {
+                    count += e.count();
+                }
+                return count > 1;
+            });
+            list.add(historyButton);
         }
         return list;
     }
@@ -0,0 +1,186 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Executors for background work: saving and exporting snapshots (as Tasks that report progress
+// and can be cancelled), BlobProvider writers and compression, lookups, logcat captures. Work
+// that can block for a long time is kept off the io lane to not starve the short tasks on it
+class IoScheduler {
+    private static final String TAG = IoScheduler.class.getSimpleName();
+
+    // Blocking I/O of bounded duration, e.g. writes to document providers, ViewModelDiskCache,
+    // IPC lookups. Tasks are started in submission order
+    static final ThreadPoolExecutor io = createExecutor(4);
+    // BlobProvider pipe writers, they are blocked by the receiving app for as long as it doesn't
+    // read. Unbounded to not let stalled receivers delay the other receivers
+    static final ThreadPoolExecutor pipe = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS,
+            new SynchronousQueue<>());
+    // logcat captures that take seconds, e.g. of LogPrefetcher and LogArchive
+    static final ThreadPoolExecutor capture = createExecutor(2);
+    // CPU-bound work that doesn't block, e.g. compression
+    static final ThreadPoolExecutor cpu = createExecutor(Runtime.getRuntime().availableProcessors());
+
+    private static ThreadPoolExecutor createExecutor(int threads) {
+        var e = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        e.allowCoreThreadTimeOut(true);
+        return e;
+    }
+
+    interface Work {
+        void run(Task task) throws Exception;
+    }
+
+    // total is the amount of bytes that work is expected to report through Task.wrap()
+    static Task submit(long total, CharSequence successMessage, CharSequence failureTitle, Work work) {
+        var t = new Task(total, successMessage, failureTitle);
+        io.execute(() -> t.run(work));
+        return t;
+    }
+
+    static class Task {
+        enum State { QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED }
+
+        // callbacks are invoked on the main thread
+        interface Listener {
+            void onProgress(Task task);
+            void onFinished(Task task);
+        }
+
+        private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+        static final int PROGRESS_STEPS = 1000;
+
+        final long total;
+        final CharSequence successMessage;
+        final CharSequence failureTitle;
+
+        private volatile State state = State.QUEUED;
+        private volatile boolean cancelRequested;
+        @Nullable
+        private volatile Throwable error;
+        private volatile long progress;
+        // accessed only by the thread that runs the work
+        private int lastReportedStep = -1;
+
+        // accessed only on the main thread
+        @Nullable
+        private Listener listener;
+        private boolean finishDelivered;
+
+        private Task(long total, CharSequence successMessage, CharSequence failureTitle) {
+            this.total = total;
+            this.successMessage = successMessage;
+            this.failureTitle = failureTitle;
+        }
+
+        private void run(Work work) {
+            if (cancelRequested) {
+                finish(State.CANCELLED, null);
+                return;
+            }
+            state = State.RUNNING;
+            try {
+                work.run(this);
+                finish(State.SUCCEEDED, null);
+            } catch (CancellationException e) {
+                finish(State.CANCELLED, null);
+            } catch (Exception e) {
+                Log.e(TAG, "", e);
+                finish(cancelRequested ? State.CANCELLED : State.FAILED, e);
+            }
+        }
+
+        private void finish(State state, @Nullable Throwable error) {
+            this.error = error;
+            this.state = state;
+            mainHandler.post(this::deliverFinished);
+        }
+
+        private void deliverFinished() {
+            Listener l = listener;
+            if (l != null && !finishDelivered) {
+                finishDelivered = true;
+                l.onFinished(this);
+            }
+        }
+
+        // main thread only. If the task has already finished, onFinished() is invoked right away
+        void setListener(@Nullable Listener listener) {
+            this.listener = listener;
+            if (isFinished()) {
+                deliverFinished();
+            }
+        }
+
+        State getState() {
+            return state;
+        }
+
+        boolean isFinished() {
+            State s = state;
+            return s == State.SUCCEEDED || s == State.FAILED || s == State.CANCELLED;
+        }
+
+        @Nullable
+        Throwable getError() {
+            return error;
+        }
+
+        // in [0, PROGRESS_STEPS] range
+        int getProgressSteps() {
+            return (int) (Math.min(progress, total) * PROGRESS_STEPS / Math.max(total, 1));
+        }
+
+        void cancel() {
+            cancelRequested = true;
+        }
+
+        void checkCancelled() {
+            if (cancelRequested) {
+                throw new CancellationException();
+            }
+        }
+
+        void addProgress(long bytes) {
+            progress += bytes;
+            int step = getProgressSteps();
+            if (step != lastReportedStep) {
+                lastReportedStep = step;
+                mainHandler.post(() -> {
+                    Listener l = listener;
+                    if (l != null && !isFinished()) {
+                        l.onProgress(this);
+                    }
+                });
+            }
+        }
+
+        // counts written bytes as progress, checks for cancellation before each write
+        OutputStream wrap(OutputStream os) {
+            return new FilterOutputStream(os) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    checkCancelled();
+                    out.write(b, off, len);
+                    addProgress(len);
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+            };
+        }
+    }
+}
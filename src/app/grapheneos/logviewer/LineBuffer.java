@@ -0,0 +1,490 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Immutable UTF-8 text with an index of line starts. Text is kept as bytes: logs are mostly ASCII,
+// which makes it smaller than the equivalent String, and it's written out without re-encoding.
+// Line strings are decoded on access. Text of buffers that aren't shown can be compressed, see
+// compress()
+class LineBuffer extends AbstractList<String> implements RandomAccess {
+    // null after compress(), compressed is set before it's cleared
+    @Nullable
+    private volatile byte[] bytes;
+    @Nullable
+    private volatile CompressedText compressed;
+    private final int length;
+    // lineCount + 1 entries, lineStarts[lineCount] is length + 1 if the last line doesn't end with
+    // '\n', and length otherwise
+    private final int[] lineStarts;
+    private final int lineCount;
+
+    private LineBuffer(byte[] bytes, int length, int[] lineStarts, int lineCount) {
+        this.bytes = bytes;
+        this.length = length;
+        this.lineStarts = lineStarts;
+        this.lineCount = lineCount;
+    }
+
+    static final LineBuffer EMPTY = new LineBuffer(new byte[0], 0, new int[1], 0);
+
+    static LineBuffer of(String s) {
+        return wrap(s.getBytes(UTF_8));
+    }
+
+    // bytes must not be modified afterwards
+    static LineBuffer wrap(byte[] bytes) {
+        var b = new Builder(bytes, bytes.length);
+        return b.build();
+    }
+
+    static LineBuffer read(InputStream s, int expectedSize) throws IOException {
+        var b = new Builder(expectedSize);
+        b.readFrom(s);
+        return b.build();
+    }
+
+    static LineBuffer readGzip(byte[] gz) throws IOException {
+        var b = new Builder(getGzipUncompressedSizeHint(gz));
+        try (var s = new GZIPInputStream(new ByteArrayInputStream(gz), 64 * 1024)) {
+            b.readFrom(s);
+        }
+        return b.build();
+    }
+
+    // ISIZE field of the gzip trailer, it's exact for single-member gzip data < 4 GiB
+    static int getGzipUncompressedSizeHint(byte[] gz) {
+        int len = gz.length;
+        if (len < 18) {
+            return 0;
+        }
+        int size = (gz[len - 4] & 0xff) | (gz[len - 3] & 0xff) << 8
+                | (gz[len - 2] & 0xff) << 16 | (gz[len - 1] & 0xff) << 24;
+        // guard against bogus values
+        return size > 0 && size / 1032 <= len ? size : 0;
+    }
+
+    @Override
+    public String get(int line) {
+        int start = lineStart(line);
+        int len = lineEnd(line) - start;
+        byte[] b = bytes;
+        if (b == null) {
+            CompressedText c = compressed;
+            int idx = c.findBlock(start);
+            b = c.getBlock(idx);
+            start -= c.getBlockStart(idx);
+        }
+        return new String(b, start, len, UTF_8);
+    }
+
+    @Override
+    public int size() {
+        return lineCount;
+    }
+
+    int lineStart(int line) {
+        if (line < 0 || line >= lineCount) {
+            throw new IndexOutOfBoundsException("line " + line + ", size " + lineCount);
+        }
+        return lineStarts[line];
+    }
+
+    // exclusive, doesn't include '\n'
+    int lineEnd(int line) {
+        return lineStarts[line + 1] - 1;
+    }
+
+    int getLineByteLength(int line) {
+        return lineEnd(line) - lineStart(line);
+    }
+
+    // length of text, each line is counted as terminated with '\n'
+    int getByteLength() {
+        return lineStarts[lineCount];
+    }
+
+    // length of lines [fromLine, toLine) as written by writeTo()
+    int getByteLength(int fromLine, int toLine) {
+        if (fromLine >= toLine) {
+            return 0;
+        }
+        return lineStarts[toLine] - lineStart(fromLine);
+    }
+
+    long getMemoryUsage() {
+        byte[] b = bytes;
+        long textSize = b != null ? b.length : compressed.getMemoryUsage();
+        return textSize + 4L * lineStarts.length;
+    }
+
+    // texts that are smaller than this aren't worth compressing
+    private static final int MIN_COMPRESSED_LENGTH = 4 * CompressedText.BLOCK_SIZE;
+
+    // Replaces text with its compressed blocks, lines are read through the shared cache of
+    // inflated blocks afterwards. Can be called concurrently with reads
+    synchronized void compress() {
+        byte[] b = bytes;
+        if (b == null || length < MIN_COMPRESSED_LENGTH) {
+            return;
+        }
+        compressed = CompressedText.compress(b, length);
+        bytes = null;
+    }
+
+    // prefix is ASCII-only
+    boolean startsWith(int line, String prefix) {
+        int start = lineStart(line);
+        int prefixLen = prefix.length();
+        if (lineEnd(line) - start < prefixLen) {
+            return false;
+        }
+        byte[] bytes = this.bytes;
+        if (bytes == null) {
+            CompressedText c = compressed;
+            int idx = c.findBlock(start);
+            bytes = c.getBlock(idx);
+            start -= c.getBlockStart(idx);
+        }
+        for (int i = 0; i < prefixLen; ++i) {
+            if (bytes[start + i] != (byte) prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // returns offset of the ASCII-only needle from the start of the line, or -1
+    int indexOf(int line, String needle) {
+        int start = lineStart(line);
+        int end = lineEnd(line);
+        byte[] bytes = this.bytes;
+        if (bytes == null) {
+            CompressedText c = compressed;
+            int idx = c.findBlock(start);
+            bytes = c.getBlock(idx);
+            int blockStart = c.getBlockStart(idx);
+            start -= blockStart;
+            end -= blockStart;
+        }
+        int needleLen = needle.length();
+        outer:
+        for (int i = start, max = end - needleLen; i <= max; ++i) {
+            for (int j = 0; j < needleLen; ++j) {
+                if (bytes[i + j] != (byte) needle.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i - start;
+        }
+        return -1;
+    }
+
+    // offset is relative to the start of the line and must be less than line length
+    byte byteAt(int line, int offset) {
+        int pos = lineStart(line) + offset;
+        byte[] b = bytes;
+        if (b != null) {
+            return b[pos];
+        }
+        CompressedText c = compressed;
+        int idx = c.findBlock(pos);
+        return c.getBlock(idx)[pos - c.getBlockStart(idx)];
+    }
+
+    interface LineScanner {
+        // line is [start, end) of buf, without the '\n'. buf must not be modified
+        void onLine(int line, byte[] buf, int start, int end);
+    }
+
+    // Passes undecoded bytes of lines [fromLine, toLine) to the scanner. Compressed text is
+    // inflated block by block, lines don't cross block boundaries
+    void scanLines(int fromLine, int toLine, LineScanner s) {
+        byte[] b = bytes;
+        if (b != null) {
+            for (int i = fromLine; i < toLine; ++i) {
+                s.onLine(i, b, lineStart(i), lineEnd(i));
+            }
+            return;
+        }
+        CompressedText c = compressed;
+        byte[] block = null;
+        int blockStart = 0;
+        int blockEnd = 0;
+        for (int i = fromLine; i < toLine; ++i) {
+            int start = lineStart(i);
+            if (block == null || start >= blockEnd) {
+                int idx = c.findBlock(start);
+                block = c.getBlock(idx);
+                blockStart = c.getBlockStart(idx);
+                blockEnd = blockStart + block.length;
+            }
+            s.onLine(i, block, start - blockStart, lineEnd(i) - blockStart);
+        }
+    }
+
+    // s must not contain '\n'
+    boolean contains(String s) {
+        byte[] needle = s.getBytes(UTF_8);
+        byte[] b = bytes;
+        if (b != null) {
+            return contains(b, length, needle);
+        }
+        // lines don't cross block boundaries
+        CompressedText c = compressed;
+        for (int i = 0, n = c.getBlockCount(); i < n; ++i) {
+            byte[] block = c.getBlock(i);
+            if (contains(block, block.length, needle)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(byte[] bytes, int length, byte[] needle) {
+        int needleLen = needle.length;
+        if (needleLen == 0) {
+            return true;
+        }
+        byte first = needle[0];
+        outer:
+        for (int i = 0, max = length - needleLen; i <= max; ++i) {
+            if (bytes[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < needleLen; ++j) {
+                if (bytes[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    void writeTo(OutputStream os) throws IOException {
+        writeTo(os, 0, lineCount);
+    }
+
+    // writes lines [fromLine, toLine), each one is terminated with '\n'
+    void writeTo(OutputStream os, int fromLine, int toLine) throws IOException {
+        if (fromLine >= toLine) {
+            return;
+        }
+        int start = lineStart(fromLine);
+        int end = lineStarts[toLine];
+        // last line doesn't end with '\n'
+        boolean unterminated = end > length;
+        if (unterminated) {
+            end = length;
+        }
+        byte[] b = bytes;
+        if (b != null) {
+            os.write(b, start, end - start);
+        } else {
+            // streamed block by block, without inflating the whole text
+            compressed.writeTo(os, start, end);
+        }
+        if (unterminated) {
+            os.write('\n');
+        }
+    }
+
+    // Accumulates UTF-8 bytes and indexes lines as they arrive. Can be used as the sink of any
+    // InputStream pipeline, e.g. of a decompressor
+    static class Builder extends OutputStream {
+        private byte[] buf;
+        private int len;
+        private int[] lineStarts;
+        private int lineCount;
+        // start of the line that isn't terminated yet
+        private int curLineStart;
+
+        @Nullable
+        private final LineFilter filter;
+
+        Builder(int expectedSize) {
+            this(expectedSize, null);
+        }
+
+        Builder(int expectedSize, @Nullable LineFilter filter) {
+            buf = new byte[Math.max(expectedSize, 1024)];
+            lineStarts = new int[Math.max(expectedSize / 64, 16)];
+            this.filter = filter;
+        }
+
+        // takes ownership of the already filled array
+        private Builder(byte[] bytes, int len) {
+            buf = bytes;
+            lineStarts = new int[Math.max(len / 64, 16)];
+            filter = null;
+            this.len = 0;
+            indexLines(0, len);
+        }
+
+        interface LineFilter {
+            // Called for each complete line, without the '\n'. Line can be shortened in place,
+            // returns the new end of line, or -1 to drop the line
+            int filterLine(byte[] buf, int start, int end);
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(1);
+            buf[len] = (byte) b;
+            indexLines(len, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int n) {
+            ensureCapacity(n);
+            System.arraycopy(b, off, buf, len, n);
+            indexLines(len, n);
+        }
+
+        void appendLine(CharSequence s) {
+            appendLine(s, 0, s.length());
+        }
+
+        // encodes chars directly, without creating a substring
+        void appendLine(CharSequence s, int start, int end) {
+            ensureCapacity((end - start) * 3 + 1);
+            byte[] buf = this.buf;
+            int pos = len;
+            for (int i = start; i < end; ++i) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xc0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < end
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    buf[pos++] = '?';
+                } else {
+                    buf[pos++] = (byte) (0xe0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            buf[pos++] = '\n';
+            indexLines(len, pos - len);
+        }
+
+        void readFrom(InputStream s) throws IOException {
+            for (;;) {
+                if (len == buf.length) {
+                    // buffer that is sized by the expected size is exactly full at the end of the
+                    // stream, growing it right away would double the peak memory usage
+                    int b = s.read();
+                    if (b < 0) {
+                        break;
+                    }
+                    ensureCapacity(1);
+                    buf[len] = (byte) b;
+                    indexLines(len, 1);
+                    continue;
+                }
+                int n = s.read(buf, len, buf.length - len);
+                if (n < 0) {
+                    break;
+                }
+                indexLines(len, n);
+            }
+        }
+
+        // bytes [from, from + n) are already in buf
+        private void indexLines(int from, int n) {
+            byte[] buf = this.buf;
+            int end = from + n;
+            // bytes of shortened lines are removed by moving each following line down once,
+            // shifting the whole rest of the chunk after every shortened line is quadratic
+            int dst = from;
+            int segStart = from;
+            for (int i = from; i < end; ++i) {
+                if (buf[i] != '\n') {
+                    continue;
+                }
+                if (dst != segStart) {
+                    System.arraycopy(buf, segStart, buf, dst, i - segStart);
+                }
+                int lineEnd = dst + (i - segStart);
+                if (filter != null) {
+                    lineEnd = filter.filterLine(buf, curLineStart, lineEnd);
+                }
+                if (lineEnd >= 0) {
+                    buf[lineEnd] = '\n';
+                    addLineStart(curLineStart);
+                    curLineStart = lineEnd + 1;
+                }
+                // bytes of a dropped line are overwritten by the next line
+                dst = curLineStart;
+                segStart = i + 1;
+            }
+            if (dst != segStart) {
+                System.arraycopy(buf, segStart, buf, dst, end - segStart);
+            }
+            len = dst + (end - segStart);
+        }
+
+        private void addLineStart(int start) {
+            if (lineCount == lineStarts.length) {
+                lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+            }
+            lineStarts[lineCount++] = start;
+        }
+
+        private void ensureCapacity(int n) {
+            if (buf.length - len < n) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+            }
+        }
+
+        int getByteLength() {
+            return len;
+        }
+
+        LineBuffer build() {
+            int end = len;
+            if (curLineStart < len) {
+                // last line isn't terminated
+                if (filter != null) {
+                    end = filter.filterLine(buf, curLineStart, len);
+                }
+                if (end >= 0) {
+                    addLineStart(curLineStart);
+                    curLineStart = end + 1;
+                } else {
+                    end = curLineStart;
+                }
+            }
+            int[] starts = lineStarts;
+            if (starts.length != lineCount + 1) {
+                starts = Arrays.copyOf(starts, lineCount + 1);
+            }
+            starts[lineCount] = curLineStart;
+            byte[] bytes = buf;
+            // avoid keeping a lot of unused capacity
+            if (bytes.length - end > Math.max(end / 16, 4096)) {
+                bytes = Arrays.copyOf(bytes, end);
+            }
+            return new LineBuffer(bytes, end, starts, lineCount);
+        }
+    }
+}
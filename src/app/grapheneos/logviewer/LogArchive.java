@@ -0,0 +1,497 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Optional persistent archive of the system log, for lines that logd has already rotated out of
+// its ring buffers by the time the log is looked at. Archiving is enabled by scheduling a periodic
+// job, it's also done when an error report is received. Each run captures only the lines that
+// are newer than the last archived one.
+//
+// Archive is a directory of segment files that are named by the time of their first line and are
+// appended to until they reach SEGMENT_SIZE. Segment file format: MAGIC, VERSION, then blocks of
+// about BLOCK_SIZE of text that are deflated independently. Block header is the index of the
+// block: compressed and uncompressed length, line count, min and max time of its lines and the
+// mask of their levels, which allows to skip blocks and whole segments when a time range is read.
+// Oldest segments are removed when MAX_TOTAL_SIZE is exceeded
+class LogArchive {
+    private static final String TAG = LogArchive.class.getSimpleName();
+
+    private static final String DIR_NAME = "log_archive";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String STATE_FILE_NAME = "state";
+    private static final int MAGIC = 0x4c564c41; // "LVLA"
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    // compressedLength, length, lineCount, minTime, maxTime, levelMask
+    private static final int BLOCK_HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 4;
+    private static final int BLOCK_SIZE = CompressedText.BLOCK_SIZE;
+    private static final long SEGMENT_SIZE = 1 << 20;
+    private static final long MAX_TOTAL_SIZE = 32 << 20;
+
+    private static final int PERIODIC_JOB_ID = 1;
+    private static final int ERROR_REPORT_JOB_ID = 2;
+    private static final long PERIOD_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private static File getDir(Context ctx) {
+        return new File(ctx.getFilesDir(), DIR_NAME);
+    }
+
+    // archive is enabled as long as the periodic job is scheduled, it's persisted across reboots
+    static boolean isEnabled(Context ctx) {
+        return ctx.getSystemService(JobScheduler.class).getPendingJob(PERIODIC_JOB_ID) != null;
+    }
+
+    // Disabling removes the archive, it contains logs of all apps
+    static void setEnabled(Context ctx, boolean enabled) {
+        var js = ctx.getSystemService(JobScheduler.class);
+        if (enabled) {
+            var ji = new JobInfo.Builder(PERIODIC_JOB_ID, new ComponentName(ctx, LogArchiveJobService.class))
+                    .setPeriodic(PERIOD_MILLIS)
+                    .setPersisted(true)
+                    .build();
+            js.schedule(ji);
+            return;
+        }
+        js.cancel(PERIODIC_JOB_ID);
+        js.cancel(ERROR_REPORT_JOB_ID);
+        // waits for a run of archive() that is in progress
+        Context appCtx = ctx.getApplicationContext();
+        IoScheduler.capture.execute(() -> clear(appCtx));
+    }
+
+    // lines that were logged before the error are likely to be rotated out soon, especially if
+    // the error caused a burst of logging. Called on a background thread
+    static void onErrorReport(Context ctx) {
+        if (!isEnabled(ctx)) {
+            return;
+        }
+        var ji = new JobInfo.Builder(ERROR_REPORT_JOB_ID, new ComponentName(ctx, LogArchiveJobService.class))
+                .setOverrideDeadline(0)
+                .build();
+        ctx.getSystemService(JobScheduler.class).schedule(ji);
+    }
+
+    private static synchronized void clear(Context ctx) {
+        File[] files = getDir(ctx).listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
+    // Captures lines that were logged after the last archived line and appends them to the
+    // archive. Called on a background thread
+    static synchronized void archive(Context ctx) {
+        File dir = getDir(ctx);
+        dir.mkdir();
+        PipelineTrace trace = PipelineTrace.begin("archive");
+        try {
+            trace.beginStage("read state");
+            var stateFile = new File(dir, STATE_FILE_NAME);
+            State state = readState(stateFile);
+
+            // -T is inclusive, lines that were logged in the same millisecond as the last archived
+            // line are filtered out by their text
+            List<String> cmd = LogcatActivity.createCommand(LogcatActivity.getDefaultLogBuffers(),
+                    Log.VERBOSE, null, android.os.Process.INVALID_UID, true, state.lastTime);
+            LineBuffer lines = LogcatActivity.capture(cmd, trace);
+            if (lines == null) {
+                return;
+            }
+
+            trace.beginStage("compress");
+            List<File> segments = listSegments(dir);
+            File segment = null;
+            long segmentLength = 0;
+            if (!segments.isEmpty()) {
+                segment = segments.get(segments.size() - 1);
+                try {
+                    // removes a block that was partially written by an interrupted run
+                    segmentLength = getValidLength(segment);
+                } catch (IOException e) {
+                    Log.e(TAG, "", e);
+                    segment.delete();
+                    segment = null;
+                }
+            }
+
+            var writer = new SegmentWriter(dir, segment, segmentLength);
+            long lastTime = state.lastTime;
+            // lines that were logged at lastTime
+            var lastTimeLines = new ArrayList<Integer>();
+            try {
+                for (int i = 0, n = lines.size(); i < n; ++i) {
+                    long time = LogcatLine.getTimeMillis(lines, i);
+                    char level = LogcatLine.getLevel(lines, i);
+                    if (time < 0 || level == 0) {
+                        // dividers
+                        continue;
+                    }
+                    if (time == state.lastTime && state.lastTimeLines.contains(lines.get(i))) {
+                        continue;
+                    }
+                    // kernel lines aren't always in order
+                    if (time > lastTime) {
+                        lastTime = time;
+                        lastTimeLines.clear();
+                    }
+                    if (time == lastTime) {
+                        lastTimeLines.add(i);
+                    }
+                    writer.add(lines, i, time, level);
+                }
+                writer.flush();
+            } finally {
+                writer.close();
+            }
+            trace.endStage(writer.bytes, writer.lineCount);
+
+            trace.beginStage("write state");
+            var newLastTimeLines = new HashSet<String>();
+            if (lastTime == state.lastTime) {
+                newLastTimeLines.addAll(state.lastTimeLines);
+            }
+            for (int i : lastTimeLines) {
+                newLastTimeLines.add(lines.get(i));
+            }
+            writeState(stateFile, new State(lastTime, newLastTimeLines));
+            trim(dir);
+        } catch (IOException|RuntimeException e) {
+            Log.e(TAG, "", e);
+            trace.setError(e.toString());
+        } finally {
+            trace.finish();
+        }
+    }
+
+    // Appends lines of the default log buffers that were logged in [start, end) and that match
+    // minLevel and filter. Filter is matched against the whole line, not only against the
+    // message like logcat --regex does.
+    // Not synchronized with archive(), which may take seconds: it only appends whole blocks and a
+    // block that is still being written is skipped
+    static void read(Context ctx, long start, long end, int minLevel,
+                     @Nullable Pattern filter, LineBuffer.Builder dst, PipelineTrace trace) {
+        trace.beginStage("archive read");
+        List<File> segments = listSegments(getDir(ctx));
+        // priorities are indices of level bits
+        int levelMask = -1 << minLevel;
+        long bytes = 0;
+        int lineCount = 0;
+        var inflater = new Inflater();
+        try {
+            for (int i = 0, n = segments.size(); i < n; ++i) {
+                File segment = segments.get(i);
+                if (getSegmentStart(segment) >= end) {
+                    break;
+                }
+                if (i + 1 < n && getSegmentStart(segments.get(i + 1)) <= start) {
+                    continue;
+                }
+                try (var is = new DataInputStream(new FileInputStream(segment))) {
+                    readSegmentHeader(is, segment);
+                    BlockHeader h;
+                    while ((h = readBlockHeader(is)) != null) {
+                        if (h.maxTime < start || h.minTime >= end || (h.levelMask & levelMask) == 0) {
+                            is.skipNBytes(h.compressedLength);
+                            continue;
+                        }
+                        var compressed = new byte[h.compressedLength];
+                        is.readFully(compressed);
+                        LineBuffer lines = LineBuffer.wrap(inflate(compressed, h.length, inflater));
+                        for (int line = 0, lc = lines.size(); line < lc; ++line) {
+                            long time = LogcatLine.getTimeMillis(lines, line);
+                            if (time < start || time >= end) {
+                                continue;
+                            }
+                            if ((getLevelMask(LogcatLine.getLevel(lines, line)) & levelMask) == 0) {
+                                continue;
+                            }
+                            if (filter != null && !filter.matcher(lines.get(line)).find()) {
+                                continue;
+                            }
+                            lines.writeTo(dst, line, line + 1);
+                            bytes += lines.getByteLength(line, line + 1);
+                            ++lineCount;
+                        }
+                    }
+                } catch (EOFException e) {
+                    // block is being appended by archive()
+                    Log.d(TAG, "", e);
+                } catch (IOException e) {
+                    // segments are independent, the rest of the range is still readable, the
+                    // segment may have also been removed by trim() or clear()
+                    Log.e(TAG, "", e);
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        trace.endStage(bytes, lineCount);
+    }
+
+    // Time of the last archived line, lines that were logged at or before it are in the archive if
+    // they haven't been trimmed. 0 if the archive is empty
+    static long getLastArchivedTime(Context ctx) {
+        return readState(new File(getDir(ctx), STATE_FILE_NAME)).lastTime;
+    }
+
+    // in the order of time
+    private static List<File> listSegments(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files, Comparator.comparingLong(LogArchive::getSegmentStart));
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    private static long getSegmentStart(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void trim(File dir) {
+        List<File> segments = listSegments(dir);
+        long totalSize = 0;
+        for (File f : segments) {
+            totalSize += f.length();
+        }
+        for (File f : segments) {
+            if (totalSize <= MAX_TOTAL_SIZE) {
+                break;
+            }
+            Log.d(TAG, "trim: removing " + f.getName());
+            totalSize -= f.length();
+            f.delete();
+        }
+    }
+
+    // returns the length of complete blocks, truncates the file to it
+    private static long getValidLength(File segment) throws IOException {
+        long length = SEGMENT_HEADER_SIZE;
+        try (var is = new DataInputStream(new FileInputStream(segment))) {
+            readSegmentHeader(is, segment);
+            BlockHeader h;
+            while ((h = readBlockHeader(is)) != null) {
+                is.skipNBytes(h.compressedLength);
+                length += BLOCK_HEADER_SIZE + h.compressedLength;
+            }
+        } catch (EOFException e) {
+            // partially written block
+        }
+        if (length != segment.length()) {
+            Log.w(TAG, "truncating " + segment.getName() + " from " + segment.length() + " to " + length);
+            try (var f = new RandomAccessFile(segment, "rw")) {
+                f.setLength(length);
+            }
+        }
+        return length;
+    }
+
+    private static void readSegmentHeader(DataInputStream is, File segment) throws IOException {
+        if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+            throw new IOException("unknown format of " + segment);
+        }
+    }
+
+    private record BlockHeader(int compressedLength, int length, int lineCount, long minTime,
+                               long maxTime, int levelMask) {}
+
+    // returns null at the end of the segment
+    @Nullable
+    private static BlockHeader readBlockHeader(DataInputStream is) throws IOException {
+        int compressedLength;
+        try {
+            compressedLength = is.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        return new BlockHeader(compressedLength, is.readInt(), is.readInt(), is.readLong(),
+                is.readLong(), is.readInt());
+    }
+
+    private static byte[] inflate(byte[] compressed, int length, Inflater inflater) throws IOException {
+        inflater.reset();
+        inflater.setInput(compressed);
+        var res = new byte[length];
+        try {
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                n += inflater.inflate(res, n, length - n);
+            }
+            if (n != length) {
+                throw new IOException("inflated " + n + " of " + length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return res;
+    }
+
+    // bit of the log priority, e.g. Log.ERROR for 'E'
+    private static int getLevelMask(char level) {
+        int priority = switch (level) {
+            case 'V' -> Log.VERBOSE;
+            case 'D' -> Log.DEBUG;
+            case 'I' -> Log.INFO;
+            case 'W' -> Log.WARN;
+            case 'E' -> Log.ERROR;
+            case 'F', 'A' -> Log.ASSERT;
+            default -> 0;
+        };
+        return priority != 0 ? 1 << priority : 0;
+    }
+
+    // appends blocks to the last segment until it reaches SEGMENT_SIZE, then starts a new one
+    private static class SegmentWriter {
+        private final File dir;
+        @Nullable
+        private File segment;
+        private long segmentLength;
+
+        private final ByteArrayOutputStream text = new ByteArrayOutputStream(BLOCK_SIZE + 4096);
+        private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(BLOCK_SIZE / 4);
+        private final byte[] buf = new byte[16 * 1024];
+        private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        private int blockLineCount;
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime = Long.MIN_VALUE;
+        private int levelMask;
+
+        // totals of written blocks
+        long bytes;
+        int lineCount;
+
+        SegmentWriter(File dir, @Nullable File segment, long segmentLength) {
+            this.dir = dir;
+            this.segment = segment;
+            this.segmentLength = segmentLength;
+        }
+
+        void add(LineBuffer lines, int line, long time, char level) throws IOException {
+            lines.writeTo(text, line, line + 1);
+            ++blockLineCount;
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            levelMask |= getLevelMask(level);
+            if (text.size() >= BLOCK_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (blockLineCount == 0) {
+                return;
+            }
+            if (segment == null || segmentLength >= SEGMENT_SIZE) {
+                segment = new File(dir, minTime + SEGMENT_SUFFIX);
+                segmentLength = 0;
+            }
+            deflater.reset();
+            deflater.setInput(text.toByteArray());
+            deflater.finish();
+            compressed.reset();
+            while (!deflater.finished()) {
+                compressed.write(buf, 0, deflater.deflate(buf));
+            }
+            try (var os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment, true)))) {
+                if (segmentLength == 0) {
+                    os.writeInt(MAGIC);
+                    os.writeInt(VERSION);
+                    segmentLength = SEGMENT_HEADER_SIZE;
+                }
+                os.writeInt(compressed.size());
+                os.writeInt(text.size());
+                os.writeInt(blockLineCount);
+                os.writeLong(minTime);
+                os.writeLong(maxTime);
+                os.writeInt(levelMask);
+                compressed.writeTo(os);
+            }
+            segmentLength += BLOCK_HEADER_SIZE + compressed.size();
+            bytes += text.size();
+            lineCount += blockLineCount;
+
+            text.reset();
+            blockLineCount = 0;
+            minTime = Long.MAX_VALUE;
+            maxTime = Long.MIN_VALUE;
+            levelMask = 0;
+        }
+
+        void close() {
+            deflater.end();
+        }
+    }
+
+    // time of the last archived line and lines that were logged at that time
+    private record State(long lastTime, HashSet<String> lastTimeLines) {}
+
+    private static State readState(File file) {
+        try (var is = new DataInputStream(new FileInputStream(file))) {
+            long lastTime = is.readLong();
+            int count = is.readInt();
+            var lines = new HashSet<String>();
+            for (int i = 0; i < count; ++i) {
+                var b = new byte[is.readInt()];
+                is.readFully(b);
+                lines.add(new String(b, UTF_8));
+            }
+            return new State(lastTime, lines);
+        } catch (IOException e) {
+            if (file.exists()) {
+                Log.e(TAG, "", e);
+            }
+            return new State(0, new HashSet<>());
+        }
+    }
+
+    private static void writeState(File file, State state) throws IOException {
+        var tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (var os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            os.writeLong(state.lastTime);
+            os.writeInt(state.lastTimeLines.size());
+            for (String s : state.lastTimeLines) {
+                byte[] b = s.getBytes(UTF_8);
+                os.writeInt(b.length);
+                os.write(b);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("unable to rename " + tmp + " to " + file);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package app.grapheneos.logviewer;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Process;
+
+// runs LogArchive.archive(), see LogArchive.setEnabled()
+public class LogArchiveJobService extends JobService {
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        IoScheduler.capture.execute(() -> {
+            int prevPriority = Process.getThreadPriority(Process.myTid());
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                LogArchive.archive(this);
+            } finally {
+                Process.setThreadPriority(prevPriority);
+                jobFinished(params, false);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // archive run is short, it's not interrupted
+        return false;
+    }
+}
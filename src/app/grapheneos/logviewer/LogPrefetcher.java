@@ -0,0 +1,171 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+// Speculative capture of the app log that is opened by the "Show log" button of error reports.
+// Capture is started at low priority while the error report is shown and is handed off to
+// LogcatActivity if it's started with the same command within TTL_MILLIS and if it's complete by
+// then. Log lines that are written after the capture are missing from it, which is why the TTL
+// is short
+class LogPrefetcher {
+    private static final String TAG = LogPrefetcher.class.getSimpleName();
+
+    private static final long TTL_MILLIS = 30_000;
+
+    private static class Capture {
+        final List<String> cmd;
+        final long startTime;
+        final CompletableFuture<LineBuffer> lines;
+        final MemoryBudget.Handle memoryHandle;
+        // logcat process, null until it's started
+        @Nullable
+        volatile java.lang.Process proc;
+        volatile boolean cancelled;
+
+        Capture(List<String> cmd, long startTime, CompletableFuture<LineBuffer> lines,
+                MemoryBudget.Handle memoryHandle) {
+            this.cmd = cmd;
+            this.startTime = startTime;
+            this.lines = lines;
+            this.memoryHandle = memoryHandle;
+        }
+
+        void onStart(java.lang.Process p) {
+            proc = p;
+            if (cancelled) {
+                p.destroy();
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            java.lang.Process p = proc;
+            if (p != null) {
+                p.destroy();
+            }
+        }
+    }
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // at most one capture is kept, for the most recent error report. Guarded by the class lock
+    @Nullable
+    private static Capture capture;
+
+    static void prefetch(Context ctx, String pkgName) {
+        Context appCtx = ctx.getApplicationContext();
+        var lines = new CompletableFuture<LineBuffer>();
+        IoScheduler.capture.execute(() -> {
+            int prevPriority = Process.getThreadPriority(Process.myTid());
+            // logcat process inherits the priority
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                List<String> cmd;
+                try {
+                    int uid = appCtx.getPackageManager().getApplicationInfo(pkgName, 0).uid;
+                    cmd = LogcatActivity.createCommand(LogcatActivity.getDefaultLogBuffers(), Log.VERBOSE, null, uid,
+                            false, 0);
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.d(TAG, "", e);
+                    lines.complete(null);
+                    return;
+                }
+                Capture c = new Capture(cmd, SystemClock.elapsedRealtime(), lines,
+                        MemoryBudget.register(MemoryBudget.Tier.CACHE, "prefetched log " + pkgName, 0,
+                                () -> remove(lines)));
+                setCapture(c);
+                PipelineTrace trace = PipelineTrace.begin("prefetch " + pkgName);
+                LineBuffer res = LogcatActivity.capture(cmd, null, c::onStart, trace);
+                trace.finish();
+                if (res != null && !c.cancelled) {
+                    MemoryBudget.setCost(c.memoryHandle, res.getMemoryUsage());
+                }
+                lines.complete(res);
+            } catch (RuntimeException e) {
+                // speculative capture, its failure isn't worth crashing over
+                Log.e(TAG, "", e);
+                lines.completeExceptionally(e);
+            } finally {
+                Process.setThreadPriority(prevPriority);
+            }
+        });
+    }
+
+    private static void setCapture(Capture c) {
+        Capture prev;
+        synchronized (LogPrefetcher.class) {
+            prev = capture;
+            capture = c;
+        }
+        if (prev != null) {
+            MemoryBudget.unregister(prev.memoryHandle);
+        }
+        // unused capture is dropped to not hold on to its memory
+        mainHandler.postDelayed(() -> remove(c.lines), TTL_MILLIS);
+    }
+
+    // removes the current capture if it's still the one that has produced these lines
+    private static void remove(CompletableFuture<LineBuffer> lines) {
+        Capture removed;
+        synchronized (LogPrefetcher.class) {
+            removed = capture;
+            if (removed == null || removed.lines != lines) {
+                return;
+            }
+            capture = null;
+        }
+        MemoryBudget.unregister(removed.memoryHandle);
+    }
+
+    // Returns the prefetched log if it was captured with the same command and isn't stale. Capture
+    // that is still in progress is cancelled instead of being waited for: it runs at background
+    // priority, which is inherited by its logcat process, a new capture at the priority of the
+    // caller is faster
+    @Nullable
+    static LineBuffer take(List<String> cmd, PipelineTrace trace) {
+        Capture c;
+        synchronized (LogPrefetcher.class) {
+            c = capture;
+            if (c == null || !c.cmd.equals(cmd)) {
+                return null;
+            }
+            capture = null;
+        }
+        MemoryBudget.unregister(c.memoryHandle);
+        if (SystemClock.elapsedRealtime() - c.startTime > TTL_MILLIS) {
+            return null;
+        }
+        if (!c.lines.isDone()) {
+            c.cancel();
+            return null;
+        }
+        trace.beginStage("prefetched log");
+        LineBuffer res;
+        try {
+            res = c.lines.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "", e);
+            res = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            res = null;
+        }
+        if (res != null) {
+            trace.endStage(res.getByteLength(), res.size());
+        } else {
+            trace.setError("prefetch failed");
+        }
+        return res;
+    }
+}
@@ -0,0 +1,362 @@
+package app.grapheneos.logviewer;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Line and byte counts of logcat output per level, tag, uid, pid and second, computed in a single
+// pass over the undecoded lines. Counters are keyed by primitives: hashes of tag and uid bytes,
+// pid and second, a name is decoded only once per distinct key. Lines can be added in batches,
+// counts of the previous batches aren't recomputed.
+//
+// Lines are expected to be in "UTC[,year],printable[,uid],descriptive" format, see LogcatLine.
+// Lines that aren't in this format, e.g. dividers, are counted as "other" lines
+class LogStats implements LineBuffer.LineScanner {
+    static final int TOP_N = 10;
+    private static final int HISTOGRAM_ROWS = 60;
+    private static final int HISTOGRAM_WIDTH = 40;
+    private static final String LEVELS = "VDIWEFA";
+    // cumulative, for a non-leap year
+    private static final int[] DAYS_BEFORE_MONTH = { 0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334 };
+
+    long lines;
+    long bytes;
+    long otherLines;
+    final long[] levelLines = new long[LEVELS.length()];
+    final long[] levelBytes = new long[LEVELS.length()];
+    final Counters tags = new Counters();
+    final Counters uids = new Counters();
+    final Counters pids = new Counters();
+    final Counters seconds = new Counters();
+
+    // adds lines [fromLine, toLine) of the buffer
+    void add(LineBuffer buf, int fromLine, int toLine) {
+        buf.scanLines(fromLine, toLine, this);
+    }
+
+    // token bounds of the current line, reused to not allocate for each line
+    private final int[] tokenStarts = new int[6];
+    private final int[] tokenEnds = new int[6];
+
+    @Override
+    public void onLine(int line, byte[] buf, int start, int end) {
+        int len = end - start + 1;
+        // date, time, optional UTC offset, optional uid, pid, tid, level
+        int pos = start;
+        int tokenCount = 0;
+        int level = -1;
+        while (tokenCount < tokenStarts.length) {
+            while (pos < end && buf[pos] == ' ') {
+                ++pos;
+            }
+            int tokenStart = pos;
+            while (pos < end && buf[pos] != ' ') {
+                ++pos;
+            }
+            if (pos == tokenStart) {
+                break;
+            }
+            if (tokenCount == 2 && buf[tokenStart] == '+') {
+                // " +0000" that wasn't removed by LogcatLine.removeUtcOffset()
+                continue;
+            }
+            if (tokenCount >= 4 && pos - tokenStart == 1) {
+                level = LEVELS.indexOf(buf[tokenStart]);
+                if (level >= 0) {
+                    break;
+                }
+            }
+            tokenStarts[tokenCount] = tokenStart;
+            tokenEnds[tokenCount] = pos;
+            ++tokenCount;
+        }
+        long second = level >= 0 ? parseSecond(buf, tokenStarts[0], tokenEnds[0], tokenStarts[1], tokenEnds[1]) : -1;
+        if (second < 0) {
+            ++otherLines;
+            bytes += len;
+            return;
+        }
+        ++lines;
+        bytes += len;
+        levelLines[level] += 1;
+        levelBytes[level] += len;
+
+        // tokenCount is 5 if the uid is present
+        boolean hasUid = tokenCount == 5;
+        if (hasUid) {
+            uids.add(hash(buf, tokenStarts[2], tokenEnds[2]), len, buf, tokenStarts[2], tokenEnds[2]);
+        }
+        int pidIdx = hasUid ? 3 : 2;
+        long pid = parseNumber(buf, tokenStarts[pidIdx], tokenEnds[pidIdx]);
+        if (pid >= 0) {
+            // name includes the uid, pid alone doesn't tell whose process it is
+            pids.add(pid, len, buf, tokenStarts[2], tokenEnds[pidIdx]);
+        }
+
+        // "E Tag     : message", tag is padded to 8 chars
+        int tagStart = pos + 1;
+        while (tagStart < end && buf[tagStart] == ' ') {
+            ++tagStart;
+        }
+        int tagEnd = tagStart;
+        while (tagEnd + 1 < end && !(buf[tagEnd] == ':' && buf[tagEnd + 1] == ' ')) {
+            ++tagEnd;
+        }
+        while (tagEnd > tagStart && buf[tagEnd - 1] == ' ') {
+            --tagEnd;
+        }
+        tags.add(hash(buf, tagStart, tagEnd), len, buf, tagStart, tagEnd);
+
+        // name is the time without milliseconds
+        int timeEnd = tokenEnds[1];
+        for (int i = tokenStarts[1]; i < timeEnd; ++i) {
+            if (buf[i] == '.') {
+                timeEnd = i;
+                break;
+            }
+        }
+        seconds.add(second, len, buf, tokenStarts[0], timeEnd);
+    }
+
+    // "[YYYY-]MM-DD" and "hh:mm:ss.mmm", returns seconds since the start of the year 0, or since
+    // the start of an unknown year if year isn't present, or -1
+    private static long parseSecond(byte[] buf, int dateStart, int dateEnd, int timeStart, int timeEnd) {
+        long year = 0;
+        int pos = dateStart;
+        if (dateEnd - dateStart == 10) {
+            year = parseNumber(buf, pos, pos + 4);
+            pos += 5;
+        }
+        if (dateEnd - pos != 5 || timeEnd - timeStart < 8 || year < 0) {
+            return -1;
+        }
+        long month = parseNumber(buf, pos, pos + 2);
+        long day = parseNumber(buf, pos + 3, pos + 5);
+        long h = parseNumber(buf, timeStart, timeStart + 2);
+        long m = parseNumber(buf, timeStart + 3, timeStart + 5);
+        long s = parseNumber(buf, timeStart + 6, timeStart + 8);
+        if (month < 1 || month > 12 || day < 1 || h < 0 || m < 0 || s < 0) {
+            return -1;
+        }
+        // leap days are ignored, time is only used to bucket lines
+        long days = year * 366 + DAYS_BEFORE_MONTH[(int) month - 1] + day - 1;
+        return ((days * 24 + h) * 60 + m) * 60 + s;
+    }
+
+    // returns -1 if [start, end) isn't a decimal number
+    private static long parseNumber(byte[] buf, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        long res = 0;
+        for (int i = start; i < end; ++i) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            res = res * 10 + d;
+        }
+        return res;
+    }
+
+    // 64-bit FNV-1a
+    private static long hash(byte[] buf, int start, int end) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = start; i < end; ++i) {
+            h ^= buf[i];
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // Open addressing hash map from long keys to line and byte counts and the name of the key
+    static class Counters {
+        private long[] keys = new long[64];
+        private long[] lineCounts = new long[64];
+        private long[] byteCounts = new long[64];
+        // null for free slots
+        private String[] names = new String[64];
+        private int size;
+
+        void add(long key, int bytes, byte[] nameBuf, int nameStart, int nameEnd) {
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            for (;;) {
+                String name = names[i];
+                if (name == null) {
+                    keys[i] = key;
+                    names[i] = new String(nameBuf, nameStart, nameEnd - nameStart, UTF_8);
+                    lineCounts[i] = 1;
+                    byteCounts[i] = bytes;
+                    if (++size * 2 > keys.length) {
+                        grow();
+                    }
+                    return;
+                }
+                if (keys[i] == key) {
+                    lineCounts[i] += 1;
+                    byteCounts[i] += bytes;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        private static int mix(long key) {
+            long h = key * 0x9e3779b97f4a7c15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldLines = lineCounts;
+            long[] oldBytes = byteCounts;
+            String[] oldNames = names;
+            int cap = oldKeys.length * 2;
+            keys = new long[cap];
+            lineCounts = new long[cap];
+            byteCounts = new long[cap];
+            names = new String[cap];
+            int mask = cap - 1;
+            for (int j = 0; j < oldKeys.length; ++j) {
+                if (oldNames[j] == null) {
+                    continue;
+                }
+                int i = mix(oldKeys[j]) & mask;
+                while (names[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                lineCounts[i] = oldLines[j];
+                byteCounts[i] = oldBytes[j];
+                names[i] = oldNames[j];
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        // slot indices of all entries, sorted by the given counts in descending order
+        int[] sortedSlots(long[] counts) {
+            var res = new int[size];
+            int n = 0;
+            for (int i = 0; i < names.length; ++i) {
+                if (names[i] != null) {
+                    res[n++] = i;
+                }
+            }
+            // slot index fits into the low 32 bits, sorting packed longs avoids boxing
+            var packed = new long[n];
+            for (int i = 0; i < n; ++i) {
+                int slot = res[i];
+                packed[i] = (-Math.min(counts[slot], Integer.MAX_VALUE) << 32) | slot;
+            }
+            Arrays.sort(packed);
+            for (int i = 0; i < n; ++i) {
+                res[i] = (int) packed[i];
+            }
+            return res;
+        }
+    }
+
+    String format() {
+        var sb = new StringBuilder();
+        long firstSecond = Long.MAX_VALUE;
+        long lastSecond = Long.MIN_VALUE;
+        Counters sec = seconds;
+        for (int i = 0; i < sec.names.length; ++i) {
+            if (sec.names[i] != null) {
+                firstSecond = Math.min(firstSecond, sec.keys[i]);
+                lastSecond = Math.max(lastSecond, sec.keys[i]);
+            }
+        }
+        long duration = lines != 0 ? lastSecond - firstSecond + 1 : 0;
+        sb.append(String.format(Locale.ROOT, "%d lines, %s, %d other lines\n", lines, formatBytes(bytes), otherLines));
+        if (duration > 0) {
+            sb.append(String.format(Locale.ROOT, "%d s, %.1f lines/s, %s/s\n", duration,
+                    (double) lines / duration, formatBytes(bytes / duration)));
+        }
+
+        sb.append("\nlevels:\n");
+        for (int i = 0; i < LEVELS.length(); ++i) {
+            if (levelLines[i] != 0) {
+                sb.append(String.format(Locale.ROOT, "  %c %10d lines %5.1f%% %10s\n", LEVELS.charAt(i),
+                        levelLines[i], 100.0 * levelLines[i] / lines, formatBytes(levelBytes[i])));
+            }
+        }
+
+        formatTop(sb, "tags by lines", tags, tags.lineCounts, duration);
+        formatTop(sb, "tags by bytes", tags, tags.byteCounts, duration);
+        if (uids.size() != 0) {
+            formatTop(sb, "uids by lines", uids, uids.lineCounts, duration);
+            formatTop(sb, "uids by bytes", uids, uids.byteCounts, duration);
+        }
+        formatTop(sb, "chatty processes (pids by lines)", pids, pids.lineCounts, duration);
+        formatTop(sb, "busiest seconds", sec, sec.lineCounts, 0);
+
+        if (duration > 0) {
+            long bucket = (duration + HISTOGRAM_ROWS - 1) / HISTOGRAM_ROWS;
+            int rows = (int) ((duration + bucket - 1) / bucket);
+            var rowLines = new long[rows];
+            // row is labeled by its first second that has lines
+            var rowNames = new String[rows];
+            var rowFirstSeconds = new long[rows];
+            for (int slot = 0; slot < sec.names.length; ++slot) {
+                if (sec.names[slot] == null) {
+                    continue;
+                }
+                long key = sec.keys[slot];
+                int row = (int) ((key - firstSecond) / bucket);
+                rowLines[row] += sec.lineCounts[slot];
+                if (rowNames[row] == null || key < rowFirstSeconds[row]) {
+                    rowNames[row] = sec.names[slot];
+                    rowFirstSeconds[row] = key;
+                }
+            }
+            long max = 1;
+            for (long l : rowLines) {
+                max = Math.max(max, l);
+            }
+            sb.append(String.format(Locale.ROOT, "\nlines per %d s:\n", bucket));
+            for (int row = 0; row < rows; ++row) {
+                sb.append(String.format(Locale.ROOT, "  %-19s %8d ", rowNames[row] != null ? rowNames[row] : "", rowLines[row]));
+                for (int i = 0, n = (int) (rowLines[row] * HISTOGRAM_WIDTH / max); i < n; ++i) {
+                    sb.append('#');
+                }
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    // rate is omitted if duration is 0
+    private void formatTop(StringBuilder sb, String title, Counters c, long[] counts, long duration) {
+        if (c.size() == 0) {
+            return;
+        }
+        sb.append("\ntop ").append(title).append(":\n");
+        int[] slots = c.sortedSlots(counts);
+        for (int i = 0, n = Math.min(TOP_N, slots.length); i < n; ++i) {
+            int slot = slots[i];
+            long l = c.lineCounts[slot];
+            sb.append(String.format(Locale.ROOT, "  %-20s %10d lines %5.1f%% %10s", c.names[slot], l,
+                    100.0 * l / lines, formatBytes(c.byteCounts[slot])));
+            if (duration > 0) {
+                sb.append(String.format(Locale.ROOT, " %8.1f lines/s", (double) l / duration));
+            }
+            sb.append('\n');
+        }
+    }
+
+    private static String formatBytes(long b) {
+        if (b < 1024) {
+            return b + " B";
+        }
+        if (b < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f KiB", b / 1024.0);
+        }
+        return String.format(Locale.ROOT, "%.1f MiB", b / (1024.0 * 1024));
+    }
+}
@@ -2,9 +2,12 @@ package app.grapheneos.logviewer;
 
 import android.annotation.Nullable;
 import android.app.AlertDialog;
+import android.content.ClipData;
+import android.content.ClipboardManager;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.graphics.Typeface;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.UserManager;
@@ -14,12 +17,23 @@ import android.util.Log;
 import android.util.SparseArray;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.widget.HorizontalScrollView;
+import android.widget.ScrollView;
+import android.widget.TextView;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import static android.text.TextUtils.isEmpty;
 import static java.lang.Math.max;
@@ -35,6 +49,11 @@ public class LogcatActivity extends BaseActivity {
     private static final String EXTRA_LOG_BUFFERS = LogcatActivity.class.getName() + ".LOG_BUFFERS";
     private static final String EXTRA_LOG_LEVEL = LogcatActivity.class.getName() + ".LOG_LEVEL";
     private static final String EXTRA_FILTER_REGEX = LogcatActivity.class.getName() + ".FILTER_REGEX";
+    // milliseconds since the epoch, lines that are no longer in the logd buffers are read from
+    // LogArchive. End is exclusive and is optional
+    static final String EXTRA_TIME_RANGE_START = LogcatActivity.class.getName() + ".TIME_RANGE_START";
+    static final String EXTRA_TIME_RANGE_END = LogcatActivity.class.getName() + ".TIME_RANGE_END";
+    private static final String EXTRA_COLLAPSE_REPEATED_LINES = LogcatActivity.class.getName() + ".COLLAPSE_REPEATED_LINES";
 
     static final int TYPE_APP_LOG = 1;
     static final int TYPE_SYSTEM_LOG = 2;
@@ -64,35 +83,14 @@ public class LogcatActivity extends BaseActivity {
             }
         }
 
-        var cmd = new ArrayList<String>();
-        cmd.add("logcat");
-
         ArrayList<String> logBuffers = getLogBuffers();
         String logBuffersStr = String.join(",", logBuffers);
-        cmd.add("--buffer=" + logBuffersStr);
-
-        cmd.add("-d");
-        cmd.add("--dividers");
-
-        var format = new ArrayList<String>();
-        format.add("UTC");
-        format.add("printable");
-        if (targetPkg == null) {
-            format.add("uid");
-        }
-        format.add("descriptive");
-        cmd.add("--format=" + String.join(",", format));
-
         String filterRegex = getFilterRegex();
-        if (!isEmpty(filterRegex)) {
-            cmd.add("--regex=" + filterRegex);
-        }
-
         int logLevel = getLogLevel();
         String logLevelStr = LOG_LEVELS.get(logLevel);
-        cmd.add("*:" + logLevelStr.charAt(0));
 
         long packageVersion = 0L;
+        int targetUid = android.os.Process.INVALID_UID;
 
         if (targetPkg != null) {
             ApplicationInfo ai;
@@ -103,28 +101,37 @@ public class LogcatActivity extends BaseActivity {
                 return null;
             }
 
-            cmd.add("--uid=" + ai.uid);
+            targetUid = ai.uid;
             packageVersion = ai.longVersionCode;
         }
 
-        var pb = new ProcessBuilder();
-        pb.command(cmd);
-
-        Log.d(TAG, "command: " + String.join(" ", cmd));
-
-        byte[] logcatBytes = null;
-        try {
-            Process proc = pb.start();
-            try (InputStream is = proc.getInputStream()) {
-                logcatBytes = is.readAllBytes();
+        long rangeStart = getTimeRangeStart();
+        long rangeEnd = getTimeRangeEnd();
+        boolean hasTimeRange = rangeStart != 0;
+
+        List<String> cmd = createCommand(logBuffers, logLevel, filterRegex, targetUid, hasTimeRange, rangeStart);
+        PipelineTrace trace = loadTrace;
+        RepeatedLines.Collector repeated = shouldCollapseRepeatedLines() ? new RepeatedLines.Collector() : null;
+        LineBuffer logcatLines;
+        if (hasTimeRange) {
+            // archive contains only the default buffers of all apps
+            boolean useArchive = targetUid == android.os.Process.INVALID_UID
+                    && getDefaultLogBuffers().equals(logBuffers);
+            logcatLines = captureTimeRange(cmd, rangeStart, rangeEnd, useArchive, logLevel, filterRegex,
+                    repeated, trace);
+        } else {
+            // captured in advance if this activity was started from an error report
+            logcatLines = LogPrefetcher.take(cmd, trace);
+            if (logcatLines == null) {
+                logcatLines = capture(cmd, repeated, trace);
+            } else if (repeated != null) {
+                trace.beginStage("collapse repeated lines");
+                logcatLines = repeated.collapse(logcatLines);
+                trace.endStage(logcatLines.getByteLength(), logcatLines.size());
             }
-            int ret = proc.waitFor();
-            Log.d(TAG, "logcat return code: " + ret);
-        } catch (IOException|InterruptedException e) {
-            Log.e(TAG, "", e);
         }
 
-        if (logcatBytes == null) {
+        if (logcatLines == null) {
             return null;
         }
 
@@ -140,17 +147,10 @@ public class LogcatActivity extends BaseActivity {
         if (!isEmpty(filterRegex)) {
             header.add("filterRegex: " + filterRegex);
         }
-
-        String text = new String(logcatBytes, StandardCharsets.UTF_8);
-
-        // remove repetitive +0000 from timestamps
-        var sb = new StringBuilder(text.length());
-        for (String line : text.split("\n")) {
-            line = line.replaceFirst(" \\+0000", "");
-            sb.append(line);
-            sb.append('\n');
+        if (hasTimeRange) {
+            header.add("timeRange: " + Instant.ofEpochMilli(rangeStart) + " - "
+                    + (rangeEnd != Long.MAX_VALUE ? Instant.ofEpochMilli(rangeEnd) : "now"));
         }
-        text = sb.toString();
 
         String title = switch (logType) {
             case TYPE_APP_LOG -> getString(R.string.app_log_title, Utils.loadAppLabel(this, targetPkg));
@@ -174,7 +174,179 @@ public class LogcatActivity extends BaseActivity {
             title += " | " + filterRegex;
         }
 
-        return new ViewModel(targetPkg, title, String.join("\n", header), text);
+        if (hasTimeRange) {
+            DateFormat df = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+            title += " | " + df.format(new Date(rangeStart));
+            if (rangeEnd != Long.MAX_VALUE) {
+                title += " - " + df.format(new Date(rangeEnd));
+            }
+        }
+
+        var vm = new ViewModel(targetPkg, title, String.join("\n", header), logcatLines);
+        if (repeated != null) {
+            vm.repeatedLines = repeated.finish();
+        }
+        return vm;
+    }
+
+    // targetUid is Process.INVALID_UID for the system log. Lines include the year if withYear is
+    // set, which makes them parseable by LogcatLine.getTimeMillis(). sinceMillis is ignored if
+    // it's 0
+    static List<String> createCommand(List<String> logBuffers, @Log.Level int logLevel,
+                                      @Nullable String filterRegex, int targetUid,
+                                      boolean withYear, long sinceMillis) {
+        var cmd = new ArrayList<String>();
+        cmd.add("logcat");
+        cmd.add("--buffer=" + String.join(",", logBuffers));
+
+        cmd.add("-d");
+        cmd.add("--dividers");
+
+        var format = new ArrayList<String>();
+        format.add("UTC");
+        if (withYear) {
+            format.add("year");
+        }
+        format.add("printable");
+        if (targetUid == android.os.Process.INVALID_UID) {
+            format.add("uid");
+        }
+        format.add("descriptive");
+        cmd.add("--format=" + String.join(",", format));
+
+        if (sinceMillis != 0) {
+            cmd.add("-T");
+            cmd.add(String.format(Locale.ROOT, "%d.%03d", sinceMillis / 1000, sinceMillis % 1000));
+        }
+
+        if (!isEmpty(filterRegex)) {
+            cmd.add("--regex=" + filterRegex);
+        }
+
+        cmd.add("*:" + LOG_LEVELS.get(logLevel).charAt(0));
+
+        if (targetUid != android.os.Process.INVALID_UID) {
+            cmd.add("--uid=" + targetUid);
+        }
+        return cmd;
+    }
+
+    @Nullable
+    static LineBuffer capture(List<String> cmd, PipelineTrace trace) {
+        return capture(cmd, null, trace);
+    }
+
+    // runs of repeated lines are collapsed if repeated is non-null
+    @Nullable
+    static LineBuffer capture(List<String> cmd, @Nullable RepeatedLines.Collector repeated, PipelineTrace trace) {
+        return capture(cmd, repeated, null, trace);
+    }
+
+    // onStart receives the logcat process, e.g. to destroy it to cancel the capture. Lines that
+    // were read before that are returned
+    @Nullable
+    static LineBuffer capture(List<String> cmd, @Nullable RepeatedLines.Collector repeated,
+                              @Nullable Consumer<Process> onStart, PipelineTrace trace) {
+        var pb = new ProcessBuilder();
+        pb.command(cmd);
+
+        Log.d(TAG, "command: " + String.join(" ", cmd));
+
+        try {
+            trace.beginStage("logcat spawn");
+            Process proc = pb.start();
+            if (onStart != null) {
+                onStart.accept(proc);
+            }
+            trace.beginStage("pipe read");
+            // remove repetitive +0000 from timestamps while lines are being indexed
+            LineBuffer.Builder.LineFilter filter = LogcatLine::removeUtcOffset;
+            if (repeated != null) {
+                filter = (buf, start, end) ->
+                        repeated.filterLine(buf, start, LogcatLine.removeUtcOffset(buf, start, end));
+            }
+            var builder = new LineBuffer.Builder(0, filter);
+            try (InputStream is = proc.getInputStream()) {
+                builder.readFrom(is);
+            }
+            LineBuffer res = builder.build();
+            trace.endStage(res.getByteLength(), res.size());
+            trace.beginStage("logcat exit");
+            int ret = proc.waitFor();
+            trace.endStage(0, 0);
+            Log.d(TAG, "logcat return code: " + ret);
+            return res;
+        } catch (IOException|InterruptedException e) {
+            Log.e(TAG, "", e);
+            trace.setError(e.toString());
+            return null;
+        }
+    }
+
+    // Lines of [rangeStart, rangeEnd) from the logd buffers, preceded by the older archived lines
+    // that logd no longer has
+    @Nullable
+    private LineBuffer captureTimeRange(List<String> cmd, long rangeStart, long rangeEnd, boolean useArchive,
+                                        @Log.Level int logLevel, @Nullable String filterRegex,
+                                        @Nullable RepeatedLines.Collector repeated, PipelineTrace trace) {
+        LineBuffer live = capture(cmd, trace);
+        if (live == null) {
+            return null;
+        }
+        // buffers are rotated independently, lines that are older than the first line of any of
+        // them may be missing from the live buffers and are read from the archive instead
+        long liveStart = Long.MIN_VALUE;
+        boolean bufferStart = true;
+        for (int i = 0, n = live.size(); i < n; ++i) {
+            if (live.startsWith(i, "--------- beginning of ")) {
+                bufferStart = true;
+                continue;
+            }
+            long time = LogcatLine.getTimeMillis(live, i);
+            if (bufferStart && time >= 0) {
+                liveStart = Math.max(liveStart, time);
+                bufferStart = false;
+            }
+        }
+
+        // Older lines are read from the archive only up to its last run. Lines that were logged
+        // after it are kept from the live buffers, even if some of them were already rotated out
+        long archiveEnd = Long.MIN_VALUE;
+        if (useArchive) {
+            archiveEnd = Math.min(liveStart, LogArchive.getLastArchivedTime(this) + 1);
+        }
+
+        var b = new LineBuffer.Builder(live.getByteLength(), repeated);
+        if (archiveEnd > rangeStart) {
+            Pattern filter = null;
+            if (!isEmpty(filterRegex)) {
+                try {
+                    filter = Pattern.compile(filterRegex);
+                } catch (PatternSyntaxException e) {
+                    Log.d(TAG, "", e);
+                }
+            }
+            LogArchive.read(this, rangeStart, Math.min(archiveEnd, rangeEnd), logLevel, filter, b, trace);
+        } else {
+            archiveEnd = Long.MIN_VALUE;
+        }
+
+        trace.beginStage("live lines");
+        try {
+            for (int i = 0, n = live.size(); i < n; ++i) {
+                long time = LogcatLine.getTimeMillis(live, i);
+                // dividers don't have time
+                if (time >= 0 && (time < archiveEnd || time >= rangeEnd)) {
+                    continue;
+                }
+                live.writeTo(b, i, i + 1);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        LineBuffer res = b.build();
+        trace.endStage(res.getByteLength(), res.size());
+        return res;
     }
 
     @Override
@@ -247,9 +419,25 @@ public class LogcatActivity extends BaseActivity {
         return getIntent().getStringExtra(EXTRA_FILTER_REGEX);
     }
 
+    private long getTimeRangeStart() {
+        return getIntent().getLongExtra(EXTRA_TIME_RANGE_START, 0);
+    }
+
+    private boolean shouldCollapseRepeatedLines() {
+        return getIntent().getBooleanExtra(EXTRA_COLLAPSE_REPEATED_LINES, false);
+    }
+
+    private long getTimeRangeEnd() {
+        return getIntent().getLongExtra(EXTRA_TIME_RANGE_END, Long.MAX_VALUE);
+    }
+
     private MenuItem miLogBuffers;
     private MenuItem miLogLevel;
     private MenuItem miSetFilter;
+    private MenuItem miTimeRange;
+    private MenuItem miKeepArchive;
+    private MenuItem miStatistics;
+    private MenuItem miCollapseRepeatedLines;
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -263,6 +451,16 @@ public class LogcatActivity extends BaseActivity {
                     .setShowAsActionFlags(MenuItem.SHOW_AS_ACTION_IF_ROOM);
         }
         miLogBuffers = menu.add(R.string.log_buffers);
+        if (getLogType() == TYPE_SYSTEM_LOG) {
+            miTimeRange = menu.add(R.string.time_range);
+            miKeepArchive = menu.add(R.string.keep_log_archive)
+                    .setCheckable(true)
+                    .setChecked(LogArchive.isEnabled(this));
+        }
+        miCollapseRepeatedLines = menu.add(R.string.collapse_repeated_lines)
+                .setCheckable(true)
+                .setChecked(shouldCollapseRepeatedLines());
+        miStatistics = menu.add(R.string.log_statistics);
         return true;
     }
 
@@ -274,7 +472,7 @@ public class LogcatActivity extends BaseActivity {
         return l;
     }
 
-    private static ArrayList<String> getDefaultLogBuffers() {
+    static ArrayList<String> getDefaultLogBuffers() {
         var l = new ArrayList<String>();
         l.add("main");
         l.add("system");
@@ -347,6 +545,59 @@ public class LogcatActivity extends BaseActivity {
             return true;
         }
 
+        if (item == miTimeRange) {
+            long hour = TimeUnit.HOURS.toMillis(1);
+            // 0 is the live buffer, 1 is the whole archive
+            long[] durations = { 0, hour, 6 * hour, 24 * hour, 1 };
+            String[] items = {
+                    getString(R.string.time_range_live),
+                    getString(R.string.time_range_last_hour),
+                    getString(R.string.time_range_last_6_hours),
+                    getString(R.string.time_range_last_24_hours),
+                    getString(R.string.time_range_archive),
+            };
+            long curStart = getTimeRangeStart();
+            int curIdx = curStart == 0 ? 0 : curStart == 1 ? durations.length - 1 : -1;
+
+            var b = new AlertDialog.Builder(this);
+            b.setTitle(R.string.time_range);
+            b.setSingleChoiceItems(items, curIdx, (d, idx) -> {
+                long duration = durations[idx];
+                var i = new Intent(getIntent());
+                i.removeExtra(EXTRA_TIME_RANGE_END);
+                if (duration <= 1) {
+                    i.putExtra(EXTRA_TIME_RANGE_START, duration);
+                } else {
+                    i.putExtra(EXTRA_TIME_RANGE_START, System.currentTimeMillis() - duration);
+                }
+                startActivity(i);
+                d.dismiss();
+            });
+            b.show();
+            return true;
+        }
+
+        if (item == miKeepArchive) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            LogArchive.setEnabled(getApplicationContext(), enabled);
+            return true;
+        }
+
+        if (item == miCollapseRepeatedLines) {
+            var i = new Intent(getIntent());
+            i.putExtra(EXTRA_COLLAPSE_REPEATED_LINES, !shouldCollapseRepeatedLines());
+            startActivity(i);
+            return true;
+        }
+
+        if (item == miStatistics) {
+            ViewModel vm = viewModel;
+            CompletableFuture.supplyAsync(() -> vm.getLogStats().format(), IoScheduler.cpu)
+                    .thenAcceptAsync(this::showStatistics, getMainExecutor());
+            return true;
+        }
+
         if (item == miSetFilter) {
             String initial = getFilterRegex();
             EditorDialog.show(this, true, getText(R.string.set_filter), initial,
@@ -362,4 +613,28 @@ public class LogcatActivity extends BaseActivity {
         }
         return super.onOptionsItemSelected(item);
     }
+
+    private void showStatistics(String text) {
+        var v = new TextView(this);
+        v.setTypeface(Typeface.MONOSPACE);
+        v.setTextSize(12f);
+        v.setTextIsSelectable(true);
+        v.setText(text);
+        int pad = dpToPx(16);
+        v.setPadding(pad, pad, pad, pad);
+        // rows are wider than the dialog on phones
+        var hsv = new HorizontalScrollView(this);
+        hsv.addView(v);
+        var sv = new ScrollView(this);
+        sv.addView(hsv);
+
+        var b = new AlertDialog.Builder(this);
+        b.setTitle(R.string.log_statistics);
+        b.setView(sv);
+        b.setPositiveButton(R.string.action_copy, (d, w) -> {
+            var cd = ClipData.newPlainText(null, text);
+            getSystemService(ClipboardManager.class).setPrimaryClip(cd);
+        });
+        b.show();
+    }
 }
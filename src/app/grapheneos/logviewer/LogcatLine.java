@@ -0,0 +1,106 @@
+package app.grapheneos.logviewer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Parses lines in "UTC[,year],printable[,uid],descriptive" logcat format without decoding them, e.g.
+// "10-19 12:00:00.000  u0_a123  1234  1240 E Tag     : message"
+class LogcatLine {
+    // tokens between the time and the level: optional uid, pid and tid
+    private static final int MAX_TOKENS_BEFORE_LEVEL = 3;
+
+    // returns one of 'V', 'D', 'I', 'W', 'E', 'F', 'A', or 0 if the line isn't a logcat message
+    static char getLevel(LineBuffer lines, int line) {
+        int len = lines.getLineByteLength(line);
+        int pos = 0;
+        // date, time, then at most MAX_TOKENS_BEFORE_LEVEL tokens before the level
+        for (int token = 0; token < 3 + MAX_TOKENS_BEFORE_LEVEL; ++token) {
+            while (pos < len && lines.byteAt(line, pos) == ' ') {
+                ++pos;
+            }
+            int tokenStart = pos;
+            while (pos < len && lines.byteAt(line, pos) != ' ') {
+                ++pos;
+            }
+            if (pos == tokenStart) {
+                return 0;
+            }
+            if (token >= 2 && pos - tokenStart == 1) {
+                char c = (char) lines.byteAt(line, tokenStart);
+                // otherwise it's a single-digit pid or tid
+                if ("VDIWEFA".indexOf(c) >= 0) {
+                    return c;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static final String TIME_PATTERN = "0000-00-00 00:00:00.000";
+
+    // Returns UTC time of the line in milliseconds since the epoch if the line starts with a time
+    // in "UTC,year" format, or -1, e.g. for dividers
+    static long getTimeMillis(LineBuffer lines, int line) {
+        String pattern = TIME_PATTERN;
+        int len = pattern.length();
+        if (lines.getLineByteLength(line) < len) {
+            return -1;
+        }
+        // fields in pattern order: year, month, day, hour, minute, second, millisecond
+        var fields = new int[7];
+        int field = 0;
+        for (int i = 0; i < len; ++i) {
+            int b = lines.byteAt(line, i);
+            char p = pattern.charAt(i);
+            if (p != '0') {
+                if (b != p) {
+                    return -1;
+                }
+                ++field;
+                continue;
+            }
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            fields[field] = fields[field] * 10 + (b - '0');
+        }
+        int month = fields[1];
+        int day = fields[2];
+        if (month < 1 || month > 12 || day < 1 || day > 31) {
+            return -1;
+        }
+        long days = daysFromCivil(fields[0], month, day);
+        return (((days * 24 + fields[3]) * 60 + fields[4]) * 60 + fields[5]) * 1000 + fields[6];
+    }
+
+    // days since 1970-01-01 in the proleptic Gregorian calendar, java.time isn't used to not
+    // allocate for each line
+    private static long daysFromCivil(int year, int month, int day) {
+        if (month <= 2) {
+            --year;
+        }
+        int era = Math.floorDiv(year, 400);
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static final byte[] UTC_OFFSET = " +0000".getBytes(UTF_8);
+
+    // removes the first " +0000" in place, returns the new line end
+    static int removeUtcOffset(byte[] buf, int start, int end) {
+        byte[] pattern = UTC_OFFSET;
+        int patternLen = pattern.length;
+        outer:
+        for (int i = start, max = end - patternLen; i <= max; ++i) {
+            for (int j = 0; j < patternLen; ++j) {
+                if (buf[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            System.arraycopy(buf, i + patternLen, buf, i, end - i - patternLen);
+            return end - patternLen;
+        }
+        return end;
+    }
+}
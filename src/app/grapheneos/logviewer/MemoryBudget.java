@@ -0,0 +1,232 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Accounts large structures of all components (ViewModels, blob entries, decompressed caches)
+// against one budget. When the budget is exceeded, rebuildable caches are dropped first, then
+// the least recently used structures are evicted regardless of their owner.
+// Memory pressure is reported by BlobProvider, see trim()
+class MemoryBudget {
+    static final long BUDGET = Math.min(140L << 20, Runtime.getRuntime().maxMemory() / 3);
+
+    // in eviction order
+    enum Tier {
+        // rebuildable from other structures, e.g. decompressed blocks of a blob
+        CACHE,
+        // data is lost when it's evicted, e.g. ViewModel or blob entry
+        DATA,
+    }
+
+    static class Handle {
+        final Tier tier;
+        final String name;
+        private final Runnable evictor;
+        // written only under the lock
+        private long cost;
+        private boolean registered;
+        // pinned handles are never evicted, they are still counted against the budget
+        private boolean pinned;
+
+        private Handle(Tier tier, String name, long cost, Runnable evictor) {
+            this.tier = tier;
+            this.name = name;
+            this.cost = cost;
+            this.evictor = evictor;
+        }
+    }
+
+    private static final Object lock = new Object();
+    // in access order, least recently used handle is first
+    private static final LinkedHashMap<Handle, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+    private static long totalCost;
+
+    // Evictor is invoked after handle is unregistered, on the thread that has caused the eviction,
+    // without holding any locks of MemoryBudget. Newly registered handle is never evicted right
+    // away, even if its cost exceeds the budget
+    static Handle register(Tier tier, String name, long cost, Runnable evictor) {
+        return register(tier, name, cost, false, evictor);
+    }
+
+    static Handle register(Tier tier, String name, long cost, boolean pinned, Runnable evictor) {
+        var h = new Handle(tier, name, cost, evictor);
+        h.pinned = pinned;
+        add(h);
+        return h;
+    }
+
+    private static void add(Handle h) {
+        List<Handle> evicted;
+        synchronized (lock) {
+            h.registered = true;
+            handles.put(h, h);
+            totalCost += h.cost;
+            evicted = trimLocked(BUDGET, h);
+        }
+        runEvictors(evicted);
+    }
+
+    // Handle of a process-wide cache, e.g. of decompressed blocks, that is registered on the first
+    // setCost() and again on the first setCost() after each eviction.
+    // Registration and cost updates run evictors of other owners on the calling thread and those
+    // take their own locks, setCost() must be called without holding the lock of the cache to not
+    // deadlock with them
+    static class CacheHandle {
+        private final String name;
+        private final Runnable evictor;
+        private final AtomicReference<Handle> handle = new AtomicReference<>();
+
+        CacheHandle(String name, Runnable evictor) {
+            this.name = name;
+            this.evictor = evictor;
+        }
+
+        void setCost(long cost) {
+            for (;;) {
+                Handle h = handle.get();
+                if (h != null) {
+                    MemoryBudget.setCost(h, cost);
+                    return;
+                }
+                var created = new Handle[1];
+                h = new Handle(Tier.CACHE, name, cost, () -> {
+                    handle.compareAndSet(created[0], null);
+                    evictor.run();
+                });
+                created[0] = h;
+                // cost updates of other threads are dropped until the handle is added, the next
+                // update corrects it
+                if (handle.compareAndSet(null, h)) {
+                    add(h);
+                    return;
+                }
+            }
+        }
+    }
+
+    // Pinning is used for structures that are in use, e.g. the ViewModel of a started activity.
+    // Marks handle as recently used. Returns false if handle is no longer registered, e.g. if
+    // it was evicted, pinned state isn't changed then
+    static boolean setPinned(Handle h, boolean pinned) {
+        synchronized (lock) {
+            if (!h.registered) {
+                return false;
+            }
+            h.pinned = pinned;
+            handles.get(h);
+            return true;
+        }
+    }
+
+    static boolean isRegistered(Handle h) {
+        synchronized (lock) {
+            return h.registered;
+        }
+    }
+
+    // marks handle as recently used
+    static void touch(Handle h) {
+        synchronized (lock) {
+            handles.get(h);
+        }
+    }
+
+    static void setCost(Handle h, long cost) {
+        List<Handle> evicted;
+        synchronized (lock) {
+            if (!h.registered || h.cost == cost) {
+                return;
+            }
+            totalCost += cost - h.cost;
+            h.cost = cost;
+            handles.get(h);
+            evicted = trimLocked(BUDGET, h);
+        }
+        runEvictors(evicted);
+    }
+
+    // evictor is not invoked
+    static void unregister(Handle h) {
+        synchronized (lock) {
+            if (h.registered) {
+                unregisterLocked(h);
+                handles.remove(h);
+            }
+        }
+    }
+
+    // Drops all caches and evicts the least recently used structures until the total cost is
+    // at most maxCost, pinned handles are kept. Returns the number of evicted handles
+    static int trim(long maxCost) {
+        List<Handle> evicted;
+        synchronized (lock) {
+            evicted = evictTierLocked(Tier.CACHE);
+            evicted.addAll(trimLocked(maxCost, null));
+        }
+        runEvictors(evicted);
+        return evicted.size();
+    }
+
+    static long getTotalCost() {
+        synchronized (lock) {
+            return totalCost;
+        }
+    }
+
+    static void dump(PrintWriter pw) {
+        synchronized (lock) {
+            pw.println("MemoryBudget: " + totalCost + " of " + BUDGET + " bytes, "
+                    + handles.size() + " handles, least recently used first:");
+            for (Handle h : handles.keySet()) {
+                pw.println("  " + h.tier + " " + h.cost + (h.pinned ? " pinned " : " ") + h.name);
+            }
+        }
+    }
+
+    private static ArrayList<Handle> trimLocked(long maxCost, @Nullable Handle keep) {
+        var res = new ArrayList<Handle>();
+        for (Tier tier : Tier.values()) {
+            Iterator<Handle> it = handles.keySet().iterator();
+            while (totalCost > maxCost && it.hasNext()) {
+                Handle h = it.next();
+                if (h.tier == tier && h != keep && !h.pinned) {
+                    it.remove();
+                    unregisterLocked(h);
+                    res.add(h);
+                }
+            }
+        }
+        return res;
+    }
+
+    private static ArrayList<Handle> evictTierLocked(Tier tier) {
+        var res = new ArrayList<Handle>();
+        Iterator<Handle> it = handles.keySet().iterator();
+        while (it.hasNext()) {
+            Handle h = it.next();
+            if (h.tier == tier && !h.pinned) {
+                it.remove();
+                unregisterLocked(h);
+                res.add(h);
+            }
+        }
+        return res;
+    }
+
+    private static void unregisterLocked(Handle h) {
+        h.registered = false;
+        totalCost -= h.cost;
+    }
+
+    private static void runEvictors(List<Handle> evicted) {
+        for (Handle h : evicted) {
+            h.evictor.run();
+        }
+    }
+}
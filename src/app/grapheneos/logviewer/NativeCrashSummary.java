@@ -0,0 +1,74 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+
+// Extracts signal, abort message and backtrace from the native crash report that is stored in
+// crashInfo.stackTrace. The text is walked once, lines are matched against the prefixes at their
+// start and reported as ranges of the original string, nothing is copied
+class NativeCrashSummary {
+    static final String NATIVE_CRASH_MARKER = "\nProcess uptime: ";
+
+    private static final String SIGNAL_PREFIX = "signal ";
+    private static final String ABORT_MESSAGE_PREFIX = "Abort message: ";
+    private static final String BACKTRACE_PREFIX = "backtrace:";
+
+    private static final int NO_MATCH = 0;
+    private static final int MATCH_LINE = 1;
+    private static final int MATCH_BACKTRACE = 2;
+
+    interface RangeSink {
+        // [start, end) range of text, without the trailing '\n'. Backtrace is reported as a single
+        // multi-line range
+        void onRange(int start, int end);
+    }
+
+    // returns false if text is not a native crash report
+    static boolean extract(String text, RangeSink sink) {
+        int pos = text.indexOf(NATIVE_CRASH_MARKER);
+        if (pos <= 0) {
+            return false;
+        }
+        ++pos;
+        final int len = text.length();
+        while (pos < len) {
+            int lineEnd = text.indexOf('\n', pos);
+            if (lineEnd < 0) {
+                lineEnd = len;
+            }
+            switch (matchPrefix(text, pos)) {
+                case MATCH_LINE -> sink.onRange(pos, lineEnd);
+                case MATCH_BACKTRACE -> {
+                    // separate backtrace from the header lines
+                    sink.onRange(pos, pos);
+                    int end = len;
+                    while (end > lineEnd && text.charAt(end - 1) == '\n') {
+                        --end;
+                    }
+                    sink.onRange(pos, end);
+                    return true;
+                }
+            }
+            pos = lineEnd + 1;
+        }
+        return true;
+    }
+
+    @Nullable
+    static LineBuffer extract(String text) {
+        var b = new LineBuffer.Builder(0);
+        if (!extract(text, (start, end) -> b.appendLine(text, start, end))) {
+            return null;
+        }
+        return b.build();
+    }
+
+    // dispatches on the first char, at most one prefix is compared per line
+    private static int matchPrefix(String s, int pos) {
+        return switch (s.charAt(pos)) {
+            case 's' -> s.startsWith(SIGNAL_PREFIX, pos) ? MATCH_LINE : NO_MATCH;
+            case 'A' -> s.startsWith(ABORT_MESSAGE_PREFIX, pos) ? MATCH_LINE : NO_MATCH;
+            case 'b' -> s.startsWith(BACKTRACE_PREFIX, pos) ? MATCH_BACKTRACE : NO_MATCH;
+            default -> NO_MATCH;
+        };
+    }
+}
@@ -0,0 +1,168 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Timings of the stages of loading, sharing and saving logs, with byte and line counts. Stages of
+// a run may be executed on different threads, but never concurrently. Stages are also emitted as
+// async Trace sections, for Perfetto. Recent runs are kept in a ring buffer and are printed by:
+//
+// adb shell dumpsys activity app.grapheneos.logviewer
+// adb shell dumpsys activity provider app.grapheneos.logviewer/.BlobProvider
+class PipelineTrace {
+    private static final int MAX_RUNS = 32;
+    // Trace section names are limited to 127 characters
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+    // guarded by itself, oldest run is first
+    private static final ArrayDeque<PipelineTrace> runs = new ArrayDeque<>(MAX_RUNS);
+    // invoked after a run is finished, on the thread that has finished it
+    private static final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    record Stage(String name, long startNanos, long endNanos, long bytes, long lines) {}
+
+    final String name;
+    private final int id;
+    private final long startWallTime;
+    private final long startNanos;
+    // guarded by this
+    private final ArrayList<Stage> stages = new ArrayList<>();
+    @Nullable
+    private String curStage;
+    private long curStageStart;
+    private long endNanos;
+    @Nullable
+    private String error;
+
+    private PipelineTrace(String name) {
+        this.name = name;
+        this.id = nextId.incrementAndGet();
+        this.startWallTime = System.currentTimeMillis();
+        this.startNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    static PipelineTrace begin(String name) {
+        return new PipelineTrace(name);
+    }
+
+    // ends the current stage, if any
+    synchronized void beginStage(String stage) {
+        if (curStage != null) {
+            endStage(0, 0);
+        }
+        curStage = stage;
+        curStageStart = SystemClock.elapsedRealtimeNanos();
+        Trace.beginAsyncSection(getSectionName(stage), id);
+    }
+
+    synchronized void endStage(long bytes, long lines) {
+        String stage = curStage;
+        if (stage == null) {
+            return;
+        }
+        Trace.endAsyncSection(getSectionName(stage), id);
+        stages.add(new Stage(stage, curStageStart, SystemClock.elapsedRealtimeNanos(), bytes, lines));
+        curStage = null;
+    }
+
+    synchronized void setError(String error) {
+        this.error = error;
+    }
+
+    // ends the current stage and adds this run to the ring buffer. Subsequent calls are ignored
+    void finish() {
+        synchronized (this) {
+            if (endNanos != 0) {
+                return;
+            }
+            endStage(0, 0);
+            endNanos = SystemClock.elapsedRealtimeNanos();
+        }
+        synchronized (runs) {
+            if (runs.size() == MAX_RUNS) {
+                runs.removeFirst();
+            }
+            runs.addLast(this);
+        }
+        for (Runnable l : listeners) {
+            l.run();
+        }
+    }
+
+    private String getSectionName(String stage) {
+        String s = name + ": " + stage;
+        return s.length() <= MAX_SECTION_NAME_LENGTH ? s : s.substring(0, MAX_SECTION_NAME_LENGTH);
+    }
+
+    static void addListener(Runnable l) {
+        listeners.add(l);
+    }
+
+    static void removeListener(Runnable l) {
+        listeners.remove(l);
+    }
+
+    // most recent run is first
+    static List<PipelineTrace> getRecentRuns(int max) {
+        var res = new ArrayList<PipelineTrace>(max);
+        synchronized (runs) {
+            var it = runs.descendingIterator();
+            while (res.size() < max && it.hasNext()) {
+                res.add(it.next());
+            }
+        }
+        return res;
+    }
+
+    static void dump(PrintWriter pw) {
+        List<PipelineTrace> l = getRecentRuns(MAX_RUNS);
+        pw.println("PipelineTrace: " + l.size() + " recent runs, most recent first:");
+        for (PipelineTrace t : l) {
+            pw.print(t.format("  "));
+        }
+    }
+
+    synchronized String format(String prefix) {
+        var sb = new StringBuilder();
+        var df = new SimpleDateFormat("HH:mm:ss.SSS", Locale.ROOT);
+        sb.append(prefix).append(df.format(new Date(startWallTime))).append(' ').append(name).append(": ");
+        if (endNanos != 0) {
+            sb.append(formatMillis(endNanos - startNanos)).append(" ms");
+        } else {
+            sb.append("in progress");
+        }
+        if (error != null) {
+            sb.append(", error: ").append(error);
+        }
+        sb.append('\n');
+        for (Stage s : stages) {
+            sb.append(prefix).append("  ").append(s.name).append(": +")
+                    .append(formatMillis(s.startNanos - startNanos)).append(' ')
+                    .append(formatMillis(s.endNanos - s.startNanos)).append(" ms");
+            if (s.bytes != 0) {
+                sb.append(", ").append(s.bytes).append(" bytes");
+            }
+            if (s.lines != 0) {
+                sb.append(", ").append(s.lines).append(" lines");
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,122 @@
+package app.grapheneos.logviewer;
+
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Minimal reader of protobuf wire format. Length-delimited fields are read in place: nested
+// messages are returned as readers of the same buffer, only strings are copied out
+class ProtoReader {
+    static final int WIRE_TYPE_VARINT = 0;
+    static final int WIRE_TYPE_I64 = 1;
+    static final int WIRE_TYPE_LEN = 2;
+    static final int WIRE_TYPE_I32 = 5;
+
+    private final byte[] buf;
+    private int pos;
+    private final int end;
+    private int tag;
+
+    ProtoReader(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+
+    ProtoReader(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    // returns false when the end of message is reached
+    boolean next() throws IOException {
+        if (pos >= end) {
+            return false;
+        }
+        long v = readVarint();
+        if (v >>> 32 != 0 || (v >>> 3) == 0) {
+            throw new IOException("invalid tag " + v);
+        }
+        tag = (int) v;
+        return true;
+    }
+
+    int fieldNumber() {
+        return tag >>> 3;
+    }
+
+    int wireType() {
+        return tag & 7;
+    }
+
+    // offset of the next unread byte
+    int position() {
+        return pos;
+    }
+
+    long readVarint() throws IOException {
+        long res = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= end) {
+                throw new IOException("truncated varint");
+            }
+            byte b = buf[pos++];
+            res |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return res;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    int readInt() throws IOException {
+        return (int) readVarint();
+    }
+
+    boolean readBool() throws IOException {
+        return readVarint() != 0;
+    }
+
+    String readString() throws IOException {
+        int len = readLength();
+        String s = new String(buf, pos, len, UTF_8);
+        pos += len;
+        return s;
+    }
+
+    ProtoReader readMessage() throws IOException {
+        return readMessage(readLength());
+    }
+
+    // len is the result of the preceding readLength()
+    ProtoReader readMessage(int len) {
+        var r = new ProtoReader(buf, pos, len);
+        pos += len;
+        return r;
+    }
+
+    // returns the length of the length-delimited field, pos is left at the start of its contents
+    int readLength() throws IOException {
+        long len = readVarint();
+        if (len < 0 || len > end - pos) {
+            throw new IOException("invalid length " + len);
+        }
+        return (int) len;
+    }
+
+    void skip() throws IOException {
+        int skipLen = switch (wireType()) {
+            case WIRE_TYPE_VARINT -> {
+                readVarint();
+                yield 0;
+            }
+            case WIRE_TYPE_I64 -> 8;
+            case WIRE_TYPE_LEN -> readLength();
+            case WIRE_TYPE_I32 -> 4;
+            default -> throw new IOException("unsupported wire type " + wireType());
+        };
+        if (skipLen > end - pos) {
+            throw new IOException("truncated field");
+        }
+        pos += skipLen;
+    }
+}
@@ -0,0 +1,671 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+// Reader of protobuf tombstones (see system/core/debuggerd/proto/tombstone.proto).
+// Header, signal info, abort message and crashing thread are decoded eagerly. Other threads,
+// memory map, open files and log buffers are only located in the buffer, they are decoded and
+// rendered in text tombstone format when their section is expanded
+class ProtoTombstone {
+    // Tombstone
+    private static final int F_ARCH = 1;
+    private static final int F_BUILD_FINGERPRINT = 2;
+    private static final int F_REVISION = 3;
+    private static final int F_TIMESTAMP = 4;
+    private static final int F_PID = 5;
+    private static final int F_TID = 6;
+    private static final int F_UID = 7;
+    private static final int F_COMMAND_LINE = 9;
+    private static final int F_SIGNAL_INFO = 10;
+    private static final int F_ABORT_MESSAGE = 14;
+    private static final int F_CAUSES = 15;
+    private static final int F_THREADS = 16;
+    private static final int F_MEMORY_MAPPINGS = 17;
+    private static final int F_LOG_BUFFERS = 18;
+    private static final int F_OPEN_FDS = 19;
+    private static final int F_PROCESS_UPTIME = 20;
+
+    // Thread
+    private static final int F_THREAD_NAME = 2;
+    private static final int F_THREAD_REGISTERS = 3;
+    private static final int F_THREAD_BACKTRACE = 4;
+    private static final int F_THREAD_MEMORY_DUMP = 5;
+    private static final int F_THREAD_BACKTRACE_NOTE = 7;
+
+    private static final String HEADER_LINE = "*** *** *** *** *** *** *** *** *** *** *** *** *** *** *** ***";
+    private static final String THREAD_SEPARATOR = "--- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---";
+
+    record Header(String timestamp, int pid, int tid) {}
+
+    // reads the fields that are used for matching proto tombstone to the crash, buf may contain
+    // only the start of the file
+    @Nullable
+    static Header readHeader(byte[] buf, int len) {
+        String timestamp = null;
+        int pid = 0;
+        int tid = 0;
+        var r = new ProtoReader(buf, 0, len);
+        try {
+            while (r.next()) {
+                switch (r.fieldNumber()) {
+                    case F_TIMESTAMP -> timestamp = r.readString();
+                    case F_PID -> pid = r.readInt();
+                    case F_TID -> tid = r.readInt();
+                    default -> r.skip();
+                }
+                if (r.fieldNumber() > F_TID && timestamp != null) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // truncated by len
+        }
+        return timestamp != null ? new Header(timestamp, pid, tid) : null;
+    }
+
+    static class ThreadInfo {
+        int tid;
+        String name = "";
+        int frameCount;
+        // range of Thread message in the buffer
+        int offset;
+        int length;
+    }
+
+    private final byte[] buf;
+
+    private int arch;
+    private String buildFingerprint = "";
+    private String revision = "";
+    private String timestamp = "";
+    private int pid;
+    private int tid;
+    private int uid;
+    private final ArrayList<String> commandLine = new ArrayList<>();
+    private int processUptime;
+    @Nullable
+    private ProtoReaderRange signalInfo;
+    private String abortMessage;
+    private final ArrayList<String> causes = new ArrayList<>();
+
+    private final ArrayList<ThreadInfo> threads = new ArrayList<>();
+    private final ArrayList<ProtoReaderRange> memoryMappings = new ArrayList<>();
+    private final ArrayList<ProtoReaderRange> openFds = new ArrayList<>();
+    private final ArrayList<LogBufferInfo> logBuffers = new ArrayList<>();
+
+    private record ProtoReaderRange(int offset, int length) {}
+
+    private record LogBufferInfo(String name, int messageCount, ProtoReaderRange range) {}
+
+    private ProtoTombstone(byte[] buf) {
+        this.buf = buf;
+    }
+
+    static ProtoTombstone parse(byte[] buf) throws IOException {
+        var t = new ProtoTombstone(buf);
+        var r = new ProtoReader(buf);
+        while (r.next()) {
+            switch (r.fieldNumber()) {
+                case F_ARCH -> t.arch = r.readInt();
+                case F_BUILD_FINGERPRINT -> t.buildFingerprint = r.readString();
+                case F_REVISION -> t.revision = r.readString();
+                case F_TIMESTAMP -> t.timestamp = r.readString();
+                case F_PID -> t.pid = r.readInt();
+                case F_TID -> t.tid = r.readInt();
+                case F_UID -> t.uid = r.readInt();
+                case F_COMMAND_LINE -> t.commandLine.add(r.readString());
+                case F_PROCESS_UPTIME -> t.processUptime = r.readInt();
+                case F_SIGNAL_INFO -> t.signalInfo = skipMessage(r);
+                case F_ABORT_MESSAGE -> t.abortMessage = r.readString();
+                case F_CAUSES -> {
+                    ProtoReader m = r.readMessage();
+                    while (m.next()) {
+                        if (m.fieldNumber() == 1) {
+                            t.causes.add(m.readString());
+                        } else {
+                            m.skip();
+                        }
+                    }
+                }
+                case F_THREADS -> t.threads.add(scanThreadsMapEntry(r.readMessage()));
+                case F_MEMORY_MAPPINGS -> t.memoryMappings.add(skipMessage(r));
+                case F_LOG_BUFFERS -> t.logBuffers.add(scanLogBuffer(r));
+                case F_OPEN_FDS -> t.openFds.add(skipMessage(r));
+                default -> r.skip();
+            }
+        }
+        return t;
+    }
+
+    private static ProtoReaderRange skipMessage(ProtoReader r) throws IOException {
+        int len = r.readLength();
+        int offset = r.position();
+        var res = new ProtoReaderRange(offset, len);
+        // readLength() has already checked the bounds
+        r.readMessage(len);
+        return res;
+    }
+
+    private static LogBufferInfo scanLogBuffer(ProtoReader r) throws IOException {
+        int len = r.readLength();
+        var range = new ProtoReaderRange(r.position(), len);
+        ProtoReader m = r.readMessage(len);
+        String name = "";
+        int messageCount = 0;
+        while (m.next()) {
+            if (m.fieldNumber() == 1) {
+                name = m.readString();
+            } else {
+                if (m.fieldNumber() == 2) {
+                    ++messageCount;
+                }
+                m.skip();
+            }
+        }
+        return new LogBufferInfo(name, messageCount, range);
+    }
+
+    // map<uint32, Thread> entry, only thread name and number of frames are decoded
+    private static ThreadInfo scanThreadsMapEntry(ProtoReader entry) throws IOException {
+        var ti = new ThreadInfo();
+        while (entry.next()) {
+            switch (entry.fieldNumber()) {
+                case 1 -> ti.tid = entry.readInt();
+                case 2 -> {
+                    ti.length = entry.readLength();
+                    ti.offset = entry.position();
+                    ProtoReader thread = entry.readMessage(ti.length);
+                    while (thread.next()) {
+                        switch (thread.fieldNumber()) {
+                            case F_THREAD_NAME -> ti.name = thread.readString();
+                            case F_THREAD_BACKTRACE -> {
+                                ++ti.frameCount;
+                                thread.skip();
+                            }
+                            default -> thread.skip();
+                        }
+                    }
+                }
+                default -> entry.skip();
+            }
+        }
+        return ti;
+    }
+
+    private ProtoReader reader(ProtoReaderRange r) {
+        return new ProtoReader(buf, r.offset, r.length);
+    }
+
+    private boolean is64Bit() {
+        // ARM32 = 0, ARM64 = 1, X86 = 2, X86_64 = 3, RISCV64 = 4
+        return arch == 1 || arch == 3 || arch == 4;
+    }
+
+    private String getAbi() {
+        return switch (arch) {
+            case 0 -> "arm";
+            case 1 -> "arm64";
+            case 2 -> "x86";
+            case 3 -> "x86_64";
+            case 4 -> "riscv64";
+            default -> "<unknown>";
+        };
+    }
+
+    @Nullable
+    private ThreadInfo getCrashingThread() {
+        for (ThreadInfo ti : threads) {
+            if (ti.tid == tid) {
+                return ti;
+            }
+        }
+        return null;
+    }
+
+    // header and crashing thread
+    String renderSummary() throws IOException {
+        var b = new StringBuilder(4000);
+        b.append(HEADER_LINE).append('\n');
+        b.append("Build fingerprint: '").append(buildFingerprint).append("'\n");
+        b.append("Revision: '").append(revision).append("'\n");
+        b.append("ABI: '").append(getAbi()).append("'\n");
+        b.append("Timestamp: ").append(timestamp).append('\n');
+        b.append("Process uptime: ").append(processUptime).append("s\n");
+        if (!commandLine.isEmpty()) {
+            b.append("Cmdline: ").append(String.join(" ", commandLine)).append('\n');
+        }
+        ThreadInfo crashingThread = getCrashingThread();
+        appendThreadHeader(b, tid, crashingThread != null ? crashingThread.name : "");
+        if (signalInfo != null) {
+            appendSignalInfo(b, reader(signalInfo));
+        }
+        if (abortMessage != null) {
+            b.append("Abort message: '").append(abortMessage).append("'\n");
+        }
+        for (String cause : causes) {
+            b.append("Cause: ").append(cause).append('\n');
+        }
+        if (crashingThread != null) {
+            appendThread(b, crashingThread);
+        }
+        return b.toString();
+    }
+
+    // Sections of the whole report, the first one is a range of summary lines
+    List<Section> createSections(LineBuffer summary) {
+        var res = new ArrayList<Section>();
+        ThreadInfo crashingThread = getCrashingThread();
+        String crashingThreadTitle = "crashing thread";
+        if (crashingThread != null) {
+            crashingThreadTitle += ": " + crashingThread.name + ", tid " + crashingThread.tid;
+        }
+        res.add(new Section(crashingThreadTitle, 0, summary.size(), true));
+
+        if (crashingThread != null) {
+            res.add(new Section("memory near registers", lazily(() -> renderMemoryDumps(crashingThread))));
+        }
+        if (!memoryMappings.isEmpty()) {
+            res.add(new Section("memory map (" + memoryMappings.size() + " entries)",
+                    lazily(this::renderMemoryMap)));
+        }
+        for (ThreadInfo ti : threads) {
+            if (ti == crashingThread) {
+                continue;
+            }
+            String title = "thread: " + ti.name + ", tid " + ti.tid + " (" + ti.frameCount + " frames)";
+            res.add(new Section(title, lazily(() -> renderThread(ti))));
+        }
+        if (!openFds.isEmpty()) {
+            res.add(new Section("open files (" + openFds.size() + ")", lazily(this::renderOpenFiles)));
+        }
+        for (LogBufferInfo lb : logBuffers) {
+            String title = "log " + lb.name + " (" + lb.messageCount + " messages)";
+            res.add(new Section(title, lazily(() -> renderLogBuffer(lb.range))));
+        }
+        return res;
+    }
+
+    interface Renderer {
+        String render() throws IOException;
+    }
+
+    private static Supplier<String> lazily(Renderer r) {
+        return () -> {
+            try {
+                return r.render();
+            } catch (IOException e) {
+                return "[[malformed protobuf tombstone: " + e.getMessage() + "]]";
+            }
+        };
+    }
+
+    private void appendThreadHeader(StringBuilder b, int threadId, String threadName) {
+        b.append("pid: ").append(pid).append(", tid: ").append(threadId)
+                .append(", name: ").append(threadName);
+        if (!commandLine.isEmpty()) {
+            b.append("  >>> ").append(commandLine.get(0)).append(" <<<");
+        }
+        b.append('\n');
+        b.append("uid: ").append(uid).append('\n');
+    }
+
+    private void appendSignalInfo(StringBuilder b, ProtoReader r) throws IOException {
+        int number = 0;
+        String name = "";
+        int code = 0;
+        String codeName = "";
+        boolean hasSender = false;
+        int senderUid = 0;
+        int senderPid = 0;
+        boolean hasFaultAddress = false;
+        long faultAddress = 0;
+        while (r.next()) {
+            switch (r.fieldNumber()) {
+                case 1 -> number = r.readInt();
+                case 2 -> name = r.readString();
+                case 3 -> code = r.readInt();
+                case 4 -> codeName = r.readString();
+                case 5 -> hasSender = r.readBool();
+                case 6 -> senderUid = r.readInt();
+                case 7 -> senderPid = r.readInt();
+                case 8 -> hasFaultAddress = r.readBool();
+                case 9 -> faultAddress = r.readVarint();
+                default -> r.skip();
+            }
+        }
+        b.append("signal ").append(number).append(" (").append(name).append("), code ")
+                .append(code).append(" (").append(codeName);
+        if (hasSender) {
+            b.append(" from pid ").append(senderPid).append(", uid ").append(senderUid);
+        }
+        b.append("), fault addr ");
+        if (hasFaultAddress) {
+            b.append("0x");
+            appendHex(b, faultAddress, is64Bit() ? 16 : 8);
+        } else {
+            b.append("--------");
+        }
+        b.append('\n');
+    }
+
+    private String renderThread(ThreadInfo ti) throws IOException {
+        var b = new StringBuilder(ti.frameCount * 100 + 1000);
+        b.append(THREAD_SEPARATOR).append('\n');
+        appendThreadHeader(b, ti.tid, ti.name);
+        appendThread(b, ti);
+        return b.toString();
+    }
+
+    private void appendThread(StringBuilder b, ThreadInfo ti) throws IOException {
+        int width = is64Bit() ? 16 : 8;
+        var registers = new StringBuilder();
+        int registerCount = 0;
+        var notes = new ArrayList<String>();
+        var frames = new StringBuilder();
+        int frameIdx = 0;
+
+        var r = new ProtoReader(buf, ti.offset, ti.length);
+        while (r.next()) {
+            switch (r.fieldNumber()) {
+                case F_THREAD_REGISTERS -> {
+                    ProtoReader reg = r.readMessage();
+                    String name = "";
+                    long value = 0;
+                    while (reg.next()) {
+                        switch (reg.fieldNumber()) {
+                            case 1 -> name = reg.readString();
+                            case 2 -> value = reg.readVarint();
+                            default -> reg.skip();
+                        }
+                    }
+                    if (registerCount % 4 == 0) {
+                        if (registerCount != 0) {
+                            registers.append('\n');
+                        }
+                        registers.append("    ");
+                    } else {
+                        registers.append("  ");
+                    }
+                    registers.append(name);
+                    for (int i = name.length(); i < 3; ++i) {
+                        registers.append(' ');
+                    }
+                    registers.append(' ');
+                    appendHex(registers, value, width);
+                    ++registerCount;
+                }
+                case F_THREAD_BACKTRACE_NOTE -> notes.add(r.readString());
+                case F_THREAD_BACKTRACE -> appendFrame(frames, frameIdx++, r.readMessage(), width);
+                default -> r.skip();
+            }
+        }
+        if (registerCount != 0) {
+            b.append(registers).append('\n');
+        }
+        b.append('\n');
+        b.append("backtrace:\n");
+        for (String note : notes) {
+            b.append("  NOTE: ").append(note).append('\n');
+        }
+        b.append(frames);
+    }
+
+    private static void appendFrame(StringBuilder b, int idx, ProtoReader r, int width) throws IOException {
+        long relPc = 0;
+        String functionName = "";
+        long functionOffset = 0;
+        String fileName = "";
+        String buildId = "";
+        while (r.next()) {
+            switch (r.fieldNumber()) {
+                case 1 -> relPc = r.readVarint();
+                case 4 -> functionName = r.readString();
+                case 5 -> functionOffset = r.readVarint();
+                case 6 -> fileName = r.readString();
+                case 8 -> buildId = r.readString();
+                default -> r.skip();
+            }
+        }
+        b.append("      #");
+        if (idx < 10) {
+            b.append('0');
+        }
+        b.append(idx).append(" pc ");
+        appendHex(b, relPc, width);
+        b.append("  ").append(fileName);
+        if (!functionName.isEmpty()) {
+            b.append(" (").append(functionName);
+            if (functionOffset != 0) {
+                b.append('+').append(Long.toUnsignedString(functionOffset));
+            }
+            b.append(')');
+        }
+        if (!buildId.isEmpty()) {
+            b.append(" (BuildId: ").append(buildId).append(')');
+        }
+        b.append('\n');
+    }
+
+    private String renderMemoryDumps(ThreadInfo ti) throws IOException {
+        int width = is64Bit() ? 16 : 8;
+        var b = new StringBuilder();
+        var r = new ProtoReader(buf, ti.offset, ti.length);
+        while (r.next()) {
+            if (r.fieldNumber() != F_THREAD_MEMORY_DUMP) {
+                r.skip();
+                continue;
+            }
+            ProtoReader dump = r.readMessage();
+            String registerName = "";
+            String mappingName = "";
+            long beginAddress = 0;
+            int memoryOffset = 0;
+            int memoryLength = 0;
+            while (dump.next()) {
+                switch (dump.fieldNumber()) {
+                    case 1 -> registerName = dump.readString();
+                    case 2 -> mappingName = dump.readString();
+                    case 3 -> beginAddress = dump.readVarint();
+                    case 4 -> {
+                        memoryLength = dump.readLength();
+                        memoryOffset = dump.position();
+                        dump.readMessage(memoryLength);
+                    }
+                    default -> dump.skip();
+                }
+            }
+            b.append("memory near ").append(registerName);
+            if (!mappingName.isEmpty()) {
+                b.append(" (").append(mappingName).append(')');
+            }
+            b.append(":\n");
+            appendMemory(b, beginAddress, memoryOffset, memoryLength, width);
+            b.append('\n');
+        }
+        return b.toString();
+    }
+
+    private void appendMemory(StringBuilder b, long address, int offset, int length, int width) {
+        int wordSize = width / 2;
+        int lineSize = 16;
+        for (int line = 0; line < length; line += lineSize) {
+            b.append("    ");
+            appendHex(b, address + line, width);
+            int lineEnd = Math.min(length, line + lineSize);
+            for (int w = line; w + wordSize <= lineEnd; w += wordSize) {
+                long v = 0;
+                for (int i = wordSize - 1; i >= 0; --i) {
+                    v = (v << 8) | (buf[offset + w + i] & 0xff);
+                }
+                b.append(' ');
+                appendHex(b, v, width);
+            }
+            b.append("  ");
+            for (int i = line; i < lineEnd; ++i) {
+                int c = buf[offset + i] & 0xff;
+                b.append(c >= 0x20 && c < 0x7f ? (char) c : '.');
+            }
+            b.append('\n');
+        }
+    }
+
+    private String renderMemoryMap() throws IOException {
+        var b = new StringBuilder(memoryMappings.size() * 100 + 100);
+        b.append("memory map (").append(memoryMappings.size()).append(" entries):\n");
+        for (ProtoReaderRange range : memoryMappings) {
+            ProtoReader r = reader(range);
+            long begin = 0;
+            long end = 0;
+            long offset = 0;
+            boolean read = false;
+            boolean write = false;
+            boolean execute = false;
+            String name = "";
+            String buildId = "";
+            long loadBias = 0;
+            while (r.next()) {
+                switch (r.fieldNumber()) {
+                    case 1 -> begin = r.readVarint();
+                    case 2 -> end = r.readVarint();
+                    case 3 -> offset = r.readVarint();
+                    case 4 -> read = r.readBool();
+                    case 5 -> write = r.readBool();
+                    case 6 -> execute = r.readBool();
+                    case 7 -> name = r.readString();
+                    case 8 -> buildId = r.readString();
+                    case 9 -> loadBias = r.readVarint();
+                    default -> r.skip();
+                }
+            }
+            b.append("    ");
+            appendAddress(b, begin);
+            b.append('-');
+            appendAddress(b, end);
+            b.append(' ');
+            b.append(read ? 'r' : '-').append(write ? 'w' : '-').append(execute ? 'x' : '-');
+            b.append("  ");
+            appendPadded(b, Long.toHexString(offset), 8);
+            b.append("  ");
+            appendPadded(b, Long.toHexString(end - begin), 8);
+            if (!name.isEmpty()) {
+                b.append("  ").append(name);
+            }
+            if (!buildId.isEmpty()) {
+                b.append(" (BuildId: ").append(buildId).append(')');
+            }
+            if (loadBias != 0) {
+                b.append(" (load bias 0x").append(Long.toHexString(loadBias)).append(')');
+            }
+            b.append('\n');
+        }
+        return b.toString();
+    }
+
+    private void appendAddress(StringBuilder b, long addr) {
+        if (is64Bit()) {
+            appendHex(b, addr >>> 32, 8);
+            b.append('\'');
+        }
+        appendHex(b, addr & 0xffff_ffffL, 8);
+    }
+
+    private String renderOpenFiles() throws IOException {
+        var b = new StringBuilder(openFds.size() * 80 + 100);
+        b.append("open files:\n");
+        for (ProtoReaderRange range : openFds) {
+            ProtoReader r = reader(range);
+            int fd = 0;
+            String path = "";
+            String owner = "";
+            long tag = 0;
+            while (r.next()) {
+                switch (r.fieldNumber()) {
+                    case 1 -> fd = r.readInt();
+                    case 2 -> path = r.readString();
+                    case 3 -> owner = r.readString();
+                    case 4 -> tag = r.readVarint();
+                    default -> r.skip();
+                }
+            }
+            b.append("    fd ").append(fd).append(": ").append(path);
+            if (owner.isEmpty()) {
+                b.append(" (unowned)");
+            } else {
+                b.append(" (owned by ").append(owner).append(" 0x").append(Long.toHexString(tag)).append(')');
+            }
+            b.append('\n');
+        }
+        return b.toString();
+    }
+
+    private String renderLogBuffer(ProtoReaderRange range) throws IOException {
+        var b = new StringBuilder();
+        ProtoReader r = reader(range);
+        String name = "";
+        var logs = new StringBuilder();
+        while (r.next()) {
+            switch (r.fieldNumber()) {
+                case 1 -> name = r.readString();
+                case 2 -> appendLogMessage(logs, r.readMessage());
+                default -> r.skip();
+            }
+        }
+        b.append("--------- log ").append(name).append('\n');
+        b.append(logs);
+        return b.toString();
+    }
+
+    private static void appendLogMessage(StringBuilder b, ProtoReader r) throws IOException {
+        String timestamp = "";
+        int pid = 0;
+        int tid = 0;
+        int priority = 0;
+        String tag = "";
+        String message = "";
+        while (r.next()) {
+            switch (r.fieldNumber()) {
+                case 1 -> timestamp = r.readString();
+                case 2 -> pid = r.readInt();
+                case 3 -> tid = r.readInt();
+                case 4 -> priority = r.readInt();
+                case 5 -> tag = r.readString();
+                case 6 -> message = r.readString();
+                default -> r.skip();
+            }
+        }
+        String priorities = "??VDIWEF";
+        char priorityChar = priority >= 0 && priority < priorities.length() ? priorities.charAt(priority) : '?';
+        // multi-line messages are printed with a prefix on each line
+        for (String line : StringUtils.splitLines(message)) {
+            b.append(timestamp).append(' ');
+            appendPadded(b, Integer.toString(pid), 5);
+            b.append(' ');
+            appendPadded(b, Integer.toString(tid), 5);
+            b.append(' ').append(priorityChar).append(' ').append(tag);
+            for (int i = tag.length(); i < 8; ++i) {
+                b.append(' ');
+            }
+            b.append(": ").append(line).append('\n');
+        }
+    }
+
+    private static void appendPadded(StringBuilder b, String s, int width) {
+        for (int i = s.length(); i < width; ++i) {
+            b.append(' ');
+        }
+        b.append(s);
+    }
+
+    private static void appendHex(StringBuilder b, long v, int width) {
+        String s = Long.toHexString(v);
+        for (int i = s.length(); i < width; ++i) {
+            b.append('0');
+        }
+        b.append(s);
+    }
+}
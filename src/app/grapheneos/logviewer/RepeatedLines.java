@@ -0,0 +1,195 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Runs of consecutive logcat lines that differ only in their timestamp, e.g. the same message that
+// is logged thousands of times by a spammy component. Each run is stored as its first line in the
+// body and as the timestamps of the rest of its lines, which is enough to reproduce the original
+// lines, see render().
+//
+// Timestamp is the date and time tokens at the start of the line. The rest of the line (uid, pid,
+// tid, level, tag and message) is compared byte by byte with the previous line
+class RepeatedLines {
+    // body line indices of the first lines of runs, ascending
+    private final int[] lines;
+    // number of lines in each run, including the first one, at least 2
+    private final int[] counts;
+    // index of the first timestamp of each run in times
+    private final int[] firstTimes;
+    // timestamps of all lines of runs except the first ones, one per line
+    final LineBuffer times;
+
+    RepeatedLines(int[] lines, int[] counts, LineBuffer times) {
+        this.lines = lines;
+        this.counts = counts;
+        this.times = times;
+        firstTimes = new int[lines.length];
+        int timeCount = 0;
+        for (int i = 0; i < lines.length; ++i) {
+            firstTimes[i] = timeCount;
+            timeCount += counts[i] - 1;
+        }
+        if (timeCount != times.size()) {
+            throw new IllegalArgumentException("timestamp count mismatch: " + timeCount + " != " + times.size());
+        }
+    }
+
+    int size() {
+        return lines.length;
+    }
+
+    int getLine(int run) {
+        return lines[run];
+    }
+
+    int getCount(int run) {
+        return counts[run];
+    }
+
+    // index of the first run that starts at or after the body line, or size()
+    int findRun(int line) {
+        int idx = Arrays.binarySearch(lines, line);
+        return idx >= 0 ? idx : -idx - 1;
+    }
+
+    // original lines of the run
+    LineBuffer render(LineBuffer body, int run) {
+        int line = lines[run];
+        int count = counts[run];
+        var b = new LineBuffer.Builder((int) Math.min(getByteLength(body, run), 1 << 30));
+        // rest of the line is the same for all lines of the run
+        byte[][] rest = new byte[1][];
+        body.scanLines(line, line + 1, (l, buf, start, end) -> {
+            b.write(buf, start, end - start);
+            b.write('\n');
+            int restStart = findRestStart(buf, start, end);
+            rest[0] = Arrays.copyOfRange(buf, restStart >= 0 ? restStart : end, end);
+        });
+        int first = firstTimes[run];
+        times.scanLines(first, first + count - 1, (l, buf, start, end) -> {
+            b.write(buf, start, end - start);
+            b.write(rest[0], 0, rest[0].length);
+            b.write('\n');
+        });
+        return b.build();
+    }
+
+    // length of the original lines of the run, as written by render(). Only the first line is read
+    long getByteLength(LineBuffer body, int run) {
+        int line = lines[run];
+        int count = counts[run];
+        int[] restLength = new int[1];
+        body.scanLines(line, line + 1, (l, buf, start, end) -> {
+            int restStart = findRestStart(buf, start, end);
+            restLength[0] = restStart >= 0 ? end - restStart : 0;
+        });
+        int first = firstTimes[run];
+        return body.getByteLength(line, line + 1) + times.getByteLength(first, first + count - 1)
+                + (long) restLength[0] * (count - 1);
+    }
+
+    long getMemoryUsage() {
+        return (long) lines.length * 3 * Integer.BYTES + times.getMemoryUsage();
+    }
+
+    // end of the time token, or -1 if the line doesn't start with a date and time, e.g. dividers
+    private static int findRestStart(byte[] buf, int start, int end) {
+        if (start == end || buf[start] < '0' || buf[start] > '9') {
+            return -1;
+        }
+        int pos = start;
+        while (pos < end && buf[pos] != ' ') {
+            ++pos;
+        }
+        while (pos < end && buf[pos] == ' ') {
+            ++pos;
+        }
+        int timeStart = pos;
+        while (pos < end && buf[pos] != ' ') {
+            ++pos;
+        }
+        // "hh:mm:ss.mmm"
+        if (pos - timeStart < 8 || buf[timeStart + 2] != ':') {
+            return -1;
+        }
+        return pos;
+    }
+
+    // Collapses runs while lines are being indexed by LineBuffer.Builder. finish() should be called
+    // after LineBuffer.Builder.build(), which passes the last line to the filter if it isn't
+    // terminated
+    static class Collector implements LineBuffer.Builder.LineFilter {
+        private int[] runLines = new int[16];
+        private int[] runCounts = new int[16];
+        private int runCount;
+        private final LineBuffer.Builder times = new LineBuffer.Builder(0);
+
+        // number of lines that were kept so far
+        private int lineCount;
+        // bounds of the rest of the previous kept line, prevRestStart is -1 if that line can't
+        // start a run
+        private int prevRestStart = -1;
+        private int prevEnd;
+        // number of lines in the current run
+        private int curCount;
+
+        @Override
+        public int filterLine(byte[] buf, int start, int end) {
+            int restStart = findRestStart(buf, start, end);
+            if (restStart >= 0 && prevRestStart >= 0 && Arrays.equals(
+                    buf, prevRestStart, prevEnd, buf, restStart, end)) {
+                // bytes of the previous kept line are still in place, the dropped line is
+                // overwritten by the next line
+                times.write(buf, start, restStart - start);
+                times.write('\n');
+                ++curCount;
+                return -1;
+            }
+            endRun();
+            prevRestStart = restStart;
+            prevEnd = end;
+            curCount = 1;
+            ++lineCount;
+            return end;
+        }
+
+        private void endRun() {
+            if (curCount < 2) {
+                return;
+            }
+            if (runCount == runLines.length) {
+                runLines = Arrays.copyOf(runLines, runCount * 2);
+                runCounts = Arrays.copyOf(runCounts, runCount * 2);
+            }
+            runLines[runCount] = lineCount - 1;
+            runCounts[runCount] = curCount;
+            ++runCount;
+        }
+
+        // collapses runs of already captured lines
+        LineBuffer collapse(LineBuffer src) {
+            var b = new LineBuffer.Builder(src.getByteLength(), this);
+            try {
+                src.writeTo(b);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return b.build();
+        }
+
+        // returns null if there were no repeated lines
+        @Nullable
+        RepeatedLines finish() {
+            endRun();
+            curCount = 0;
+            if (runCount == 0) {
+                return null;
+            }
+            return new RepeatedLines(Arrays.copyOf(runLines, runCount), Arrays.copyOf(runCounts, runCount),
+                    times.build());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+// Foldable range of ViewModel body lines. Lines of a collapsed section are not decoded until the
+// section is expanded
+class Section {
+    final String title;
+    // range of ViewModel.body lines
+    final int start;
+    final int end;
+    // -1 if text of the section hasn't been rendered yet and its line count isn't known
+    int lineCount;
+
+    // lazy sections are not part of ViewModel.body and are rendered on first use
+    private final boolean lazy;
+    @Nullable
+    private final Supplier<LineBuffer> renderer;
+    @Nullable
+    private LineBuffer renderedLines;
+
+    // Nested sections that cover the tail of the range. Lines before the first child are shown
+    // above child sections
+    @Nullable
+    final List<Section> children;
+    final int headLineCount;
+    int depth;
+
+    boolean expanded;
+
+    Section(String title, int start, int end, boolean expanded) {
+        this.title = title;
+        this.start = start;
+        this.end = end;
+        this.lineCount = end - start;
+        this.expanded = expanded;
+        this.lazy = false;
+        this.renderer = null;
+        this.children = null;
+        this.headLineCount = lineCount;
+    }
+
+    Section(String title, int start, int end, boolean expanded, List<Section> children) {
+        this.title = title;
+        this.start = start;
+        this.end = end;
+        this.lineCount = end - start;
+        this.expanded = expanded;
+        this.lazy = false;
+        this.renderer = null;
+        this.children = children;
+        for (Section c : children) {
+            c.setDepth(1);
+        }
+        this.headLineCount = children.get(0).start - start;
+    }
+
+    Section(String title, Supplier<String> renderer) {
+        this.title = title;
+        this.start = 0;
+        this.end = 0;
+        this.lineCount = -1;
+        this.lazy = true;
+        this.renderer = () -> LineBuffer.of(renderer.get());
+        this.children = null;
+        this.headLineCount = -1;
+    }
+
+    // lazy section whose line count is known before it's rendered
+    Section(String title, int lineCount, Supplier<LineBuffer> renderer) {
+        this.title = title;
+        this.start = 0;
+        this.end = 0;
+        this.lineCount = lineCount;
+        this.lazy = true;
+        this.renderer = renderer;
+        this.children = null;
+        this.headLineCount = -1;
+    }
+
+    // lazy section that has already been rendered, e.g. restored by ViewModelDiskCache
+    Section(String title, LineBuffer renderedLines) {
+        this.title = title;
+        this.start = 0;
+        this.end = 0;
+        this.lineCount = renderedLines.size();
+        this.lazy = true;
+        this.renderer = null;
+        this.renderedLines = renderedLines;
+        this.children = null;
+        this.headLineCount = -1;
+    }
+
+    private void setDepth(int depth) {
+        this.depth = depth;
+        if (children != null) {
+            for (Section c : children) {
+                c.setDepth(depth + 1);
+            }
+        }
+    }
+
+    boolean isLazy() {
+        return lazy;
+    }
+
+    LineBuffer getRenderedLines() {
+        LineBuffer b = renderedLines;
+        if (b == null) {
+            b = renderer.get();
+            renderedLines = b;
+            lineCount = b.size();
+        }
+        return b;
+    }
+
+    // memory that is used by rendered lines, lines of body sections are accounted for by ViewModel
+    long getMemoryUsage() {
+        LineBuffer b = renderedLines;
+        return b != null ? b.getMemoryUsage() : 0;
+    }
+}
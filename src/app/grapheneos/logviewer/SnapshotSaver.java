@@ -1,33 +1,71 @@
 package app.grapheneos.logviewer;
 
-import android.annotation.Nullable;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.util.Log;
 
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-
-import static app.grapheneos.logviewer.Utils.showToast;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 class SnapshotSaver {
+    private static final String TAG = SnapshotSaver.class.getSimpleName();
+
     static final int ACTIVITY_REQUEST_CODE = 1000;
 
+    enum Format {
+        TEXT(".txt", ViewModel.Snapshot.MIME_TYPE),
+        GZIP(".txt.gz", BlobProvider.GZIP_MIME_TYPE),
+        // log, header and description as separate entries
+        ZIP(".zip", "application/zip");
+
+        final String extension;
+        final String mimeType;
+
+        Format(String extension, String mimeType) {
+            this.extension = extension;
+            this.mimeType = mimeType;
+        }
+    }
+
     static void start(BaseActivity ctx) {
+        CharSequence[] items = {
+                ctx.getText(R.string.save_format_text),
+                ctx.getText(R.string.save_format_gzip),
+                ctx.getText(R.string.save_format_zip),
+        };
+        var b = new AlertDialog.Builder(ctx);
+        b.setTitle(R.string.action_save);
+        b.setItems(items, (d, which) -> start(ctx, Format.values()[which]));
+        b.show();
+    }
+
+    private static void start(BaseActivity ctx, Format format) {
         ViewModel.Snapshot s = ViewModel.Snapshot.create(ctx.viewModel);
         var i = new Intent(Intent.ACTION_CREATE_DOCUMENT);
-        i.setType(ViewModel.Snapshot.MIME_TYPE);
-        i.putExtra(Intent.EXTRA_TITLE, s.fileName);
+        i.setType(format.mimeType);
+        i.putExtra(Intent.EXTRA_TITLE, s.getFileName(format.extension));
         i.addCategory(Intent.CATEGORY_OPENABLE);
         ctx.viewModel.pendingSnapshot = s;
+        ctx.viewModel.pendingSnapshotFormat = format;
         ctx.startActivityForResult(i, ACTIVITY_REQUEST_CODE);
     }
 
     static void onActivityResult(BaseActivity ctx, int resultCode, Intent resultIntent) {
         final ViewModel.Snapshot pendingSnapshot = ctx.viewModel.pendingSnapshot;
+        final Format format = ctx.viewModel.pendingSnapshotFormat;
         ctx.viewModel.pendingSnapshot = null;
 
         if (resultCode != Activity.RESULT_OK || resultIntent == null) {
@@ -42,36 +80,74 @@ class SnapshotSaver {
         }
 
         Uri uri = resultIntent.getData();
-        bgExecutor.execute(() -> writeToUri(ctx, pendingSnapshot, uri));
+        String fileName = pendingSnapshot.getFileName(format.extension);
+        ctx.startTask(IoScheduler.submit(pendingSnapshot.getByteLength(),
+                ctx.getString(R.string.toast_saved, fileName), ctx.getText(R.string.unable_to_save_file),
+                task -> writeToUri(ctx.getApplicationContext(), pendingSnapshot, format, uri, task)));
     }
 
-    private static Executor bgExecutor = Executors.newCachedThreadPool();
-
-    static void writeToUri(Context ctx, ViewModel.Snapshot s, Uri uri) {
-        ContentResolver cr = ctx.getContentResolver();
-        ParcelFileDescriptor pfd;
+    private static void writeToUri(Context ctx, ViewModel.Snapshot s, Format format, Uri uri,
+                                   IoScheduler.Task task) throws IOException {
+        PipelineTrace trace = PipelineTrace.begin("save " + format.name().toLowerCase(Locale.ROOT));
         try {
-            pfd = cr.openFileDescriptor(uri, "w");
-        } catch (Exception e) {
-            ctx.getMainExecutor().execute(() ->
-                    ErrorDialog.show(ctx, ctx.getText(R.string.toast_unable_to_open_file), e));
-            return;
+            writeToUri(ctx, s, format, uri, task, trace);
+        } catch (IOException|RuntimeException e) {
+            trace.setError(e.toString());
+            throw e;
+        } finally {
+            trace.finish();
         }
+    }
 
+    private static void writeToUri(Context ctx, ViewModel.Snapshot s, Format format, Uri uri,
+                                   IoScheduler.Task task, PipelineTrace trace) throws IOException {
+        ContentResolver cr = ctx.getContentResolver();
+        trace.beginStage("open");
+        ParcelFileDescriptor pfd = cr.openFileDescriptor(uri, "w");
         if (pfd == null) {
-            ctx.getMainExecutor().execute(() ->
-                    showToast(ctx, ctx.getText(R.string.toast_unable_to_open_file)));
-            return;
+            throw new FileNotFoundException(uri.toString());
         }
 
+        // includes compression, it's streamed
+        trace.beginStage("write");
         try (var os = new ParcelFileDescriptor.AutoCloseOutputStream(pfd)) {
-            os.write(s.textBytes);
-        } catch (Exception e) {
-            ctx.getMainExecutor().execute(() ->
-                    ErrorDialog.show(ctx, ctx.getText(R.string.unable_to_save_file), e));
+            write(s, format, os, task);
+        } catch (CancellationException e) {
+            try {
+                DocumentsContract.deleteDocument(cr, uri);
+            } catch (Exception e2) {
+                Log.d(TAG, "", e2);
+            }
+            throw e;
         }
+        trace.endStage(s.getByteLength(), 0);
+    }
 
-        ctx.getMainExecutor().execute(() ->
-                showToast(ctx, ctx.getString(R.string.toast_saved, s.fileName)));
+    // compression is streamed, output is written as the snapshot is being compressed
+    private static void write(ViewModel.Snapshot s, Format format, OutputStream fileOs,
+                              IoScheduler.Task task) throws IOException {
+        switch (format) {
+            case TEXT -> s.writeTo(task.wrap(fileOs));
+            case GZIP -> {
+                var gzos = new GZIPOutputStream(fileOs, 64 * 1024);
+                s.writeTo(task.wrap(gzos));
+                gzos.finish();
+            }
+            case ZIP -> {
+                var zos = new ZipOutputStream(fileOs);
+                zos.putNextEntry(new ZipEntry("header.txt"));
+                s.writeHeader(task.wrap(zos));
+                zos.closeEntry();
+                zos.putNextEntry(new ZipEntry(s.getFileName(".txt")));
+                s.writeBody(task.wrap(zos));
+                zos.closeEntry();
+                if (!s.description.isBlank()) {
+                    zos.putNextEntry(new ZipEntry("description.txt"));
+                    task.wrap(zos).write(s.description.getBytes(StandardCharsets.UTF_8));
+                    zos.closeEntry();
+                }
+                zos.finish();
+            }
+        }
     }
 }
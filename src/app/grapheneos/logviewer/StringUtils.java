@@ -0,0 +1,29 @@
+package app.grapheneos.logviewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// String helpers that don't depend on the Android framework, they are part of the host-buildable
+// core library
+class StringUtils {
+    public static List<String> splitLines(String s) {
+        return Arrays.asList(s.split("\n"));
+    }
+
+    // unlike splitLines(String), keeps empty lines at the end of the range, except for the one
+    // after the final '\n'
+    public static List<String> splitLines(String s, int start, int end) {
+        var res = new ArrayList<String>();
+        int pos = start;
+        while (pos < end) {
+            int lineEnd = s.indexOf('\n', pos);
+            if (lineEnd < 0 || lineEnd > end) {
+                lineEnd = end;
+            }
+            res.add(s.substring(pos, lineEnd));
+            pos = lineEnd + 1;
+        }
+        return res;
+    }
+}
@@ -0,0 +1,74 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+import android.app.AlertDialog;
+import android.widget.ProgressBar;
+
+// Shows progress of the background task of ViewModel and its outcome. Task outlives the activity
+// when it's recreated, the new activity attaches to it in onCreate()
+class TaskProgressDialog implements IoScheduler.Task.Listener {
+    // smaller tasks finish quickly, progress dialog would only flash
+    private static final long MIN_SIZE_FOR_DIALOG = 1 << 20;
+
+    private final BaseActivity ctx;
+    private final IoScheduler.Task task;
+    @Nullable
+    private AlertDialog dialog;
+    @Nullable
+    private ProgressBar progressBar;
+
+    private TaskProgressDialog(BaseActivity ctx, IoScheduler.Task task) {
+        this.ctx = ctx;
+        this.task = task;
+    }
+
+    static TaskProgressDialog attach(BaseActivity ctx, IoScheduler.Task task) {
+        var d = new TaskProgressDialog(ctx, task);
+        if (task.total >= MIN_SIZE_FOR_DIALOG && !task.isFinished()) {
+            d.show();
+        }
+        task.setListener(d);
+        return d;
+    }
+
+    private void show() {
+        var pb = new ProgressBar(ctx, null, android.R.attr.progressBarStyleHorizontal);
+        pb.setMax(IoScheduler.Task.PROGRESS_STEPS);
+        pb.setProgress(task.getProgressSteps());
+        int pad = ctx.dpToPx(24);
+        pb.setPadding(pad, pad, pad, pad);
+        progressBar = pb;
+
+        var b = new AlertDialog.Builder(ctx);
+        b.setTitle(R.string.saving);
+        b.setView(pb);
+        b.setCancelable(false);
+        b.setNegativeButton(android.R.string.cancel, (d, w) -> task.cancel());
+        dialog = b.show();
+    }
+
+    @Override
+    public void onProgress(IoScheduler.Task task) {
+        if (progressBar != null) {
+            progressBar.setProgress(task.getProgressSteps());
+        }
+    }
+
+    @Override
+    public void onFinished(IoScheduler.Task task) {
+        detach();
+        ctx.onTaskFinished(task);
+        switch (task.getState()) {
+            case SUCCEEDED -> Utils.showToast(ctx, task.successMessage);
+            case FAILED -> ErrorDialog.show(ctx, task.failureTitle, task.getError());
+        }
+    }
+
+    void detach() {
+        task.setListener(null);
+        if (dialog != null) {
+            dialog.dismiss();
+            dialog = null;
+        }
+    }
+}
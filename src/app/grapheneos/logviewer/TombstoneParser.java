@@ -0,0 +1,97 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Splits text tombstone into foldable sections in a single pass over its lines.
+// The first section (header, registers and backtrace of the crashing thread) is expanded, the
+// rest (memory dumps, memory map, other threads, open files, logs) is collapsed
+class TombstoneParser {
+    private static final String THREAD_SEPARATOR =
+            "--- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---";
+    private static final String LOG_PREFIX = "--------- ";
+
+    private static final String[] SECTION_PREFIXES = {
+            "memory near ",
+            "code around ",
+            "memory map (",
+            "stack:",
+            "open files:",
+    };
+
+    static List<Section> parse(LineBuffer lines) {
+        var res = new ArrayList<Section>();
+        final int lineCount = lines.size();
+
+        int sectionStart = 0;
+        String sectionTitle = null;
+
+        for (int line = 0; line < lineCount; ++line) {
+            String title = getSectionTitle(lines, line);
+            if (title != null) {
+                if (line != sectionStart) {
+                    res.add(createSection(lines, sectionTitle, sectionStart, line, res.isEmpty()));
+                }
+                sectionStart = line;
+                sectionTitle = title;
+            }
+        }
+
+        if (sectionStart < lineCount) {
+            res.add(createSection(lines, sectionTitle, sectionStart, lineCount, res.isEmpty()));
+        }
+        return res;
+    }
+
+    private static Section createSection(LineBuffer lines, @Nullable String title,
+                                         int start, int end, boolean isFirst) {
+        if (title == null) {
+            title = "crashing thread";
+            for (int line = start; line < end; ++line) {
+                if (lines.startsWith(line, "pid: ")) {
+                    title += ": " + getThreadName(lines.get(line));
+                    break;
+                }
+            }
+        }
+        return new Section(title, start, end, isFirst);
+    }
+
+    @Nullable
+    private static String getSectionTitle(LineBuffer lines, int line) {
+        for (String prefix : SECTION_PREFIXES) {
+            if (lines.startsWith(line, prefix)) {
+                String s = lines.get(line);
+                return s.endsWith(":") ? s.substring(0, s.length() - 1) : s;
+            }
+        }
+        if (lines.startsWith(line, LOG_PREFIX)) {
+            return lines.get(line).substring(LOG_PREFIX.length());
+        }
+        if (lines.startsWith(line, THREAD_SEPARATOR)) {
+            int nextLine = line + 1;
+            if (nextLine < lines.size() && lines.startsWith(nextLine, "pid: ")) {
+                return "thread: " + getThreadName(lines.get(nextLine));
+            }
+            return "thread";
+        }
+        return null;
+    }
+
+    // "pid: 1234, tid: 1240, name: RenderThread  >>> com.example <<<" -> "RenderThread, tid 1240"
+    private static String getThreadName(String line) {
+        int tidIdx = line.indexOf("tid: ");
+        int nameIdx = line.indexOf(", name: ");
+        if (tidIdx < 0 || nameIdx < tidIdx) {
+            return line;
+        }
+        int nameEnd = line.indexOf("  >>> ", nameIdx);
+        if (nameEnd < 0) {
+            nameEnd = line.length();
+        }
+        return line.substring(nameIdx + ", name: ".length(), nameEnd)
+                + ", tid " + line.substring(tidIdx + "tid: ".length(), nameIdx);
+    }
+}
@@ -17,31 +17,10 @@ public class TombstoneUtils {
 
     @Nullable
     public static TimestampedFile findTombstoneByHeader(byte[] header) {
-
-        File[] tombstones = new File("/data/tombstones").listFiles();
-        if (tombstones == null) {
-            return null;
-        }
-
-        ArrayList<TimestampedFile> timestampedTombstones = new ArrayList<>();
-        for (File tombstone : tombstones) {
-            String name = tombstone.getName();
-            if (name.endsWith(".pb") || !name.startsWith("tombstone_")) {
-                continue;
-            }
-            long lastModified = tombstone.lastModified();
-            if (lastModified <= 0) {
-                continue;
-            }
-            timestampedTombstones.add(new TimestampedFile(tombstone, lastModified));
-        }
-
-        timestampedTombstones.sort(Comparator.comparing(TimestampedFile::lastModified).reversed());
-
         int headerLen = header.length;
         byte[] buf = new byte[headerLen];
 
-        for (TimestampedFile tombstone : timestampedTombstones) {
+        for (TimestampedFile tombstone : listTombstones(false)) {
             try (var s = new FileInputStream(tombstone.file())) {
                 if (s.readNBytes(buf, 0, headerLen) != headerLen) {
                     continue;
@@ -58,4 +37,52 @@ public class TombstoneUtils {
         }
         return null;
     }
+
+    // Protobuf tombstone has the same timestamp string, pid and tid as the text tombstone header.
+    // All of them are stored near the start of the file
+    @Nullable
+    public static TimestampedFile findProtoTombstone(String timestamp, int pid, int tid) {
+        byte[] buf = new byte[4096];
+
+        for (TimestampedFile tombstone : listTombstones(true)) {
+            try (var s = new FileInputStream(tombstone.file())) {
+                int len = s.readNBytes(buf, 0, buf.length);
+                ProtoTombstone.Header h = ProtoTombstone.readHeader(buf, len);
+                if (h != null && h.pid() == pid && h.tid() == tid && timestamp.equals(h.timestamp())) {
+                    if (tombstone.file().lastModified() != tombstone.lastModified()) {
+                        return null;
+                    }
+                    return tombstone;
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "", e);
+            }
+        }
+        return null;
+    }
+
+    // newest first
+    private static ArrayList<TimestampedFile> listTombstones(boolean proto) {
+        var res = new ArrayList<TimestampedFile>();
+
+        File[] tombstones = new File("/data/tombstones").listFiles();
+        if (tombstones == null) {
+            return res;
+        }
+
+        for (File tombstone : tombstones) {
+            String name = tombstone.getName();
+            if (name.endsWith(".pb") != proto || !name.startsWith("tombstone_")) {
+                continue;
+            }
+            long lastModified = tombstone.lastModified();
+            if (lastModified <= 0) {
+                continue;
+            }
+            res.add(new TimestampedFile(tombstone, lastModified));
+        }
+
+        res.sort(Comparator.comparing(TimestampedFile::lastModified).reversed());
+        return res;
+    }
 }
@@ -8,24 +8,23 @@ import android.content.pm.InstallSourceInfo;
 import android.content.pm.PackageManager;
 import android.provider.Settings;
 import android.service.oemlock.OemLockManager;
-import android.util.Log;
 import android.widget.Toast;
 
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.io.PrintStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
-import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class Utils {
 
     public static void maybeAddFlags(Context ctx, ArrayList<String> dst) {
+        String flags = getFlags(ctx);
+        if (flags != null) {
+            dst.add("flags: " + flags);
+        }
+    }
+
+    @Nullable
+    public static String getFlags(Context ctx) {
         var l = new ArrayList<String>();
 
         var olm = ctx.getSystemService(OemLockManager.class);
@@ -38,9 +37,7 @@ public class Utils {
             l.add("dev options enabled");
         }
 
-        if (!l.isEmpty()) {
-            dst.add("flags: " + String.join(", ", l));
-        }
+        return l.isEmpty() ? null : String.join(", ", l);
     }
 
     public static String printStackTraceToString(Throwable t) {
@@ -49,19 +46,6 @@ public class Utils {
         return baos.toString();
     }
 
-    @Nullable
-    public static String readFileAsString(String path) {
-        byte[] bytes;
-        Path p = Paths.get(path);
-        try {
-            bytes = Files.readAllBytes(p);
-        } catch (IOException e) {
-            Log.e("readFileAsString", "", e);
-            return null;
-        }
-        return new String(bytes, UTF_8);
-    }
-
     public static CharSequence loadAppLabel(Context ctx, String pkgName) {
         PackageManager pm = ctx.getPackageManager();
 
@@ -87,10 +71,6 @@ public class Utils {
         return isi.getInstallingPackageName();
     }
 
-    public static List<String> splitLines(String s) {
-        return Arrays.asList(s.split("\n"));
-    }
-
     public static void showToast(Context ctx, CharSequence text) {
         Toast.makeText(ctx, text, Toast.LENGTH_SHORT).show();
     }
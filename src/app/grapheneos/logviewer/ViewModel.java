@@ -4,10 +4,13 @@ import android.annotation.Nullable;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.text.TextUtils;
-import android.util.Pair;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.emptyList;
@@ -15,9 +18,14 @@ import static java.util.Collections.emptyList;
 public class ViewModel {
     @Nullable
     final String sourcePackage; // e.g. app that crashed, app that logcat is filtered on
-    final String title;
-    final String header;
-    final String body;
+    // updated when pendingContent is completed
+    volatile String title;
+    volatile String header;
+    final LineBuffer body;
+    // non-null if body is split into foldable sections. Sections cover the whole body, rendered
+    // sections are appended to it
+    @Nullable
+    final List<Section> sections;
     final boolean showCopyButton;
 
     // editable by the user
@@ -25,96 +33,309 @@ public class ViewModel {
 
     @Nullable
     Snapshot pendingSnapshot;
+    SnapshotSaver.Format pendingSnapshotFormat = SnapshotSaver.Format.TEXT;
+
+    // save task, it outlives activity recreation
+    @Nullable
+    IoScheduler.Task task;
+
+    // runs of repeated lines that were collapsed into their first body line, only for bodies
+    // without sections
+    @Nullable
+    RepeatedLines repeatedLines;
+    // expandable rows of repeatedLines, created on first use
+    @Nullable
+    private Section[] repeatedLineSections;
 
-    ViewModel(@Nullable String sourcePackage, String title, String header, String body) {
+    // section that is scrolled to when the view is first shown
+    @Nullable
+    Section initialSection;
+
+    // Completed when the title and header fields that are looked up in the background are set,
+    // see setLookedUpContent(). ViewModel is shown before that
+    @Nullable
+    volatile CompletableFuture<Void> pendingContent;
+
+    // set when ViewModel is cached by BaseActivity
+    @Nullable
+    volatile MemoryBudget.Handle memoryHandle;
+    // whether ViewModelDiskCache has an up-to-date copy, reset when description is edited
+    volatile boolean storedOnDisk;
+
+    // computed on first use, guarded by this
+    @Nullable
+    private LogStats logStats;
+    private int logStatsLineCount;
+
+    ViewModel(@Nullable String sourcePackage, String title, String header, LineBuffer body) {
+        this(sourcePackage, title, header, body, null);
+    }
+
+    ViewModel(@Nullable String sourcePackage, String title, String header, LineBuffer body,
+              @Nullable List<Section> sections) {
         this.sourcePackage = sourcePackage;
         this.title = title;
         this.header = header;
         this.body = body;
+        this.sections = sections;
         int maxSizeForCopy = 50_000;
-        this.showCopyButton = body.length() < maxSizeForCopy && body.getBytes(UTF_8).length < maxSizeForCopy;
+        this.showCopyButton = body.getByteLength() < maxSizeForCopy;
+    }
+
+    void setLookedUpContent(String title, String header) {
+        this.title = title;
+        this.header = header;
+        storedOnDisk = false;
+    }
+
+    // only lines that were added to body since the previous call are scanned
+    synchronized LogStats getLogStats() {
+        LogStats res = logStats;
+        if (res == null) {
+            res = new LogStats();
+            logStats = res;
+        }
+        int size = body.size();
+        if (logStatsLineCount < size) {
+            // repeated lines are counted as separate lines
+            var ranges = new ArrayList<LineRange>();
+            addBodyRanges(ranges, logStatsLineCount, size);
+            for (LineRange r : ranges) {
+                LineRange e = r.expand();
+                res.add(e.lines(), e.start(), e.end());
+            }
+            logStatsLineCount = size;
+        }
+        return res;
     }
 
     List<String> createHeaderLines() {
-        List<String> res = Utils.splitLines(header);
+        List<String> res = StringUtils.splitLines(header);
         if (res.size() == 1 && res.get(0).isBlank()) {
             return emptyList();
         }
         return res;
     }
 
-    List<String> createBodyLines() {
-        return Utils.splitLines(body);
+    long getMemoryUsage() {
+        int multiplier = 2; // at most 2 bytes per char
+        long res = (header.length() + description.length()) * multiplier + body.getMemoryUsage();
+        List<Section> sections = this.sections;
+        if (sections != null) {
+            for (Section s : sections) {
+                res += s.getMemoryUsage();
+            }
+        }
+        RepeatedLines repeated = repeatedLines;
+        if (repeated != null) {
+            res += repeated.getMemoryUsage();
+        }
+        Section[] repeatedSections = repeatedLineSections;
+        if (repeatedSections != null) {
+            for (Section s : repeatedSections) {
+                res += s.getMemoryUsage();
+            }
+        }
+        return res;
     }
 
-    private Pair<ClipData, Boolean> asClipData(BaseActivity ctx) {
-        int sumSize = header.getBytes(UTF_8).length + description.getBytes(UTF_8).length;
-        int sumChars = 0;
-        int bodyStartIndex = 0;
+    // body of an activity that isn't shown is kept compressed
+    void compress() {
+        body.compress();
+        RepeatedLines repeated = repeatedLines;
+        if (repeated != null) {
+            repeated.times.compress();
+        }
+    }
 
-        List<String> bodyLines = createBodyLines();
+    // lazy sections grow the ViewModel when they are rendered, compression of body shrinks it
+    void updateMemoryUsage() {
+        MemoryBudget.Handle h = memoryHandle;
+        if (h != null) {
+            MemoryBudget.setCost(h, getMemoryUsage());
+        }
+    }
 
-        for (int i = bodyLines.size() - 1; i >= 0; --i) {
-            String line = bodyLines.get(i);
-            sumChars += line.length() + 1;
-            sumSize += line.getBytes(UTF_8).length + 1;
-            // avoid bumping into binder transaction size limits
-            if (sumSize > 200_000) {
-                bodyStartIndex = i + 1;
-                break;
+    // rows of a body without sections: lines, and a collapsed section in place of the first line
+    // of each run of repeated lines
+    List<?> createBodyRows() {
+        RepeatedLines repeated = repeatedLines;
+        if (repeated == null) {
+            return body;
+        }
+        Section[] repeatedSections = getRepeatedLineSections(repeated);
+        var res = new ArrayList<Object>(body.size());
+        int prev = 0;
+        for (int i = 0, n = repeated.size(); i < n; ++i) {
+            int line = repeated.getLine(i);
+            res.addAll(body.subList(prev, line));
+            res.add(repeatedSections[i]);
+            prev = line + 1;
+        }
+        res.addAll(body.subList(prev, body.size()));
+        return res;
+    }
+
+    private synchronized Section[] getRepeatedLineSections(RepeatedLines repeated) {
+        Section[] res = repeatedLineSections;
+        if (res == null) {
+            res = new Section[repeated.size()];
+            for (int i = 0; i < res.length; ++i) {
+                int run = i;
+                res[i] = new Section(body.get(repeated.getLine(i)), repeated.getCount(i),
+                        () -> repeated.render(body, run));
             }
+            repeatedLineSections = res;
+        }
+        return res;
+    }
+
+    // Range of lines of body or of a rendered section, or a run of repeated lines of body. Lines of
+    // a run are rendered by expand() only when they are read, one run at a time, they aren't
+    // retained to not undo the collapsing
+    static class LineRange {
+        private final LineBuffer lines;
+        private final int start;
+        private final int end;
+        @Nullable
+        private final RepeatedLines repeated;
+        private final int run;
+
+        LineRange(LineBuffer lines, int start, int end) {
+            this(lines, start, end, null, -1);
         }
 
-        var sb = new StringBuilder(sumChars + 1000);
-        sb.append("```\n");
+        private LineRange(LineBuffer lines, int start, int end, @Nullable RepeatedLines repeated, int run) {
+            this.lines = lines;
+            this.start = start;
+            this.end = end;
+            this.repeated = repeated;
+            this.run = run;
+        }
 
-        List<String> headerLines = createHeaderLines();
+        static LineRange ofRun(LineBuffer body, RepeatedLines repeated, int run) {
+            int line = repeated.getLine(run);
+            return new LineRange(body, line, line + 1, repeated, run);
+        }
 
-        for (String s : headerLines) {
-            sb.append(s);
-            sb.append('\n');
+        // lines(), start() and end() are valid only for ranges that aren't runs, see expand()
+        LineBuffer lines() {
+            return lines;
         }
 
-        if (headerLines.size() > 1) {
-            sb.append('\n');
+        int start() {
+            return start;
         }
 
-        if (bodyStartIndex != 0) {
-            sb.append("[[TRUNCATED]]\n");
+        int end() {
+            return end;
         }
 
-        for (int i = bodyStartIndex, m = bodyLines.size(); i < m; ++i) {
-            sb.append(ctx.prepareLineForCopy(bodyLines.get(i)));
-            sb.append('\n');
+        int getLineCount() {
+            return repeated != null ? repeated.getCount(run) : end - start;
         }
 
-        if (!description.isBlank()) {
-            sb.append("\ndescription: ");
-            sb.append(description);
-            sb.append('\n');
+        // computed without rendering runs
+        long getByteLength() {
+            return repeated != null ? repeated.getByteLength(lines, run) : lines.getByteLength(start, end);
         }
 
-        sb.append("```\n");
+        // range of the rendered lines of a run, this range if it's not a run
+        LineRange expand() {
+            if (repeated == null) {
+                return this;
+            }
+            LineBuffer rendered = repeated.render(lines, run);
+            return new LineRange(rendered, 0, rendered.size());
+        }
+    }
+
+    // all lines of the body, without decoding them. Runs of repeated lines are expanded on use
+    List<LineRange> createBodyRanges() {
+        var res = new ArrayList<LineRange>();
+        List<Section> sections = this.sections;
+        if (sections == null) {
+            addBodyRanges(res, 0, body.size());
+            return res;
+        }
+        for (Section s : sections) {
+            if (s.isLazy()) {
+                LineBuffer lines = s.getRenderedLines();
+                res.add(new LineRange(lines, 0, lines.size()));
+            } else {
+                res.add(new LineRange(body, s.start, s.end));
+            }
+        }
+        updateMemoryUsage();
+        return res;
+    }
+
+    // lines [start, end) of a body without sections, with runs of repeated lines in place of their
+    // first lines
+    private void addBodyRanges(List<LineRange> dst, int start, int end) {
+        RepeatedLines repeated = repeatedLines;
+        if (repeated == null) {
+            dst.add(new LineRange(body, start, end));
+            return;
+        }
+        int prev = start;
+        for (int i = repeated.findRun(start), n = repeated.size(); i < n; ++i) {
+            int line = repeated.getLine(i);
+            if (line >= end) {
+                break;
+            }
+            if (prev < line) {
+                dst.add(new LineRange(body, prev, line));
+            }
+            dst.add(LineRange.ofRun(body, repeated, i));
+            prev = line + 1;
+        }
+        if (prev < end) {
+            dst.add(new LineRange(body, prev, end));
+        }
+    }
 
-        boolean truncated = bodyStartIndex != 0;
+    List<String> createSectionLines(Section s) {
+        if (s.isLazy()) {
+            LineBuffer lines = s.getRenderedLines();
+            updateMemoryUsage();
+            return lines;
+        }
+        return body.subList(s.start, s.end);
+    }
 
-        return Pair.create(ClipData.newPlainText(title, sb.toString()), truncated);
+    // lines of section that are above its child sections
+    List<String> createSectionHeadLines(Section s) {
+        List<Section> children = s.children;
+        if (children == null || children.isEmpty()) {
+            return createSectionLines(s);
+        }
+        return body.subList(s.start, children.get(0).start);
     }
 
     void copyToClipbord(BaseActivity ctx) {
-        Pair<ClipData, Boolean> pair = asClipData(ctx);
+        ClipboardBuilder.Result res = ClipboardBuilder.build(this, ctx);
         var cm = ctx.getSystemService(ClipboardManager.class);
-        cm.setPrimaryClip(pair.first);
+        cm.setPrimaryClip(ClipData.newPlainText(title, res.text()));
 
-        Utils.showToast(ctx, ctx.getText(pair.second?
+        Utils.showToast(ctx, ctx.getText(res.truncated()?
                 R.string.copied_to_clipboard_truncated : R.string.copied_to_clipboard));
     }
 
-    static class Snapshot {
+    // Immutable view of the ViewModel text that writes itself incrementally from the underlying
+    // line buffers, the whole text is never materialized
+    static class Snapshot implements BlobProvider.BlobSource {
         final String title;
-        final String text;
-        final byte[] textBytes;
+        private final String fileNameBase;
         final String fileName;
+        // header lines, each one is terminated with '\n'. Header is small, it's encoded in advance
+        private final byte[] header;
+        // whether header is separated from body with an empty line
+        private final boolean headerSeparator;
+        private final List<LineRange> bodyRanges;
+        final String description;
+        private final byte[] descriptionSuffix;
+        private final long byteLength;
 
         // Logs are plain text, but many apps apply unwanted processing to "text/plain" data (e.g.
         // various kinds of link recognition).
@@ -122,12 +343,24 @@ public class ViewModel {
         // not helpful when sharing logs.
         static final String MIME_TYPE = "application/octet-stream";
 
-        Snapshot(String title, String text, byte[] textBytes) {
+        private Snapshot(String title, byte[] header, boolean headerSeparator, List<LineRange> bodyRanges,
+                         String description) {
             this.title = title;
-            this.text = text;
-            this.textBytes = textBytes;
-            fileName = TextUtils.trimToSize(title, 200) + ' '
-                    + UUID.randomUUID().toString().substring(24) + ".txt";
+            this.header = header;
+            this.headerSeparator = headerSeparator;
+            this.bodyRanges = bodyRanges;
+            this.description = description;
+            descriptionSuffix = description.isBlank() ? new byte[0] :
+                    ("\ndescription: " + description + '\n').getBytes(UTF_8);
+            byteLength = header.length + (headerSeparator ? 1 : 0) + getBodyByteLength()
+                    + descriptionSuffix.length;
+            fileNameBase = TextUtils.trimToSize(title, 200) + ' '
+                    + UUID.randomUUID().toString().substring(24);
+            fileName = getFileName(".txt");
+        }
+
+        String getFileName(String extension) {
+            return fileNameBase + extension;
         }
 
         static Snapshot create(ViewModel vm) {
@@ -139,27 +372,44 @@ public class ViewModel {
                 b.append(l);
                 b.append('\n');
             }
+            byte[] header = b.toString().getBytes(UTF_8);
 
-            if (headerLines.size() > 1) {
-                b.append('\n');
-            }
+            return new Snapshot(vm.title, header, headerLines.size() > 1, vm.createBodyRanges(),
+                    vm.description);
+        }
 
-            for (String l : vm.createBodyLines()) {
-                b.append(l);
-                b.append('\n');
-            }
+        @Override
+        public long getByteLength() {
+            return byteLength;
+        }
 
-            String desc = vm.description;
-            if (!desc.isBlank()) {
-                b.append("\ndescription: ");
-                b.append(desc);
-                b.append('\n');
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            writeHeader(os);
+            if (headerSeparator) {
+                os.write('\n');
             }
+            writeBody(os);
+            os.write(descriptionSuffix);
+        }
 
-            String text = b.toString();
-            byte[] textBytes = text.getBytes(UTF_8);
+        void writeHeader(OutputStream os) throws IOException {
+            os.write(header);
+        }
 
-            return new Snapshot(vm.title, text, textBytes);
+        long getBodyByteLength() {
+            long res = 0;
+            for (LineRange r : bodyRanges) {
+                res += r.getByteLength();
+            }
+            return res;
+        }
+
+        void writeBody(OutputStream os) throws IOException {
+            for (LineRange r : bodyRanges) {
+                LineRange e = r.expand();
+                e.lines().writeTo(os, e.start(), e.end());
+            }
         }
     }
 }
@@ -0,0 +1,352 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+import android.content.Context;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Stores ViewModels that are evicted from memory or whose activity is stopped in the cache dir,
+// keyed by the activity instanceId. Restoring one brings back the exact data that the user was
+// looking at, recapturing it would produce different logs or would fail if the source is gone.
+//
+// File format: metadata (strings, the section tree and runs of repeated lines) followed by a gzip
+// stream that contains the body, the rendered lazy sections and timestamps of repeated lines.
+// The file is mapped, line buffers are inflated straight from the mapping
+class ViewModelDiskCache {
+    private static final String TAG = ViewModelDiskCache.class.getSimpleName();
+
+    private static final String DIR_NAME = "view_models";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x4c56564d; // "LVVM"
+    private static final int VERSION = 2;
+    // oldest files are removed by trim() when this is exceeded
+    private static final long MAX_TOTAL_SIZE = 64 << 20;
+
+    private static File getDir(Context ctx) {
+        return new File(ctx.getCacheDir(), DIR_NAME);
+    }
+
+    private static File getFile(Context ctx, ParcelUuid id) {
+        return new File(getDir(ctx), id.toString());
+    }
+
+    // Called on a background thread. Lazy sections are rendered if they haven't been rendered yet.
+    // Synchronized to not write the same temporary file concurrently
+    static synchronized void write(Context ctx, ParcelUuid id, ViewModel vm) {
+        if (vm.storedOnDisk) {
+            return;
+        }
+        File dir = getDir(ctx);
+        File file = getFile(ctx, id);
+        var tmp = new File(dir, file.getName() + TMP_SUFFIX);
+        String title = vm.title;
+        String header = vm.header;
+        String description = vm.description;
+        try {
+            dir.mkdir();
+            try (var os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+                List<LineBuffer> buffers = new ArrayList<>();
+                buffers.add(vm.body);
+                os.writeInt(MAGIC);
+                os.writeInt(VERSION);
+                writeString(os, vm.sourcePackage);
+                writeString(os, title);
+                writeString(os, header);
+                writeString(os, description);
+                List<Section> flatSections = new ArrayList<>();
+                writeSections(os, vm.sections, flatSections, buffers);
+                os.writeInt(vm.initialSection != null ? flatSections.indexOf(vm.initialSection) : -1);
+                RepeatedLines repeated = vm.repeatedLines;
+                if (repeated != null) {
+                    os.writeInt(repeated.size());
+                    for (int i = 0; i < repeated.size(); ++i) {
+                        os.writeInt(repeated.getLine(i));
+                        os.writeInt(repeated.getCount(i));
+                    }
+                    buffers.add(repeated.times);
+                } else {
+                    os.writeInt(-1);
+                }
+                os.writeInt(buffers.size());
+                for (LineBuffer b : buffers) {
+                    os.writeInt(b.getByteLength());
+                    os.writeInt(b.size());
+                }
+                os.flush();
+                // fast compression, logs compress well even with it
+                var gzos = new GZIPOutputStream(os, 64 * 1024) {
+                    {
+                        def.setLevel(Deflater.BEST_SPEED);
+                    }
+                };
+                for (LineBuffer b : buffers) {
+                    b.writeTo(gzos);
+                }
+                gzos.finish();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("unable to rename " + tmp + " to " + file);
+            }
+            // description may have been edited and looked up header fields may have been set
+            // while ViewModel was being written
+            vm.storedOnDisk = description.equals(vm.description) && header.equals(vm.header)
+                    && title.equals(vm.title);
+        } catch (IOException|RuntimeException e) {
+            Log.e(TAG, "", e);
+            tmp.delete();
+        }
+    }
+
+    @Nullable
+    static ViewModel read(Context ctx, ParcelUuid id) {
+        File file = getFile(ctx, id);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (var ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException("unknown format of " + file);
+            }
+            String sourcePackage = readString(buf);
+            String title = readString(buf);
+            String header = readString(buf);
+            String description = readString(buf);
+            List<SectionInfo> sectionInfos = readSections(buf);
+            int initialSectionIdx = buf.getInt();
+            int runCount = buf.getInt();
+            int[] runLines = null;
+            int[] runCounts = null;
+            if (runCount >= 0) {
+                runLines = new int[runCount];
+                runCounts = new int[runCount];
+                for (int i = 0; i < runCount; ++i) {
+                    runLines[i] = buf.getInt();
+                    runCounts[i] = buf.getInt();
+                }
+            }
+
+            int bufferCount = buf.getInt();
+            if (bufferCount < 1) {
+                throw new IOException("invalid line buffer count " + bufferCount);
+            }
+            int[] byteLengths = new int[bufferCount];
+            int[] lineCounts = new int[bufferCount];
+            for (int i = 0; i < bufferCount; ++i) {
+                byteLengths[i] = buf.getInt();
+                lineCounts[i] = buf.getInt();
+            }
+            var buffers = new LineBuffer[bufferCount];
+            try (var gzis = new GZIPInputStream(new ByteBufferInputStream(buf), 64 * 1024)) {
+                for (int i = 0; i < bufferCount; ++i) {
+                    byte[] bytes = gzis.readNBytes(byteLengths[i]);
+                    if (bytes.length != byteLengths[i]) {
+                        throw new EOFException();
+                    }
+                    LineBuffer b = LineBuffer.wrap(bytes);
+                    if (b.size() != lineCounts[i]) {
+                        throw new IOException("line count mismatch: " + b.size() + " != " + lineCounts[i]);
+                    }
+                    buffers[i] = b;
+                }
+            }
+            List<Section> flatSections = new ArrayList<>();
+            // buffers[0] is the body, then rendered lazy sections in pre-order, then timestamps of
+            // repeated lines
+            int[] nextBufferIdx = { 1 };
+            List<Section> sections = createSections(sectionInfos, buffers, nextBufferIdx, flatSections);
+
+            var vm = new ViewModel(sourcePackage, title, header, buffers[0], sections);
+            vm.description = description;
+            if (runLines != null) {
+                vm.repeatedLines = new RepeatedLines(runLines, runCounts, buffers[nextBufferIdx[0]++]);
+            }
+            if (initialSectionIdx >= 0) {
+                vm.initialSection = flatSections.get(initialSectionIdx);
+            }
+            vm.storedOnDisk = true;
+            // restored files are the last ones to be trimmed
+            file.setLastModified(System.currentTimeMillis());
+            return vm;
+        } catch (IOException|RuntimeException e) {
+            Log.e(TAG, "", e);
+            file.delete();
+            return null;
+        }
+    }
+
+    static void delete(Context ctx, ParcelUuid id) {
+        getFile(ctx, id).delete();
+    }
+
+    // Removes leftover temporary files and the least recently used files that don't fit into
+    // MAX_TOTAL_SIZE. Called on a background thread at process startup
+    static void trim(Context ctx) {
+        File[] files = getDir(ctx).listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+        long totalSize = 0;
+        for (File f : files) {
+            if (f.getName().endsWith(TMP_SUFFIX)) {
+                // temporary files are renamed right after they are written
+                if (System.currentTimeMillis() - f.lastModified() > 60_000) {
+                    f.delete();
+                }
+                continue;
+            }
+            totalSize += f.length();
+            if (totalSize > MAX_TOTAL_SIZE) {
+                Log.d(TAG, "trim: removing " + f.getName());
+                f.delete();
+            }
+        }
+    }
+
+    private static void writeSections(DataOutputStream os, @Nullable List<Section> sections,
+                                      List<Section> flatSections, List<LineBuffer> buffers) throws IOException {
+        if (sections == null) {
+            os.writeInt(-1);
+            return;
+        }
+        os.writeInt(sections.size());
+        for (Section s : sections) {
+            flatSections.add(s);
+            writeString(os, s.title);
+            os.writeBoolean(s.expanded);
+            os.writeBoolean(s.isLazy());
+            if (s.isLazy()) {
+                buffers.add(s.getRenderedLines());
+                continue;
+            }
+            os.writeInt(s.start);
+            os.writeInt(s.end);
+            writeSections(os, s.children, flatSections, buffers);
+        }
+    }
+
+    private record SectionInfo(String title, boolean expanded, boolean lazy, int start, int end,
+                               @Nullable List<SectionInfo> children) {}
+
+    @Nullable
+    private static List<SectionInfo> readSections(ByteBuffer buf) {
+        int count = buf.getInt();
+        if (count < 0) {
+            return null;
+        }
+        var res = new ArrayList<SectionInfo>(count);
+        for (int i = 0; i < count; ++i) {
+            String title = readString(buf);
+            boolean expanded = buf.get() != 0;
+            if (buf.get() != 0) {
+                res.add(new SectionInfo(title, expanded, true, 0, 0, null));
+                continue;
+            }
+            int start = buf.getInt();
+            int end = buf.getInt();
+            res.add(new SectionInfo(title, expanded, false, start, end, readSections(buf)));
+        }
+        return res;
+    }
+
+    @Nullable
+    private static List<Section> createSections(@Nullable List<SectionInfo> infos, LineBuffer[] buffers,
+                                                int[] nextBufferIdx, List<Section> flatSections) {
+        if (infos == null) {
+            return null;
+        }
+        var res = new ArrayList<Section>(infos.size());
+        for (SectionInfo i : infos) {
+            Section s;
+            // pre-order index, same as in writeSections()
+            int flatIdx = flatSections.size();
+            flatSections.add(null);
+            if (i.lazy()) {
+                s = new Section(i.title(), buffers[nextBufferIdx[0]++]);
+                s.expanded = i.expanded();
+            } else if (i.children() != null) {
+                List<Section> children = createSections(i.children(), buffers, nextBufferIdx, flatSections);
+                s = new Section(i.title(), i.start(), i.end(), i.expanded(), children);
+            } else {
+                s = new Section(i.title(), i.start(), i.end(), i.expanded());
+            }
+            flatSections.set(flatIdx, s);
+            res.add(s);
+        }
+        return res;
+    }
+
+    private static void writeString(DataOutputStream os, @Nullable String s) throws IOException {
+        if (s == null) {
+            os.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(UTF_8);
+        os.writeInt(b.length);
+        os.write(b);
+    }
+
+    @Nullable
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+        var b = new byte[len];
+        buf.get(b);
+        return new String(b, UTF_8);
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}